@@ -50,6 +50,10 @@ android {
   buildFeatures {
     buildConfig = true
   }
+  testOptions {
+    // JVM tests run against the android.jar stubs, SystemClock and the like answer zero
+    unitTests.isReturnDefaultValues = true
+  }
 }
 
 dependencies {
@@ -68,6 +72,7 @@ dependencies {
   implementation(libs.androidx.paging.runtime)
   implementation(libs.androidx.swiperefreshlayout)
   implementation(libs.kotlinx.coroutines.guava)
+  implementation(libs.kotlinx.serialize.cbor)
 
   //Media 3
   implementation(libs.bundles.media3)
@@ -144,4 +149,5 @@ dependencies {
   // Bỏ Vungle tạm thời vì có vấn đề với repository
   // implementation("com.vungle:vungle-android-sdk:7.1.0")
 
+  testImplementation(libs.junit)
 }
@@ -4,6 +4,7 @@ import android.app.Activity
 import android.app.Application
 import android.app.NotificationChannel
 import android.app.NotificationManager
+import android.content.ComponentCallbacks2
 import android.content.Context
 import android.content.Intent
 import android.content.SharedPreferences
@@ -19,7 +20,9 @@ import cloud.app.vvf.ads.AdPreloadManager
 import cloud.app.vvf.ads.providers.AdProvider
 import cloud.app.vvf.common.helpers.network.HttpHelper
 import cloud.app.vvf.common.models.extension.Message
+import cloud.app.vvf.datastore.WriteBehindStorage
 import cloud.app.vvf.extension.ExtensionLoader
+import cloud.app.vvf.services.CompactionWorker
 import cloud.app.vvf.utils.setLocale
 import com.google.android.gms.tasks.OnCompleteListener
 import com.google.android.material.color.DynamicColors
@@ -30,6 +33,7 @@ import com.google.firebase.crashlytics.FirebaseCrashlytics
 import com.google.firebase.messaging.FirebaseMessaging
 import dagger.hilt.android.HiltAndroidApp
 import kotlinx.coroutines.CoroutineName
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.MainScope
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.launch
@@ -72,6 +76,7 @@ class VVFApplication : Application(), Configuration.Provider,
     registerActivityLifecycleCallbacks(this)
     Thread.setDefaultUncaughtExceptionHandler { _, exception ->
       exception.printStackTrace()
+      WriteBehindStorage.flushAll()
 
       val isShowException = sharedPreferences.getBoolean(
         getString(R.string.pref_use_show_app_crash_log), true
@@ -93,6 +98,7 @@ class VVFApplication : Application(), Configuration.Provider,
     }
     applyUiChanges(sharedPreferences, currentActivity = currentActivity)
     extensionLoader.initialize()
+    CompactionWorker.enqueuePeriodicWork(this)
 
     // Initialize AdManager and Enhanced Preload System
     scope.launch {
@@ -206,6 +212,7 @@ class VVFApplication : Application(), Configuration.Provider,
    */
   private fun onAppBackground() {
     Timber.d("App went to background - switching to background preload mode")
+    scope.launch(Dispatchers.IO) { WriteBehindStorage.flushAll() }
     scope.launch {
       try {
         // Switch to background preload mode (less frequent)
@@ -216,6 +223,13 @@ class VVFApplication : Application(), Configuration.Provider,
     }
   }
 
+  override fun onTrimMemory(level: Int) {
+    super.onTrimMemory(level)
+    // The process may be killed from here on without further callbacks. Off the main thread, a
+    // flush waits behind any batch or compaction in flight
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) scope.launch(Dispatchers.IO) { WriteBehindStorage.flushAll() }
+  }
+
   override val workManagerConfiguration: Configuration
     get() = Configuration.Builder()
       .setWorkerFactory(workerFactory)
@@ -0,0 +1,50 @@
+package cloud.app.vvf.datastore
+
+import android.util.Base64
+import cloud.app.vvf.common.utils.toData
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.cbor.Cbor
+import kotlinx.serialization.decodeFromByteArray
+import kotlinx.serialization.encodeToByteArray
+
+/**
+ * Versioned CBOR encoding for stored values. In memory a binary payload is [MARKER] followed by
+ * the CBOR bytes as ISO-8859-1 chars, so it travels through the String based [DataStorage] API
+ * unchanged; backends store it as raw bytes ([SqliteStorage]) or base64 ([SharedPreferencesStorage]).
+ * Anything without the marker is legacy JSON and is still decoded as such.
+ */
+@OptIn(ExperimentalSerializationApi::class)
+object BinaryPayload {
+  const val MARKER = "\u0001cbor1:"
+  private const val BASE64_MARKER = "~cbor1:"
+
+  val cbor = Cbor {
+    ignoreUnknownKeys = true
+  }
+
+  inline fun <reified T> encode(value: T): String =
+    fromBytes(cbor.encodeToByteArray(value))
+
+  inline fun <reified T> decode(data: String): T =
+    if (isBinary(data)) cbor.decodeFromByteArray(toBytes(data))
+    else data.toData()
+
+  fun isBinary(data: String) = data.startsWith(MARKER)
+
+  fun toBytes(data: String): ByteArray =
+    data.substring(MARKER.length).toByteArray(Charsets.ISO_8859_1)
+
+  fun fromBytes(bytes: ByteArray): String = MARKER + String(bytes, Charsets.ISO_8859_1)
+
+  /**
+   * Text-safe form for backends that cannot hold control characters.
+   */
+  fun toBase64(data: String): String =
+    if (isBinary(data)) BASE64_MARKER + Base64.encodeToString(toBytes(data), Base64.NO_WRAP)
+    else data
+
+  fun fromBase64(data: String): String =
+    if (data.startsWith(BASE64_MARKER))
+      fromBytes(Base64.decode(data.substring(BASE64_MARKER.length), Base64.NO_WRAP))
+    else data
+}
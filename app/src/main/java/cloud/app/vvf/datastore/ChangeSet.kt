@@ -0,0 +1,17 @@
+package cloud.app.vvf.datastore
+
+/**
+ * One emission of a [DataStore] observation, keyed by entry path. The first emission, and any
+ * after a bulk change such as a restore, has [reset] set and carries every matching entry.
+ */
+data class ChangeSet<T>(
+  val upserted: Map<String, T>,
+  val removed: Set<String> = emptySet(),
+  val reset: Boolean = false
+) {
+  /**
+   * Applies this change set on top of the entries collected so far.
+   */
+  fun applyTo(current: Map<String, T>): Map<String, T> =
+    if (reset) upserted else current - removed + upserted
+}
@@ -0,0 +1,123 @@
+package cloud.app.vvf.datastore
+
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Raw key/value backend used by [DataStore]. Values are already-encoded strings, keys are
+ * folder paths like `history_progress/tv-show-2020/1/3`.
+ */
+interface DataStorage {
+  fun getString(path: String): String?
+
+  /**
+   * @param columns secondary index values for the entry, or null to let the backend derive them
+   */
+  fun putString(path: String, value: String, columns: IndexColumns? = null)
+
+  fun remove(path: String)
+
+  fun contains(path: String): Boolean
+
+  fun keys(prefix: String): List<String>
+
+  fun count(prefix: String): Int = keys(prefix).size
+
+  /**
+   * Returns the path/value pairs under [prefix] that match [filter], most recently updated
+   * first. Backends without secondary indexes may return every entry under [prefix]; callers
+   * still check the decoded items.
+   */
+  fun query(prefix: String, filter: IndexFilter = IndexFilter.ALL): List<Pair<String, String>> =
+    keys(prefix).mapNotNull { key -> getString(key)?.let { key to it } }
+
+  /**
+   * Paths under [prefix] past its [keep] most recently updated entries, at most [limit] of them.
+   * Backends without a last-update index return nothing, so retention does not apply to them.
+   */
+  fun keysBeyondNewest(prefix: String, keep: Int, limit: Int): List<String> = emptyList()
+
+  /**
+   * Paths and last-update times under [prefix] updated strictly between [after] and [before],
+   * oldest first, at most [limit] of them. Empty on backends without a last-update index.
+   */
+  fun keysUpdatedBetween(prefix: String, after: Long, before: Long, limit: Int): List<Pair<String, Long>> =
+    emptyList()
+
+  /**
+   * Show and season ids indexed for the entries under [prefix], or null on backends without
+   * these indexes.
+   */
+  fun indexedMediaIds(prefix: String): Set<String>? = null
+
+  fun entries(): Map<String, String>
+
+  /**
+   * Visits every entry without holding them all in memory where the backend allows it.
+   */
+  fun forEachEntry(action: (path: String, value: String) -> Unit) =
+    entries().forEach { (path, value) -> action(path, value) }
+
+  fun clear()
+
+  /**
+   * Runs [block] as a single write batch where the backend supports it.
+   */
+  fun transaction(block: DataStorage.() -> Unit) = block()
+
+  /**
+   * Registers [listener] for every change to the stored entries, whoever makes it.
+   */
+  fun addChangeListener(listener: ChangeListener)
+
+  fun removeChangeListener(listener: ChangeListener)
+
+  fun interface ChangeListener {
+    /**
+     * @param path the changed entry, or null when any entry may have changed
+     */
+    fun onChanged(path: String?)
+  }
+}
+
+/**
+ * Keeps the [DataStorage.ChangeListener]s for backends that report their own writes.
+ */
+abstract class ObservableDataStorage : DataStorage {
+  private val listeners = CopyOnWriteArrayList<DataStorage.ChangeListener>()
+
+  override fun addChangeListener(listener: DataStorage.ChangeListener) {
+    listeners.addIfAbsent(listener)
+  }
+
+  override fun removeChangeListener(listener: DataStorage.ChangeListener) {
+    listeners.remove(listener)
+  }
+
+  protected fun notifyChanged(path: String?) {
+    listeners.forEach { it.onChanged(path) }
+  }
+}
+
+/**
+ * Secondary index values stored next to an entry.
+ */
+data class IndexColumns(
+  val lastUpdated: Long? = null,
+  val status: String? = null,
+  val showId: String? = null,
+  val seasonId: String? = null
+) {
+  companion object {
+    val EMPTY = IndexColumns()
+  }
+}
+
+data class IndexFilter(
+  val status: String? = null,
+  val showId: String? = null,
+  val seasonId: String? = null
+) {
+  companion object {
+    val ALL = IndexFilter()
+  }
+}
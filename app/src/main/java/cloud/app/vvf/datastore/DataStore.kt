@@ -2,46 +2,135 @@ package cloud.app.vvf.datastore
 
 import android.content.Context
 import android.content.SharedPreferences
-import cloud.app.vvf.common.utils.toData
 import cloud.app.vvf.common.utils.toJson
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.filter
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.launch
 import timber.log.Timber
 import java.io.File
 import androidx.core.content.edit
 
-//store object in shared preference base on folder path base on slug of object like media/show/season/episode
-abstract class DataStore(protected val sharedPreferences: SharedPreferences) {
+//store object in a pluggable storage base on folder path base on slug of object like media/show/season/episode
+abstract class DataStore(protected val storage: DataStorage) {
+
+  constructor(sharedPreferences: SharedPreferences) : this(SharedPreferencesStorage(sharedPreferences))
+
+  protected val decodedCache = DecodedCache()
+  private val cacheInvalidator = DataStorage.ChangeListener { decodedCache.invalidate(it) }
+
+  init {
+    storage.addChangeListener(cacheInvalidator)
+  }
+
+  /**
+   * Hit/miss counters of the decoded-object cache behind [get], [getAll] and [query].
+   */
+  val cacheStats: DecodedCache.Stats get() = decodedCache.stats
 
   fun removeKey(folder: String, path: String) {
     removeKey("$folder/$path")
   }
 
   fun containsKey(path: String): Boolean {
-    return sharedPreferences.contains(path)
+    return storage.contains(path)
   }
 
   fun removeKey(path: String) {
     try {
-      sharedPreferences.edit() { remove(path) }
+      storage.remove(path)
+      onKeyRemoved(path)
     } catch (e: Exception) {
       Timber.e(e)
     }
   }
 
+  /**
+   * Removes [paths] in one storage batch.
+   */
+  protected fun removeKeys(paths: List<String>) {
+    if (paths.isEmpty()) return
+    try {
+      storage.transaction { paths.forEach { remove(it) } }
+      paths.forEach { onKeyRemoved(it) }
+    } catch (e: Exception) {
+      Timber.e(e)
+    }
+  }
+
+  protected open fun onKeyRemoved(path: String) {}
+
+  /**
+   * Secondary index values for [value]; stores without indexed folders keep the default.
+   */
+  protected open fun indexColumnsOf(value: Any?): IndexColumns = IndexColumns.EMPTY
+
+  /**
+   * Folders written as [BinaryPayload]; everything else stays JSON. Reads accept both.
+   */
+  protected open fun isBinaryFolder(path: String) = false
+
+  /**
+   * Replaces parts of [value] that are stored once elsewhere with references before encoding.
+   */
+  protected open fun <T> shareReferences(value: T): T = value
+
+  /**
+   * Reverse of [shareReferences], applied after decoding.
+   */
+  protected open fun <T> resolveReferences(value: T): T = value
+
+  protected inline fun <reified T> encode(path: String, value: T): String {
+    val stored = shareReferences(value)
+    return if (isBinaryFolder(path)) BinaryPayload.encode(stored) else stored.toJson()
+  }
+
+  protected inline fun <reified T> decode(data: String): T =
+    resolveReferences(BinaryPayload.decode<T>(data))
 
   protected inline fun <reified T> set(path: String, value: T) {
     try {
-      Timber.i("setKey $path ${T::class.java} value = ${value.toJson()}")
-      sharedPreferences.edit() { putString(path, value.toJson()) }
+      storage.putString(path, encode(path, value), indexColumnsOf(value))
+      decodedCache.put(path, T::class.java, value)
     } catch (e: Exception) {
       Timber.e(e)
     }
   }
 
+  /**
+   * Like [set] but coalesced in memory when the storage is a [WriteBehindStorage]; for values
+   * rewritten many times a second such as playback and download progress.
+   */
+  protected inline fun <reified T> setDeferred(path: String, value: T) {
+    try {
+      val storage = storage
+      val data = encode(path, value)
+      if (storage is WriteBehindStorage) storage.enqueue(path, data, indexColumnsOf(value))
+      else storage.putString(path, data, indexColumnsOf(value))
+      decodedCache.put(path, T::class.java, value)
+    } catch (e: Exception) {
+      Timber.e(e)
+    }
+  }
+
+  /**
+   * Blocks until deferred writes are stored.
+   */
+  fun flush() {
+    (storage as? WriteBehindStorage)?.flush()
+  }
+
   protected inline fun <reified T> get(path: String): T? {
+    decodedCache.get<T>(path, T::class.java)?.let { return it }
     return try {
-      val data = sharedPreferences.getString(path, null)
-      Timber.i("path = $path data $data")
-      data?.toData<T>()
+      val generation = decodedCache.generation
+      val data = storage.getString(path)
+      data?.let { decode<T>(it) }?.also { decodedCache.put(path, T::class.java, it, generation) }
     } catch (e: Exception) {
       Timber.e(e)
       null
@@ -49,30 +138,133 @@ abstract class DataStore(protected val sharedPreferences: SharedPreferences) {
   }
 
   protected inline fun <reified T> getAll(path: String): List<T>? {
-    Timber.i("$path ${T::class.java}")
     return try {
-      val data = sharedPreferences.all.keys.filter { it.startsWith(path) }
+      val generation = decodedCache.generation
+      val data = storage.query(path)
       if (data.isEmpty()) return null
-      data.mapNotNull {
-        get<T>(it)
-      }
+      data.mapNotNull { (key, value) -> decodeCached<T>(key, value, generation) }
     } catch (e: Exception) {
       Timber.e(e)
       null
     }
   }
 
+  /**
+   * Like [getAll] but pre-filtered through the storage secondary indexes and ordered by
+   * last update, newest first.
+   */
+  protected inline fun <reified T> query(path: String, filter: IndexFilter = IndexFilter.ALL): List<T>? {
+    return try {
+      val generation = decodedCache.generation
+      val data = storage.query(path, filter)
+      if (data.isEmpty()) return null
+      data.mapNotNull { (key, value) -> decodeCached<T>(key, value, generation) }
+    } catch (e: Exception) {
+      Timber.e(e)
+      null
+    }
+  }
+
+  protected inline fun <reified T> decodeCached(path: String, data: String, generation: Long): T? {
+    decodedCache.get<T>(path, T::class.java)?.let { return it }
+    return try {
+      decode<T>(data)?.also { decodedCache.put(path, T::class.java, it, generation) }
+    } catch (e: Exception) {
+      Timber.e(e)
+      null
+    }
+  }
+
+  protected class PathChanges(val reset: Boolean, val paths: Set<String>)
+
+  /**
+   * Paths under [prefix] changed since the previous emission was collected. Changes made while
+   * the collector is busy are merged into the next emission; [PathChanges.reset] stands for
+   * "anything may have changed" and is always set on the first one.
+   */
+  protected fun changes(prefix: String): Flow<PathChanges> = callbackFlow {
+    val lock = Any()
+    var reset = true
+    val paths = LinkedHashSet<String>()
+    val signal = Channel<Unit>(Channel.CONFLATED)
+    val listener = DataStorage.ChangeListener { path ->
+      if (path != null && !path.startsWith(prefix)) return@ChangeListener
+      synchronized(lock) { if (path == null) reset = true else paths += path }
+      signal.trySend(Unit)
+    }
+    storage.addChangeListener(listener)
+    signal.trySend(Unit)
+    launch {
+      for (ignored in signal) {
+        val batch = synchronized(lock) {
+          PathChanges(reset, paths.toSet()).also {
+            reset = false
+            paths.clear()
+          }
+        }
+        send(batch)
+      }
+    }
+    awaitClose {
+      storage.removeChangeListener(listener)
+      signal.close()
+    }
+  }
+
+  /**
+   * Observes the entries under [prefix] accepted by [accept]. Only the changed paths are decoded
+   * after the first emission, so collectors can patch their rows instead of re-reading the folder.
+   */
+  protected inline fun <reified T> observe(
+    prefix: String,
+    filter: IndexFilter = IndexFilter.ALL,
+    crossinline accept: (T) -> Boolean = { true }
+  ): Flow<ChangeSet<T>> = changes(prefix).map { batch ->
+    if (batch.reset) {
+      val generation = decodedCache.generation
+      val entries = storage.query(prefix, filter).mapNotNull { (path, data) ->
+        decodeCached<T>(path, data, generation)?.takeIf { accept(it) }?.let { path to it }
+      }
+      ChangeSet(upserted = entries.toMap(), reset = true)
+    } else {
+      val upserted = LinkedHashMap<String, T>()
+      val removed = LinkedHashSet<String>()
+      batch.paths.forEach { path ->
+        val value = get<T>(path)
+        if (value != null && accept(value)) upserted[path] = value else removed += path
+      }
+      ChangeSet(upserted, removed)
+    }
+  }.filter { it.reset || it.upserted.isNotEmpty() || it.removed.isNotEmpty() }
+    .flowOn(Dispatchers.IO)
 
   protected fun count(path: String): Int {
     return try {
-      val data = sharedPreferences.all.keys.filter { it.startsWith(path) }
-      data.count()
+      storage.count(path)
     } catch (e: Exception) {
       Timber.e(e)
       0
     }
   }
 
+  /**
+   * One-shot move of a legacy preference file into [storage]. The file is emptied afterwards,
+   * so this is a no-op once done and picks up anything restored into it later.
+   */
+  protected fun migrateFrom(legacy: SharedPreferences) {
+    if (storage is SharedPreferencesStorage) return
+    val entries = legacy.all.mapNotNull { (key, value) -> (value as? String)?.let { key to it } }
+    if (entries.isEmpty()) return
+    try {
+      storage.transaction {
+        entries.forEach { (key, value) -> putString(key, value) }
+      }
+      legacy.edit { clear() }
+      Timber.i("Migrated ${entries.size} entries into ${storage.javaClass.simpleName}")
+    } catch (e: Exception) {
+      Timber.e(e)
+    }
+  }
 
 
   companion object {
@@ -83,4 +275,3 @@ abstract class DataStore(protected val sharedPreferences: SharedPreferences) {
   }
 
 }
-
@@ -0,0 +1,61 @@
+package cloud.app.vvf.datastore
+
+import android.util.LruCache
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Bounded cache of decoded [DataStore] values keyed by path. An entry only answers a lookup for
+ * the type it was decoded as. Cached objects are shared between callers, so they must not be
+ * mutated without being written back.
+ */
+class DecodedCache(maxSize: Int = DEFAULT_MAX_SIZE) {
+  private class Entry(val type: Class<*>, val value: Any)
+
+  data class Stats(val hits: Long, val misses: Long, val size: Int)
+
+  private val cache = LruCache<String, Entry>(maxSize)
+  private val hits = AtomicLong()
+  private val misses = AtomicLong()
+  private val invalidations = AtomicLong()
+
+  /**
+   * Changes on every invalidation. Take it before reading storage and pass it to [put], so a
+   * value read before a concurrent write cannot be cached after that write invalidated it.
+   */
+  val generation: Long get() = invalidations.get()
+
+  @Suppress("UNCHECKED_CAST")
+  fun <T> get(path: String, type: Class<*>): T? {
+    val entry = cache.get(path)
+    if (entry != null && entry.type == type) {
+      hits.incrementAndGet()
+      return entry.value as T
+    }
+    misses.incrementAndGet()
+    return null
+  }
+
+  fun put(path: String, type: Class<*>, value: Any?, generation: Long = this.generation) {
+    if (value == null) {
+      cache.remove(path)
+      return
+    }
+    synchronized(this) {
+      if (generation == invalidations.get()) cache.put(path, Entry(type, value))
+    }
+  }
+
+  fun invalidate(path: String?) {
+    synchronized(this) {
+      invalidations.incrementAndGet()
+      if (path == null) cache.evictAll()
+      else cache.remove(path)
+    }
+  }
+
+  val stats: Stats get() = Stats(hits.get(), misses.get(), cache.size())
+
+  companion object {
+    const val DEFAULT_MAX_SIZE = 1024
+  }
+}
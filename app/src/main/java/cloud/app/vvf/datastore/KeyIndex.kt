@@ -0,0 +1,34 @@
+package cloud.app.vvf.datastore
+
+import java.util.concurrent.ConcurrentSkipListSet
+
+/**
+ * Sorted set of stored keys, so listing or counting a folder costs a range lookup plus the
+ * matching keys instead of a pass over every key. Only [SharedPreferencesStorage] needs it,
+ * where the alternative copies the whole preference file per call; [SqliteStorage] answers
+ * prefix lookups from its primary key.
+ */
+internal class KeyIndex {
+  private val keys = ConcurrentSkipListSet<String>()
+
+  fun add(key: String) {
+    keys.add(key)
+  }
+
+  fun remove(key: String) {
+    keys.remove(key)
+  }
+
+  fun reset(all: Collection<String>) {
+    keys.clear()
+    keys.addAll(all)
+  }
+
+  fun keys(prefix: String): List<String> = range(prefix).toList()
+
+  fun count(prefix: String): Int = range(prefix).size
+
+  private fun range(prefix: String): Set<String> =
+    if (prefix.isEmpty()) keys
+    else keys.subSet(prefix, true, prefix.dropLast(1) + (prefix.last() + 1), false)
+}
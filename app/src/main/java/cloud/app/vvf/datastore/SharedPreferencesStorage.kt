@@ -0,0 +1,57 @@
+package cloud.app.vvf.datastore
+
+import android.content.SharedPreferences
+import androidx.core.content.edit
+
+/**
+ * Legacy backend keeping every entry as a JSON string in one preference file.
+ * Keys are listed from an in-memory [KeyIndex] built once from the file; it has no secondary
+ * indexes, so [query] returns the whole folder.
+ */
+class SharedPreferencesStorage(val sharedPreferences: SharedPreferences) : ObservableDataStorage() {
+
+  private val keyIndex = KeyIndex().apply { reset(sharedPreferences.all.keys) }
+
+  // Held here, SharedPreferences only keeps a weak reference to its listeners
+  private val preferenceListener =
+    SharedPreferences.OnSharedPreferenceChangeListener { _, key ->
+      // Also covers writes made to the file without going through this storage
+      if (key == null) keyIndex.reset(sharedPreferences.all.keys)
+      else if (sharedPreferences.contains(key)) keyIndex.add(key)
+      else keyIndex.remove(key)
+      notifyChanged(key)
+    }
+
+  init {
+    sharedPreferences.registerOnSharedPreferenceChangeListener(preferenceListener)
+  }
+
+  override fun getString(path: String): String? =
+    sharedPreferences.getString(path, null)?.let { BinaryPayload.fromBase64(it) }
+
+  override fun putString(path: String, value: String, columns: IndexColumns?) {
+    sharedPreferences.edit { putString(path, BinaryPayload.toBase64(value)) }
+    keyIndex.add(path)
+  }
+
+  override fun remove(path: String) {
+    sharedPreferences.edit { remove(path) }
+    keyIndex.remove(path)
+  }
+
+  override fun contains(path: String): Boolean = sharedPreferences.contains(path)
+
+  override fun keys(prefix: String): List<String> = keyIndex.keys(prefix)
+
+  override fun count(prefix: String): Int = keyIndex.count(prefix)
+
+  override fun entries(): Map<String, String> =
+    sharedPreferences.all.mapNotNull { (key, value) ->
+      (value as? String)?.let { key to BinaryPayload.fromBase64(it) }
+    }.toMap()
+
+  override fun clear() {
+    sharedPreferences.edit { clear() }
+    keyIndex.reset(emptyList())
+  }
+}
@@ -0,0 +1,225 @@
+package cloud.app.vvf.datastore
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.Cursor
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+
+/**
+ * SQLite backend. Every entry is a row keyed by its path, with the secondary index columns
+ * extracted at write time so list screens can filter and order without decoding every value.
+ * [BinaryPayload] values are kept as BLOBs.
+ *
+ * Instances are shared per database name, see [open].
+ */
+class SqliteStorage private constructor(
+  context: Context,
+  name: String,
+  private val columnsResolver: (path: String, value: String) -> IndexColumns
+) : ObservableDataStorage() {
+
+  private val helper = object : SQLiteOpenHelper(context, "$name$DB_SUFFIX", null, DB_VERSION) {
+    override fun onConfigure(db: SQLiteDatabase) {
+      db.enableWriteAheadLogging()
+    }
+
+    override fun onCreate(db: SQLiteDatabase) {
+      db.execSQL(
+        """
+        CREATE TABLE $TABLE (
+          $COL_PATH TEXT NOT NULL PRIMARY KEY,
+          $COL_VALUE TEXT NOT NULL,
+          $COL_LAST_UPDATED INTEGER,
+          $COL_STATUS TEXT,
+          $COL_SHOW_ID TEXT,
+          $COL_SEASON_ID TEXT
+        ) WITHOUT ROWID
+        """.trimIndent()
+      )
+      db.execSQL("CREATE INDEX idx_${TABLE}_last_updated ON $TABLE($COL_LAST_UPDATED)")
+      db.execSQL("CREATE INDEX idx_${TABLE}_status ON $TABLE($COL_STATUS)")
+      db.execSQL("CREATE INDEX idx_${TABLE}_show_id ON $TABLE($COL_SHOW_ID)")
+      db.execSQL("CREATE INDEX idx_${TABLE}_season_id ON $TABLE($COL_SEASON_ID)")
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) = Unit
+  }
+
+  private val db: SQLiteDatabase get() = helper.writableDatabase
+
+  override fun getString(path: String): String? =
+    db.query(TABLE, arrayOf(COL_VALUE), "$COL_PATH = ?", arrayOf(path), null, null, null)
+      .use { if (it.moveToFirst()) it.value(0) else null }
+
+  override fun putString(path: String, value: String, columns: IndexColumns?) {
+    val index = columns ?: columnsResolver(path, value)
+    val values = ContentValues().apply {
+      put(COL_PATH, path)
+      if (BinaryPayload.isBinary(value)) put(COL_VALUE, BinaryPayload.toBytes(value))
+      else put(COL_VALUE, value)
+      put(COL_LAST_UPDATED, index.lastUpdated)
+      put(COL_STATUS, index.status)
+      put(COL_SHOW_ID, index.showId)
+      put(COL_SEASON_ID, index.seasonId)
+    }
+    db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE)
+    notifyChanged(path)
+  }
+
+  override fun remove(path: String) {
+    db.delete(TABLE, "$COL_PATH = ?", arrayOf(path))
+    notifyChanged(path)
+  }
+
+  override fun contains(path: String): Boolean =
+    db.query(TABLE, arrayOf(COL_PATH), "$COL_PATH = ?", arrayOf(path), null, null, null)
+      .use { it.moveToFirst() }
+
+  override fun keys(prefix: String): List<String> {
+    val (selection, args) = where(prefix, IndexFilter.ALL)
+    return db.query(TABLE, arrayOf(COL_PATH), selection, args, null, null, null).use { cursor ->
+      buildList(cursor.count) {
+        while (cursor.moveToNext()) add(cursor.getString(0))
+      }
+    }
+  }
+
+  override fun count(prefix: String): Int {
+    val (selection, args) = where(prefix, IndexFilter.ALL)
+    return db.rawQuery("SELECT COUNT(*) FROM $TABLE WHERE $selection", args)
+      .use { if (it.moveToFirst()) it.getInt(0) else 0 }
+  }
+
+  override fun query(prefix: String, filter: IndexFilter): List<Pair<String, String>> {
+    val (selection, args) = where(prefix, filter)
+    return db.query(
+      TABLE, arrayOf(COL_PATH, COL_VALUE), selection, args, null, null, "$COL_LAST_UPDATED DESC"
+    ).use { cursor ->
+      buildList(cursor.count) {
+        while (cursor.moveToNext()) add(cursor.getString(0) to cursor.value(1))
+      }
+    }
+  }
+
+  override fun keysBeyondNewest(prefix: String, keep: Int, limit: Int): List<String> {
+    val (selection, args) = where(prefix, IndexFilter.ALL)
+    return db.query(
+      TABLE, arrayOf(COL_PATH), selection, args, null, null, "$COL_LAST_UPDATED DESC", "$keep,$limit"
+    ).use { cursor ->
+      buildList(cursor.count) {
+        while (cursor.moveToNext()) add(cursor.getString(0))
+      }
+    }
+  }
+
+  override fun keysUpdatedBetween(prefix: String, after: Long, before: Long, limit: Int): List<Pair<String, Long>> {
+    val (selection, args) = where(prefix, IndexFilter.ALL)
+    return db.query(
+      TABLE,
+      arrayOf(COL_PATH, COL_LAST_UPDATED),
+      "$selection AND $COL_LAST_UPDATED > ? AND $COL_LAST_UPDATED < ?",
+      args + after.toString() + before.toString(),
+      null,
+      null,
+      "$COL_LAST_UPDATED ASC",
+      limit.toString()
+    ).use { cursor ->
+      buildList(cursor.count) {
+        while (cursor.moveToNext()) add(cursor.getString(0) to cursor.getLong(1))
+      }
+    }
+  }
+
+  override fun indexedMediaIds(prefix: String): Set<String> {
+    val (selection, args) = where(prefix, IndexFilter.ALL)
+    return db.rawQuery(
+      "SELECT $COL_SHOW_ID FROM $TABLE WHERE $selection UNION SELECT $COL_SEASON_ID FROM $TABLE WHERE $selection",
+      args + args
+    ).use { cursor ->
+      buildSet {
+        while (cursor.moveToNext()) if (!cursor.isNull(0)) add(cursor.getString(0))
+      }
+    }
+  }
+
+  override fun entries(): Map<String, String> =
+    db.query(TABLE, arrayOf(COL_PATH, COL_VALUE), null, null, null, null, null).use { cursor ->
+      buildMap {
+        while (cursor.moveToNext()) put(cursor.getString(0), cursor.value(1))
+      }
+    }
+
+  override fun forEachEntry(action: (path: String, value: String) -> Unit) {
+    db.query(TABLE, arrayOf(COL_PATH, COL_VALUE), null, null, null, null, null).use { cursor ->
+      while (cursor.moveToNext()) action(cursor.getString(0), cursor.value(1))
+    }
+  }
+
+  override fun clear() {
+    db.delete(TABLE, null, null)
+    notifyChanged(null)
+  }
+
+  override fun transaction(block: DataStorage.() -> Unit) {
+    val database = db
+    database.beginTransaction()
+    try {
+      block()
+      database.setTransactionSuccessful()
+    } finally {
+      database.endTransaction()
+    }
+  }
+
+  private fun Cursor.value(index: Int): String =
+    if (getType(index) == Cursor.FIELD_TYPE_BLOB) BinaryPayload.fromBytes(getBlob(index))
+    else getString(index)
+
+  // Prefix match as a key range so it is answered from the primary key index
+  private fun where(prefix: String, filter: IndexFilter): Pair<String, Array<String>> {
+    val clauses = mutableListOf<String>()
+    val args = mutableListOf<String>()
+    if (prefix.isNotEmpty()) {
+      clauses += "$COL_PATH >= ? AND $COL_PATH < ?"
+      args += prefix
+      args += prefix.dropLast(1) + (prefix.last() + 1)
+    }
+    filter.status?.let { clauses += "$COL_STATUS = ?"; args += it }
+    filter.showId?.let { clauses += "$COL_SHOW_ID = ?"; args += it }
+    filter.seasonId?.let { clauses += "$COL_SEASON_ID = ?"; args += it }
+    if (clauses.isEmpty()) clauses += "1"
+    return clauses.joinToString(" AND ") to args.toTypedArray()
+  }
+
+  companion object {
+    const val DB_SUFFIX = ".store.db"
+    private const val DB_VERSION = 1
+
+    private const val TABLE = "entries"
+    private const val COL_PATH = "path"
+    private const val COL_VALUE = "value"
+    private const val COL_LAST_UPDATED = "last_updated"
+    private const val COL_STATUS = "status"
+    private const val COL_SHOW_ID = "show_id"
+    private const val COL_SEASON_ID = "season_id"
+
+    private val instances = mutableMapOf<String, SqliteStorage>()
+
+    fun open(
+      context: Context,
+      name: String,
+      columnsResolver: (path: String, value: String) -> IndexColumns = { _, _ -> IndexColumns.EMPTY }
+    ): SqliteStorage = synchronized(instances) {
+      instances.getOrPut(name) {
+        SqliteStorage(context.applicationContext, name, columnsResolver)
+      }
+    }
+
+    fun exists(context: Context, name: String) =
+      context.getDatabasePath("$name$DB_SUFFIX").exists()
+
+    fun storageNames(context: Context): List<String> =
+      context.databaseList().filter { it.endsWith(DB_SUFFIX) }.map { it.removeSuffix(DB_SUFFIX) }
+  }
+}
@@ -0,0 +1,183 @@
+package cloud.app.vvf.datastore
+
+import android.os.SystemClock
+import kotlinx.coroutines.CoroutineName
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import timber.log.Timber
+import java.util.Collections
+import java.util.WeakHashMap
+
+/**
+ * Write-behind decorator for [DataStorage]. Writes passed to [enqueue] are coalesced per key in
+ * memory and flushed to [delegate] as one batch once no new write arrived for [debounceMs], or at
+ * the latest [maxDelayMs] after the first pending write.
+ *
+ * Ordering per key is kept: batches are written one at a time in the order they were taken, and
+ * a direct [putString]/[remove] first drops the pending value for its key and waits for any batch
+ * in flight. Point reads see pending values; enumerating reads flush first.
+ */
+class WriteBehindStorage(
+  private val delegate: DataStorage,
+  private val debounceMs: Long = DEFAULT_DEBOUNCE_MS,
+  private val maxDelayMs: Long = DEFAULT_MAX_DELAY_MS
+) : ObservableDataStorage() {
+
+  private class PendingWrite(val value: String, val columns: IndexColumns?)
+
+  private val lock = Any()
+  private val flushLock = Any()
+  private val pending = LinkedHashMap<String, PendingWrite>()
+  private var firstPendingAt = 0L
+  private var flushJob: Job? = null
+  private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO + CoroutineName("WriteBehindStorage"))
+
+  init {
+    synchronized(instances) { instances.add(this) }
+  }
+
+  fun enqueue(path: String, value: String, columns: IndexColumns?) {
+    synchronized(lock) {
+      val now = SystemClock.elapsedRealtime()
+      if (pending.isEmpty()) firstPendingAt = now
+      pending[path] = PendingWrite(value, columns)
+
+      val delayMs = debounceMs.coerceAtMost(maxDelayMs - (now - firstPendingAt)).coerceAtLeast(0)
+      flushJob?.cancel()
+      flushJob = scope.launch {
+        delay(delayMs)
+        flush()
+      }
+    }
+    // Outside the lock: listeners take their own monitors, which may be held by a reader
+    // waiting on this lock to flush
+    notifyChanged(path)
+  }
+
+  /**
+   * Writes every pending value to [delegate] and returns once they are stored. Also the barrier
+   * to wait on before checking the delegate directly.
+   */
+  fun flush() {
+    synchronized(flushLock) {
+      val batch = synchronized(lock) {
+        if (pending.isEmpty()) return
+        pending.toList().also { pending.clear() }
+      }
+      try {
+        delegate.transaction {
+          batch.forEach { (path, write) -> putString(path, write.value, write.columns) }
+        }
+      } catch (e: Exception) {
+        Timber.e(e)
+        // Keep whatever was not superseded meanwhile for the next flush
+        synchronized(lock) {
+          batch.forEach { (path, write) -> if (!pending.containsKey(path)) pending[path] = write }
+        }
+      }
+    }
+  }
+
+  val pendingCount: Int get() = synchronized(lock) { pending.size }
+
+  override fun getString(path: String): String? {
+    synchronized(lock) { pending[path]?.let { return it.value } }
+    return delegate.getString(path)
+  }
+
+  override fun putString(path: String, value: String, columns: IndexColumns?) {
+    synchronized(flushLock) {
+      synchronized(lock) { pending.remove(path) }
+      delegate.putString(path, value, columns)
+    }
+    notifyChanged(path)
+  }
+
+  override fun remove(path: String) {
+    synchronized(flushLock) {
+      synchronized(lock) { pending.remove(path) }
+      delegate.remove(path)
+    }
+    notifyChanged(path)
+  }
+
+  override fun contains(path: String): Boolean {
+    synchronized(lock) { if (pending.containsKey(path)) return true }
+    return delegate.contains(path)
+  }
+
+  override fun keys(prefix: String): List<String> {
+    flush()
+    return delegate.keys(prefix)
+  }
+
+  override fun count(prefix: String): Int {
+    flush()
+    return delegate.count(prefix)
+  }
+
+  override fun query(prefix: String, filter: IndexFilter): List<Pair<String, String>> {
+    flush()
+    return delegate.query(prefix, filter)
+  }
+
+  override fun keysBeyondNewest(prefix: String, keep: Int, limit: Int): List<String> {
+    flush()
+    return delegate.keysBeyondNewest(prefix, keep, limit)
+  }
+
+  override fun keysUpdatedBetween(prefix: String, after: Long, before: Long, limit: Int): List<Pair<String, Long>> {
+    flush()
+    return delegate.keysUpdatedBetween(prefix, after, before, limit)
+  }
+
+  override fun indexedMediaIds(prefix: String): Set<String>? {
+    flush()
+    return delegate.indexedMediaIds(prefix)
+  }
+
+  override fun entries(): Map<String, String> {
+    flush()
+    return delegate.entries()
+  }
+
+  override fun forEachEntry(action: (path: String, value: String) -> Unit) {
+    flush()
+    delegate.forEachEntry(action)
+  }
+
+  override fun clear() {
+    synchronized(flushLock) {
+      synchronized(lock) { pending.clear() }
+      delegate.clear()
+    }
+    notifyChanged(null)
+  }
+
+  override fun transaction(block: DataStorage.() -> Unit) {
+    synchronized(flushLock) {
+      flush()
+      delegate.transaction(block)
+    }
+    notifyChanged(null)
+  }
+
+  companion object {
+    const val DEFAULT_DEBOUNCE_MS = 2_000L
+    const val DEFAULT_MAX_DELAY_MS = 10_000L
+
+    private val instances = Collections.newSetFromMap(WeakHashMap<WriteBehindStorage, Boolean>())
+
+    /**
+     * Flushes every live instance; called when the app goes to background or is about to die.
+     */
+    fun flushAll() {
+      val storages = synchronized(instances) { instances.toList() }
+      storages.forEach { it.flush() }
+    }
+  }
+}
@@ -4,7 +4,9 @@ import android.content.Context
 import cloud.app.vvf.R
 import cloud.app.vvf.common.models.extension.ExtensionMetadata
 import cloud.app.vvf.common.models.extension.ExtensionType
+import cloud.app.vvf.datastore.DataStorage
 import cloud.app.vvf.datastore.DataStore
+import cloud.app.vvf.datastore.SharedPreferencesStorage
 import kotlinx.serialization.Serializable
 
 
@@ -21,8 +23,12 @@ data class Account(
   fun getSlug() = id
 }
 
-class AccountDataStore(val context: Context) :
-  DataStore(context.getSharedPreferences("accounts_preference", Context.MODE_PRIVATE)) {
+class AccountDataStore(
+  val context: Context,
+  storage: DataStorage = SharedPreferencesStorage(
+    context.getSharedPreferences("accounts_preference", Context.MODE_PRIVATE)
+  )
+) : DataStore(storage) {
   fun removeAccount(slug: Long) {
     return removeKey("$ACCOUNTS_FOLDER/${slug}")
   }
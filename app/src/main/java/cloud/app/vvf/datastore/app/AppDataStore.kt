@@ -9,16 +9,33 @@ import cloud.app.vvf.common.models.AVPMediaItem.PlaybackProgress
 import cloud.app.vvf.common.models.extension.ExtensionMetadata
 import cloud.app.vvf.common.models.SearchItem
 import cloud.app.vvf.common.models.user.User
+import cloud.app.vvf.common.utils.toJson
+import cloud.app.vvf.datastore.BinaryPayload
+import cloud.app.vvf.datastore.ChangeSet
+import cloud.app.vvf.datastore.DataStorage
 import cloud.app.vvf.datastore.DataStore
+import cloud.app.vvf.datastore.IndexColumns
+import cloud.app.vvf.datastore.IndexFilter
+import cloud.app.vvf.datastore.SqliteStorage
+import cloud.app.vvf.datastore.WriteBehindStorage
 import cloud.app.vvf.datastore.account.Account
 import cloud.app.vvf.datastore.app.helper.BOOKMARK_FOLDER
 import cloud.app.vvf.datastore.app.helper.BookmarkItem
 import cloud.app.vvf.datastore.app.helper.PlayerSettingItem
+import cloud.app.vvf.datastore.app.helper.RetentionPolicy
+import cloud.app.vvf.datastore.app.helper.SHARED_MEDIA_FOLDER
+import cloud.app.vvf.datastore.app.helper.SharedMediaRefs
 import cloud.app.vvf.datastore.app.helper.UriHistoryItem
+import cloud.app.vvf.datastore.app.helper.WATCHED_FOLDER
+import cloud.app.vvf.datastore.app.helper.WatchedMarker
 import cloud.app.vvf.features.player.subtitle.DEF_SUBS_ELEVATION
 import cloud.app.vvf.features.player.subtitle.SubtitleStyle
 import cloud.app.vvf.services.downloader.DownloadData
 import cloud.app.vvf.services.downloader.DownloadStatus
+import kotlinx.coroutines.flow.Flow
+import timber.log.Timber
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
 
 
 const val ExtensionFolder = "extensionDir"
@@ -29,14 +46,103 @@ const val PLAYER_SETTING_FOLDER = "player_setting"
 const val USERS_FOLDER = "users"
 const val PlaybackProgressFolder = "history_progress"
 const val DOWNLOAD_FOLDER = "downloads"
+const val DOWNLOAD_QUEUE = "download_queue"
+const val APP_DATA_STORE_PREFIX = "account_"
+
+/**
+ * Per-account app data. Obtained through [of], so each storage has a single store registering its
+ * listeners on it.
+ */
+class AppDataStore private constructor(
+  val context: Context,
+  account: Account,
+  storage: DataStorage = openStorage(context, storageName(account))
+) : DataStore(storage) {
+
+  @Volatile
+  var account: Account = account
+    private set
+
+  init {
+    migrateFrom(context.getSharedPreferences(storageName(account), Context.MODE_PRIVATE))
+  }
+
+  private val progressIndex = PlaybackProgressIndex()
+
+  // Progress path this instance is writing on the current thread; it updates the index itself
+  private val ownProgressWrite = ThreadLocal<String?>()
+
+  // Shared parents as stored, by id, for those this instance shared
+  private val sharedMedia = ConcurrentHashMap<String, AVPMediaItem>()
+
+  // Restores, migrations and other instances on the same storage change progress and shared
+  // parents behind what this instance remembers of them
+  private val storageInvalidator = DataStorage.ChangeListener { path ->
+    when {
+      path == null -> {
+        progressIndex.clear()
+        sharedMedia.clear()
+      }
+
+      path.startsWith("$PlaybackProgressFolder/") && path != ownProgressWrite.get() ->
+        progressIndex.invalidate(path.removePrefix("$PlaybackProgressFolder/"))
+
+      path.startsWith("$SHARED_MEDIA_FOLDER/") ->
+        sharedMedia.remove(path.removePrefix("$SHARED_MEDIA_FOLDER/"))
+    }
+  }
+
+  init {
+    storage.addChangeListener(storageInvalidator)
+  }
+
+  // Last update time reached by the running watched-folding pass
+  @Volatile
+  private var foldCursor = Long.MIN_VALUE
+
+  override fun indexColumnsOf(value: Any?): IndexColumns = columnsOf(value)
+
+  override fun isBinaryFolder(path: String) = BINARY_FOLDERS.any { path.startsWith("$it/") }
 
-class AppDataStore(val context: Context, val account: Account) :
-  DataStore(context.getSharedPreferences("account_${account.getSlug()}", Context.MODE_PRIVATE)) {
+  @Suppress("UNCHECKED_CAST")
+  override fun <T> shareReferences(value: T): T = when (value) {
+    is PlaybackProgress -> value.copy(item = share(value.item)) as T
+    is BookmarkItem -> value.withItem(share(value.item)) as T
+    else -> value
+  }
+
+  @Suppress("UNCHECKED_CAST")
+  override fun <T> resolveReferences(value: T): T = when (value) {
+    is PlaybackProgress -> value.copy(item = SharedMediaRefs.resolve(value.item, ::getSharedMedia)) as T
+    is BookmarkItem -> value.withItem(SharedMediaRefs.resolve(value.item, ::getSharedMedia)) as T
+    else -> value
+  }
+
+  private fun share(item: AVPMediaItem): AVPMediaItem {
+    SharedMediaRefs.parentsOf(item).forEach { parent ->
+      val id = parent.id.toString()
+      // Written when new or changed, a show gaining seasons or new artwork, so entries resolve it
+      if ((sharedMedia[id] ?: getSharedMedia(id)) != parent) {
+        set<AVPMediaItem>("$SHARED_MEDIA_FOLDER/$id", parent)
+      }
+      sharedMedia[id] = parent
+    }
+    return SharedMediaRefs.strip(item)
+  }
+
+  private fun getSharedMedia(id: String): AVPMediaItem? = get<AVPMediaItem>("$SHARED_MEDIA_FOLDER/$id")
+
+  override fun onKeyRemoved(path: String) {
+    if (path.startsWith("$PlaybackProgressFolder/"))
+      progressIndex.remove(path.removePrefix("$PlaybackProgressFolder/"))
+  }
 
   fun getAllBookmarks(): List<BookmarkItem>? {
-    return getAll<BookmarkItem>("$BOOKMARK_FOLDER/")?.sortedByDescending { it.lastUpdated }
+    return query<BookmarkItem>("$BOOKMARK_FOLDER/")?.sortedByDescending { it.lastUpdated }
   }
 
+  fun observeBookmarks(): Flow<ChangeSet<BookmarkItem>> = observe("$BOOKMARK_FOLDER/")
+
   fun addToBookmark(data: BookmarkItem?) {
     if (data == null) return
     set("$BOOKMARK_FOLDER/${data.item.id}", data)
@@ -120,7 +226,17 @@ class AppDataStore(val context: Context, val account: Account) :
   fun updateProgress(data: PlaybackProgress): Boolean {
     data.lastUpdated = System.currentTimeMillis()
     if (data.item is AVPMediaItem.EpisodeItem || data.item is AVPMediaItem.MovieItem || data.item is AVPMediaItem.VideoItem) {
-      set("$PlaybackProgressFolder/${data.item.id}", data)
+      val path = "$PlaybackProgressFolder/${data.item.id}"
+      ownProgressWrite.set(path)
+      try {
+        setDeferred(path, data)
+      } finally {
+        ownProgressWrite.remove()
+      }
+      progressIndex.put(data)
+      // Rewatching a compacted item, the progress entry takes over again
+      val marker = "$WATCHED_FOLDER/${data.item.id}"
+      if (containsKey(marker)) removeKey(marker)
       return true
     }
     return false
@@ -128,28 +244,20 @@ class AppDataStore(val context: Context, val account: Account) :
 
   fun findPlaybackProgress(seasonItem: AVPMediaItem.SeasonItem?): List<PlaybackProgress>? {
     if (seasonItem == null) return null
-    return getAll<PlaybackProgress>(
-      "$PlaybackProgressFolder/"
-    )?.mapNotNull { item ->
-      when (item.item) {
-        is AVPMediaItem.EpisodeItem -> {
-          if ((item.item as AVPMediaItem.EpisodeItem).seasonItem.id == seasonItem.id)
-            item
-          else
-            null
-        }
-
-        else -> null
-      }
-    }
-    return null
+    return progressIndex.season(seasonItem.id.toString()) { loadSeasonProgress(seasonItem) }
+      .takeIf { it.isNotEmpty() }
   }
 
   fun findPlaybackProgress(mediaItem: AVPMediaItem): PlaybackProgress? =
     when (mediaItem) {
-      is AVPMediaItem.EpisodeItem,
+      is AVPMediaItem.EpisodeItem -> progressIndex.episode(
+        mediaItem.seasonItem.id.toString(),
+        mediaItem.id.toString()
+      ) { loadSeasonProgress(mediaItem.seasonItem) } ?: watchedProgress(mediaItem)
+
       is AVPMediaItem.MovieItem,
       is AVPMediaItem.VideoItem -> getAll<PlaybackProgress>("$PlaybackProgressFolder/${mediaItem.id}")?.maxByOrNull { it.lastUpdated }
+        ?: watchedProgress(mediaItem)
 
       else -> null
     }
@@ -158,15 +266,46 @@ class AppDataStore(val context: Context, val account: Account) :
     getAll<PlaybackProgress>("$PlaybackProgressFolder/$slug")?.maxByOrNull { it.lastUpdated }
 
   fun getWatchedEpisodeCount(seasonItem: AVPMediaItem.SeasonItem): Int {
-    return count("$PlaybackProgressFolder/${seasonItem.id}")
+    return progressIndex.seasonSize(seasonItem.id.toString()) { loadSeasonProgress(seasonItem) } +
+      count("$WATCHED_FOLDER/${seasonItem.id}/")
   }
 
+  /**
+   * Full progress rebuilt from the [WatchedMarker] left when [mediaItem] was compacted.
+   */
+  private fun watchedProgress(mediaItem: AVPMediaItem): PlaybackProgress? =
+    get<WatchedMarker>("$WATCHED_FOLDER/${mediaItem.id}")?.let {
+      PlaybackProgress(mediaItem, it.duration, it.duration, it.lastUpdated)
+    }
+
   fun getLatestPlaybackProgress(mediaItem: AVPMediaItem): PlaybackProgress? = when (mediaItem) {
-    is AVPMediaItem.SeasonItem,
-    is AVPMediaItem.ShowItem -> getAll<PlaybackProgress>("$PlaybackProgressFolder/${mediaItem.id}")?.maxByOrNull { it.lastUpdated }
+    is AVPMediaItem.SeasonItem -> findPlaybackProgress(mediaItem)?.maxByOrNull { it.lastUpdated }
+    is AVPMediaItem.ShowItem -> progressIndex.show(mediaItem.id.toString()) { loadShowProgress(mediaItem) }
+      .maxByOrNull { it.lastUpdated }
+
     else -> null
   }
 
+  /**
+   * Progress entries of every episode of the show [showId], updated as playback goes on.
+   */
+  fun observeProgress(showId: String): Flow<ChangeSet<PlaybackProgress>> =
+    observe("$PlaybackProgressFolder/$showId/", IndexFilter(showId = showId)) {
+      showIdOf(it.item) == showId
+    }
+
+  private fun loadSeasonProgress(seasonItem: AVPMediaItem.SeasonItem): List<PlaybackProgress> =
+    query<PlaybackProgress>(
+      "$PlaybackProgressFolder/${seasonItem.id}/",
+      IndexFilter(seasonId = seasonItem.id.toString())
+    )?.filter { (it.item as? AVPMediaItem.EpisodeItem)?.seasonItem?.id == seasonItem.id }.orEmpty()
+
+  private fun loadShowProgress(showItem: AVPMediaItem.ShowItem): List<PlaybackProgress> =
+    query<PlaybackProgress>(
+      "$PlaybackProgressFolder/${showItem.id}/",
+      IndexFilter(showId = showItem.id.toString())
+    )?.filter { (it.item as? AVPMediaItem.EpisodeItem)?.seasonItem?.showItem?.id == showItem.id }.orEmpty()
+
   fun getALlPlayback(): List<PlaybackProgress>? {
     val data = getAll<PlaybackProgress>("$PlaybackProgressFolder/")
 
@@ -180,8 +319,97 @@ class AppDataStore(val context: Context, val account: Account) :
       ?.sortedBy { item -> item.lastUpdated }
   }
 
+  /**
+   * One bounded step of history retention: folds up to [batchSize] fully watched progress
+   * entries older than [WATCHED_FOLD_AGE_MS] into [WatchedMarker]s, then evicts up to
+   * [batchSize] entries per folder past its [RETENTION_POLICIES] caps, least recently updated
+   * first. Fully watched progress past the caps is folded as well rather than deleted, so the
+   * watched state outlives the retention of the progress itself. Shared parents no progress or
+   * bookmark refers to anymore are dropped last.
+   *
+   * @return true while work is left, so callers can step again after yielding
+   */
+  fun compact(batchSize: Int = COMPACTION_BATCH_SIZE, now: Long = System.currentTimeMillis()): Boolean {
+    var more = foldWatched(batchSize, now)
+    RETENTION_POLICIES.forEach { policy ->
+      val prefix = "${policy.folder}/"
+      val expired = storage.keysUpdatedBetween(prefix, Long.MIN_VALUE, now - policy.maxAgeMs, batchSize)
+        .map { it.first }
+      val overflow = storage.keysBeyondNewest(prefix, policy.maxCount, batchSize - expired.size)
+      val evicted = (expired + overflow).distinct()
+      val folded = if (policy.folder == PlaybackProgressFolder) fold(evicted) else emptySet()
+      removeKeys(evicted.filter { it !in folded })
+      if (evicted.size >= batchSize) more = true
+    }
+    if (sweepSharedMedia(batchSize)) more = true
+    return more
+  }
+
+  /**
+   * Removes up to [batchSize] shared parents referenced by no progress or bookmark entry. Parents
+   * this instance shared are kept, the entry referring to them may still be on its way.
+   */
+  private fun sweepSharedMedia(batchSize: Int): Boolean {
+    val progressIds = storage.indexedMediaIds("$PlaybackProgressFolder/") ?: return false
+    val bookmarkIds = storage.indexedMediaIds("$BOOKMARK_FOLDER/") ?: return false
+    val orphans = storage.keys("$SHARED_MEDIA_FOLDER/").filter { path ->
+      val id = path.removePrefix("$SHARED_MEDIA_FOLDER/")
+      id !in progressIds && id !in bookmarkIds && !sharedMedia.containsKey(id)
+    }
+    removeKeys(orphans.take(batchSize))
+    return orphans.size > batchSize
+  }
+
+  private fun foldWatched(batchSize: Int, now: Long): Boolean {
+    val candidates = storage.keysUpdatedBetween(
+      "$PlaybackProgressFolder/", foldCursor, now - WATCHED_FOLD_AGE_MS, batchSize
+    )
+    if (candidates.isEmpty()) {
+      foldCursor = Long.MIN_VALUE
+      return false
+    }
+    fold(candidates.map { it.first })
+    foldCursor = candidates.last().second
+    return candidates.size >= batchSize
+  }
+
+  /**
+   * Replaces the fully watched progress entries among [paths] with [WatchedMarker]s and returns
+   * their paths.
+   */
+  private fun fold(paths: List<String>): Set<String> {
+    if (paths.isEmpty()) return emptySet()
+    return try {
+      // Decoded without joining the shared parents, the stub item still carries their ids
+      val watched = paths.mapNotNull { path ->
+        storage.getString(path)?.let { BinaryPayload.decode<PlaybackProgress>(it) }
+          ?.takeIf { it.getPercent() >= WATCHED_PERCENT }
+          ?.let { path to it }
+      }
+      if (watched.isEmpty()) return emptySet()
+      storage.transaction {
+        watched.forEach { (path, progress) ->
+          val marker = WatchedMarker(
+            id = path.removePrefix("$PlaybackProgressFolder/"),
+            duration = progress.duration,
+            lastUpdated = progress.lastUpdated,
+            showId = showIdOf(progress.item),
+            seasonId = seasonIdOf(progress.item)
+          )
+          putString("$WATCHED_FOLDER/${marker.id}", marker.toJson(), columnsOf(marker))
+          remove(path)
+        }
+      }
+      watched.forEach { (path, _) -> onKeyRemoved(path) }
+      watched.map { it.first }.toSet()
+    } catch (e: Exception) {
+      Timber.e(e)
+      emptySet()
+    }
+  }
+
   fun getSearchHistory(): List<SearchItem>? {
-    return getAll<SearchItem>(
+    return query<SearchItem>(
       "$SEARCH_HISTORY_FOLDER/"
     )?.sortedByDescending { it.searchedAt }
   }
@@ -202,7 +430,7 @@ class AppDataStore(val context: Context, val account: Account) :
     return set("$URI_HISTORY_FOLDER/${item.id}", item)
   }
   fun getUriHistory(): List<UriHistoryItem>? {
-    return getAll<UriHistoryItem>(
+    return query<UriHistoryItem>(
       "$URI_HISTORY_FOLDER/"
     )?.sortedByDescending { it.lastUpdated }
   }
@@ -250,14 +478,14 @@ class AppDataStore(val context: Context, val account: Account) :
 
   // Download functionality methods
   fun getAllDownloads(): List<DownloadData>? {
-    return getAll<DownloadData>("$DOWNLOAD_FOLDER/")?.sortedByDescending { it.updatedAt }
+    return query<DownloadData>("$DOWNLOAD_FOLDER/")?.sortedByDescending { it.updatedAt }
   }
 
   fun saveDownload(downloadData: DownloadData) {
     val updateData = downloadData.copy(
       updatedAt = System.currentTimeMillis()
     )
-    set("$DOWNLOAD_FOLDER/${updateData.id}", updateData)
+    setDeferred("$DOWNLOAD_FOLDER/${updateData.id}", updateData)
   }
 
   fun getDownload(downloadId: String): DownloadData? {
@@ -296,7 +524,9 @@ class AppDataStore(val context: Context, val account: Account) :
   }
 
   fun getDownloadsByStatus(status: DownloadStatus): List<DownloadData>? {
-    return getAllDownloads()?.filter { it.status == status }
+    return query<DownloadData>("$DOWNLOAD_FOLDER/", IndexFilter(status = status.name))
+      ?.filter { it.status == status }
+      ?.sortedByDescending { it.updatedAt }
   }
 
   fun getActiveDownloads(): List<DownloadData>? {
@@ -314,4 +544,114 @@ class AppDataStore(val context: Context, val account: Account) :
   fun getDownloadByMediaItem(mediaItem: AVPMediaItem): DownloadData? {
     return getAllDownloads()?.firstOrNull { it.mediaItem?.id == mediaItem.id }
   }
+
+  /**
+   * Ids of the downloads waiting to start, in the order they will be started.
+   */
+  fun getDownloadQueue(): List<String> = get<List<String>>("$DOWNLOAD_QUEUE/") ?: emptyList()
+
+  fun saveDownloadQueue(downloadIds: List<String>) {
+    // Rewritten on every promotion and reorder, often from the main thread
+    setDeferred("$DOWNLOAD_QUEUE/", downloadIds)
+  }
+
+  companion object {
+    private val BINARY_FOLDERS = listOf(
+      BOOKMARK_FOLDER,
+      PlaybackProgressFolder,
+      FAVORITE_FOLDER,
+      SHARED_MEDIA_FOLDER
+    )
+
+    private val RETENTION_POLICIES = listOf(
+      RetentionPolicy(SEARCH_HISTORY_FOLDER, maxCount = 100, maxAgeMs = TimeUnit.DAYS.toMillis(180)),
+      RetentionPolicy(URI_HISTORY_FOLDER, maxCount = 100, maxAgeMs = TimeUnit.DAYS.toMillis(365)),
+      RetentionPolicy(PlaybackProgressFolder, maxCount = 1000, maxAgeMs = TimeUnit.DAYS.toMillis(365))
+    )
+
+    const val COMPACTION_BATCH_SIZE = 100
+    private const val WATCHED_PERCENT = 90
+    private val WATCHED_FOLD_AGE_MS = TimeUnit.DAYS.toMillis(30)
+
+    private val storages = mutableMapOf<String, WriteBehindStorage>()
+    private val stores = mutableMapOf<String, AppDataStore>()
+
+    fun storageName(account: Account) = "$APP_DATA_STORE_PREFIX${account.getSlug()}"
+
+    /**
+     * The store of [account], built once per storage; switching back to an account reuses it.
+     */
+    fun of(context: Context, account: Account): AppDataStore = synchronized(stores) {
+      stores.getOrPut(storageName(account)) { AppDataStore(context.applicationContext, account) }
+        .also { it.account = account }
+    }
+
+    fun openStorage(context: Context, name: String): DataStorage = synchronized(storages) {
+      storages.getOrPut(name) {
+        WriteBehindStorage(SqliteStorage.open(context, name) { path, value -> columnsOf(path, value) })
+      }
+    }
+
+    fun columnsOf(value: Any?): IndexColumns = when (value) {
+      is BookmarkItem -> IndexColumns(
+        lastUpdated = value.lastUpdated,
+        showId = showIdOf(value.item),
+        seasonId = seasonIdOf(value.item)
+      )
+
+      is PlaybackProgress -> IndexColumns(
+        lastUpdated = value.lastUpdated,
+        showId = showIdOf(value.item),
+        seasonId = seasonIdOf(value.item)
+      )
+
+      is DownloadData -> IndexColumns(
+        lastUpdated = value.updatedAt,
+        status = value.status.name,
+        showId = value.mediaItem?.let { showIdOf(it) },
+        seasonId = value.mediaItem?.let { seasonIdOf(it) }
+      )
+
+      is SearchItem -> IndexColumns(lastUpdated = value.searchedAt)
+      is UriHistoryItem -> IndexColumns(lastUpdated = value.lastUpdated)
+      is ExtensionMetadata -> IndexColumns(lastUpdated = value.lastUpdated)
+      is WatchedMarker -> IndexColumns(
+        lastUpdated = value.lastUpdated,
+        showId = value.showId,
+        seasonId = value.seasonId
+      )
+      else -> IndexColumns.EMPTY
+    }
+
+    /**
+     * Index values for an already-encoded entry, used by migration and restore.
+     */
+    fun columnsOf(path: String, value: String): IndexColumns = try {
+      when (path.substringBefore('/')) {
+        BOOKMARK_FOLDER -> columnsOf(BinaryPayload.decode<BookmarkItem>(value))
+        PlaybackProgressFolder -> columnsOf(BinaryPayload.decode<PlaybackProgress>(value))
+        DOWNLOAD_FOLDER -> columnsOf(BinaryPayload.decode<DownloadData>(value))
+        SEARCH_HISTORY_FOLDER -> columnsOf(BinaryPayload.decode<SearchItem>(value))
+        URI_HISTORY_FOLDER -> columnsOf(BinaryPayload.decode<UriHistoryItem>(value))
+        WATCHED_FOLDER -> columnsOf(BinaryPayload.decode<WatchedMarker>(value))
+        else -> IndexColumns.EMPTY
+      }
+    } catch (e: Exception) {
+      Timber.e(e)
+      IndexColumns.EMPTY
+    }
+
+    private fun showIdOf(item: AVPMediaItem): String? = when (item) {
+      is AVPMediaItem.ShowItem -> item.id.toString()
+      is AVPMediaItem.SeasonItem -> item.showItem.id.toString()
+      is AVPMediaItem.EpisodeItem -> item.seasonItem.showItem.id.toString()
+      else -> null
+    }
+
+    private fun seasonIdOf(item: AVPMediaItem): String? = when (item) {
+      is AVPMediaItem.SeasonItem -> item.id.toString()
+      is AVPMediaItem.EpisodeItem -> item.seasonItem.id.toString()
+      else -> null
+    }
+  }
 }
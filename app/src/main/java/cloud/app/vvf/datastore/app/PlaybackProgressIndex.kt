@@ -0,0 +1,101 @@
+package cloud.app.vvf.datastore.app
+
+import cloud.app.vvf.common.models.AVPMediaItem
+import cloud.app.vvf.common.models.AVPMediaItem.PlaybackProgress
+
+/**
+ * In-memory show id -> season id -> episode id index over the episode entries of
+ * [PlaybackProgressFolder]. Seasons and shows are loaded from storage the first time they are
+ * asked for and kept current by [put]/[remove] afterwards, so repeated lookups while a detail
+ * page binds never touch storage again. Changes made elsewhere drop what they touch through
+ * [invalidate] and [clear].
+ */
+class PlaybackProgressIndex {
+  private val seasons = HashMap<String, HashMap<String, PlaybackProgress>>()
+  private val showSeasons = HashMap<String, HashSet<String>>()
+  private val loadedShows = HashSet<String>()
+  private val episodeSeason = HashMap<String, String>()
+
+  @Synchronized
+  fun season(seasonId: String, load: () -> List<PlaybackProgress>): List<PlaybackProgress> {
+    if (!seasons.containsKey(seasonId)) {
+      seasons[seasonId] = HashMap()
+      load().forEach { index(it) }
+    }
+    return seasons[seasonId]?.values?.toList().orEmpty()
+  }
+
+  @Synchronized
+  fun seasonSize(seasonId: String, load: () -> List<PlaybackProgress>): Int {
+    if (!seasons.containsKey(seasonId)) season(seasonId, load)
+    return seasons[seasonId]?.size ?: 0
+  }
+
+  @Synchronized
+  fun episode(seasonId: String, episodeId: String, load: () -> List<PlaybackProgress>): PlaybackProgress? {
+    if (!seasons.containsKey(seasonId)) season(seasonId, load)
+    return seasons[seasonId]?.get(episodeId)
+  }
+
+  @Synchronized
+  fun show(showId: String, load: () -> List<PlaybackProgress>): List<PlaybackProgress> {
+    if (loadedShows.add(showId)) {
+      load().forEach { progress ->
+        val episode = progress.item as? AVPMediaItem.EpisodeItem ?: return@forEach
+        seasons.getOrPut(episode.seasonItem.id.toString()) { HashMap() }
+        index(progress)
+      }
+    }
+    return showSeasons[showId].orEmpty().flatMap { seasons[it]?.values.orEmpty() }
+  }
+
+  /**
+   * Records a write. Seasons that were never loaded are skipped, they will read the entry
+   * from storage on first use.
+   */
+  @Synchronized
+  fun put(progress: PlaybackProgress) {
+    val episode = progress.item as? AVPMediaItem.EpisodeItem ?: return
+    val seasonId = episode.seasonItem.id.toString()
+    if (seasons.containsKey(seasonId) || episode.seasonItem.showItem.id.toString() in loadedShows) {
+      seasons.getOrPut(seasonId) { HashMap() }
+      index(progress)
+    }
+  }
+
+  @Synchronized
+  fun remove(episodeId: String) {
+    val seasonId = episodeSeason.remove(episodeId) ?: return
+    seasons[seasonId]?.remove(episodeId)
+  }
+
+  /**
+   * Forgets the season of [episodeId] and the shows holding it, so their next lookup reads
+   * storage again. Episode ids nest in their season id, `show/season/episode`.
+   */
+  @Synchronized
+  fun invalidate(episodeId: String) {
+    val seasonId = episodeSeason[episodeId] ?: episodeId.substringBeforeLast('/', "")
+    seasons.remove(seasonId)?.keys?.forEach { episodeSeason.remove(it) }
+    showSeasons.forEach { (showId, seasonIds) -> if (seasonIds.remove(seasonId)) loadedShows.remove(showId) }
+    loadedShows.remove(seasonId.substringBeforeLast('/', ""))
+  }
+
+  @Synchronized
+  fun clear() {
+    seasons.clear()
+    showSeasons.clear()
+    loadedShows.clear()
+    episodeSeason.clear()
+  }
+
+  private fun index(progress: PlaybackProgress) {
+    val episode = progress.item as? AVPMediaItem.EpisodeItem ?: return
+    val seasonId = episode.seasonItem.id.toString()
+    val bucket = seasons[seasonId] ?: return
+    val episodeId = episode.id.toString()
+    bucket[episodeId] = progress
+    episodeSeason[episodeId] = seasonId
+    showSeasons.getOrPut(episode.seasonItem.showItem.id.toString()) { HashSet() }.add(seasonId)
+  }
+}
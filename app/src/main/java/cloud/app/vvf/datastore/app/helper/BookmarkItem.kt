@@ -11,6 +11,14 @@ sealed class BookmarkItem {
   abstract val item: AVPMediaItem
   abstract val lastUpdated: Long
 
+  fun withItem(item: AVPMediaItem): BookmarkItem = when (this) {
+    is Watching -> copy(item = item)
+    is Completed -> copy(item = item)
+    is OnHold -> copy(item = item)
+    is Dropped -> copy(item = item)
+    is PlanToWatch -> copy(item = item)
+  }
+
   @Serializable
   data class Watching(
     val position: Long,
@@ -0,0 +1,11 @@
+package cloud.app.vvf.datastore.app.helper
+
+/**
+ * Bounds for one history folder. Entries past the [maxCount] most recently updated ones, or not
+ * updated for [maxAgeMs], are evicted by [cloud.app.vvf.datastore.app.AppDataStore.compact].
+ */
+data class RetentionPolicy(
+  val folder: String,
+  val maxCount: Int,
+  val maxAgeMs: Long
+)
@@ -0,0 +1,68 @@
+package cloud.app.vvf.datastore.app.helper
+
+import cloud.app.vvf.common.models.AVPMediaItem
+import cloud.app.vvf.common.models.movie.GeneralInfo
+import cloud.app.vvf.common.models.movie.Season
+import cloud.app.vvf.common.models.movie.Show
+
+const val SHARED_MEDIA_FOLDER = "shared_media"
+
+/**
+ * Splits the parent show and season out of stored episode/season items. The parents are kept
+ * once under [SHARED_MEDIA_FOLDER] by id, and each entry only carries a stub that still yields
+ * the same ids and title.
+ */
+object SharedMediaRefs {
+
+  /**
+   * Parents of [item] to store once, keyed by their id.
+   */
+  fun parentsOf(item: AVPMediaItem): List<AVPMediaItem> = when (item) {
+    is AVPMediaItem.EpisodeItem -> listOf(stub(item.seasonItem), item.seasonItem.showItem)
+    is AVPMediaItem.SeasonItem -> listOf(item.showItem)
+    else -> emptyList()
+  }
+
+  fun strip(item: AVPMediaItem): AVPMediaItem = when (item) {
+    is AVPMediaItem.EpisodeItem -> item.copy(seasonItem = stub(item.seasonItem).copy(season = stub(item.seasonItem.season)))
+    is AVPMediaItem.SeasonItem -> stub(item)
+    else -> item
+  }
+
+  fun resolve(item: AVPMediaItem, lookup: (String) -> AVPMediaItem?): AVPMediaItem = when (item) {
+    is AVPMediaItem.EpisodeItem -> {
+      val season = lookup(item.seasonItem.id.toString()) as? AVPMediaItem.SeasonItem ?: item.seasonItem
+      item.copy(seasonItem = resolve(season, lookup) as AVPMediaItem.SeasonItem)
+    }
+
+    is AVPMediaItem.SeasonItem -> {
+      val show = lookup(item.showItem.id.toString()) as? AVPMediaItem.ShowItem
+      if (show != null) item.copy(showItem = show) else item
+    }
+
+    else -> item
+  }
+
+  // Keeps what the ids and list titles are derived from
+  private fun stub(info: GeneralInfo) = GeneralInfo(
+    title = info.title,
+    originalTitle = info.originalTitle,
+    releaseDateMsUTC = info.releaseDateMsUTC,
+    poster = info.poster,
+    backdrop = info.backdrop
+  )
+
+  private fun stub(seasonItem: AVPMediaItem.SeasonItem) = seasonItem.copy(
+    showItem = AVPMediaItem.ShowItem(
+      Show(
+        ids = seasonItem.showItem.show.ids,
+        generalInfo = stub(seasonItem.showItem.show.generalInfo)
+      )
+    )
+  )
+
+  private fun stub(season: Season) = season.copy(
+    generalInfo = stub(season.generalInfo),
+    episodes = null
+  )
+}
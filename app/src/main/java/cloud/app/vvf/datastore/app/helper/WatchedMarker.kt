@@ -0,0 +1,18 @@
+package cloud.app.vvf.datastore.app.helper
+
+import kotlinx.serialization.Serializable
+
+const val WATCHED_FOLDER = "watched"
+
+/**
+ * What is kept of a fully watched playback progress once compacted: enough to show the item as
+ * watched and to count it per season, without the media item itself.
+ */
+@Serializable
+data class WatchedMarker(
+  val id: String,
+  val duration: Long,
+  val lastUpdated: Long,
+  val showId: String? = null,
+  val seasonId: String? = null
+)
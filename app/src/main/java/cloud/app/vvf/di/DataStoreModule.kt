@@ -40,7 +40,7 @@ class DataStoreModule {
   @Singleton
   @Provides
   fun provideAppDataStore(context: Context, accountFlow: MutableStateFlow<Account>) =
-    MutableStateFlow(AppDataStore(context, accountFlow.value))
+    MutableStateFlow(AppDataStore.of(context, accountFlow.value))
 
   @Singleton
   @Provides
@@ -25,9 +25,11 @@ import dagger.hilt.InstallIn
 import dagger.hilt.components.SingletonComponent
 import kotlinx.coroutines.flow.MutableStateFlow
 import okhttp3.Cache
+import okhttp3.ConnectionPool
 import okhttp3.OkHttpClient
 import okhttp3.logging.HttpLoggingInterceptor
 import retrofit2.converter.gson.GsonConverterFactory
+import java.util.concurrent.TimeUnit
 import javax.inject.Singleton
 
 
@@ -36,6 +38,9 @@ import javax.inject.Singleton
 class NetworkModule {
 
   val cacheSize: Long = 10 * 1024 * 1024  // 10 MB
+  // Enough idle connections to keep a full download window per host warm
+  val maxIdleConnections = 16
+  val keepAliveMinutes = 5L
 
   @Provides
   @Singleton
@@ -57,6 +62,7 @@ class NetworkModule {
       .followRedirects(true)
       .followSslRedirects(true)
       .cookieJar(cookiePersistor)
+      .connectionPool(ConnectionPool(maxIdleConnections, keepAliveMinutes, TimeUnit.MINUTES))
       .ignoreAllSSLErrors()
       .cache(cache).apply {
         when (dns) {
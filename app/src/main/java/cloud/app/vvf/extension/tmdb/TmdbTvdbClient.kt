@@ -508,7 +508,7 @@ class TmdbTvdbClient : DatabaseClient, StreamClient, HttpHelperProvider, Message
     episodeItem ?: return null
     val episode = episodeItem.episode
 
-    if (episode.showIds.tmdbId != null) {
+    if (episode.showIds.tmdbId == null) {
       return null // Missing show, season, or episode information
     }
 
@@ -0,0 +1,200 @@
+package cloud.app.vvf.features.player
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.net.ConnectivityManager
+import cloud.app.vvf.R
+import cloud.app.vvf.common.clients.Extension
+import cloud.app.vvf.common.clients.mvdatabase.DatabaseClient
+import cloud.app.vvf.common.clients.streams.StreamClient
+import cloud.app.vvf.common.models.AVPMediaItem
+import cloud.app.vvf.common.models.AVPMediaItem.EpisodeItem
+import cloud.app.vvf.common.models.extension.ExtensionType
+import cloud.app.vvf.common.models.movie.Episode
+import cloud.app.vvf.common.models.stream.PremiumType
+import cloud.app.vvf.common.models.video.Video
+import cloud.app.vvf.extension.run
+import cloud.app.vvf.services.downloader.helper.BandwidthGovernor
+import cloud.app.vvf.services.downloader.helper.isPlainHttp
+import cloud.app.vvf.services.downloader.helper.mirrorsAmong
+import cloud.app.vvf.services.downloader.stateMachine.DownloadManager
+import dagger.hilt.android.qualifiers.ApplicationContext
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.supervisorScope
+import kotlinx.coroutines.withTimeoutOrNull
+import timber.log.Timber
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Downloads the next episode of a show while the current one plays, so it starts from storage
+ * instead of the network. Opt-in: once playback passes the configured share of an episode, the
+ * next one is looked up, its links are resolved through the stream extensions and the best one
+ * is queued as a low priority download.
+ *
+ * Nothing is fetched on metered networks, nor when the file would eat into the space kept free
+ * for downloads the user asked for.
+ */
+@Singleton
+class NextEpisodePrefetcher @Inject constructor(
+  @ApplicationContext private val context: Context,
+  private val sharedPreferences: SharedPreferences,
+  private val throwableFlow: MutableSharedFlow<Throwable>,
+  private val extensionFlow: MutableStateFlow<List<Extension<*>>?>,
+  private val databaseExtension: MutableStateFlow<Extension<DatabaseClient>?>,
+  private val downloadManager: DownloadManager,
+  private val governor: BandwidthGovernor
+) {
+
+  private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+  // Episodes whose successor is being fetched or was queued, by slug. Attempts that queued
+  // nothing are dropped again, so a later pass on a better network or with links can retry
+  private val attempted = ConcurrentHashMap.newKeySet<String>()
+
+  // Prefetch waiting for an external player to reach the threshold
+  private var scheduled: Job? = null
+
+  val isEnabled: Boolean
+    get() = sharedPreferences.getBoolean(context.getString(R.string.pref_prefetch_next_episode), false)
+
+  /**
+   * Share of an episode, in percent, played before the next one is prefetched.
+   */
+  val thresholdPercent: Int
+    get() = sharedPreferences.getInt(
+      context.getString(R.string.pref_prefetch_threshold), DEFAULT_THRESHOLD_PERCENT
+    )
+
+  /**
+   * Starts fetching the episode after [episode], once per episode and only when enabled.
+   */
+  fun prefetchAfter(episode: EpisodeItem) {
+    val slug = episode.getSlug()
+    if (!isEnabled || !attempted.add(slug)) return
+    scope.launch {
+      val queued = try {
+        prefetch(episode)
+      } catch (e: Exception) {
+        Timber.w(e, "Prefetch after $slug failed")
+        false
+      }
+      if (!queued) attempted.remove(slug)
+    }
+  }
+
+  /**
+   * For [episode] handed to an external player, whose position the app can't follow: prefetches
+   * once the threshold share of [durationMs] has passed, right away when the duration is unknown.
+   * Playing something else replaces the pending prefetch.
+   */
+  @Synchronized
+  fun prefetchWhilePlaying(episode: EpisodeItem, durationMs: Long?) {
+    if (!isEnabled) return
+    scheduled?.cancel()
+    scheduled = scope.launch {
+      if (durationMs != null && durationMs > 0) delay(durationMs * thresholdPercent / 100)
+      prefetchAfter(episode)
+    }
+  }
+
+  /**
+   * Queues the episode after [episode]. Returns whether it is downloading now, false when it was
+   * skipped for the network, a missing link or lack of space.
+   */
+  private suspend fun prefetch(episode: EpisodeItem): Boolean {
+    if (isMetered()) {
+      Timber.d("Not prefetching on a metered network")
+      return false
+    }
+    val next = nextEpisodeOf(episode) ?: run {
+      Timber.d("No episode after ${episode.getSlug()}")
+      return false
+    }
+    val nextItem = EpisodeItem(next, episode.seasonItem)
+
+    val links = resolveLinks(nextItem)
+    val video = pick(links) ?: run {
+      Timber.d("No downloadable link for ${nextItem.getSlug()}")
+      return false
+    }
+    if (video.fileSize > 0 && video.fileSize + STORAGE_RESERVE > downloadManager.availableStorage()) {
+      Timber.d("Not prefetching ${nextItem.getSlug()}, ${video.fileSize} bytes would not fit")
+      return false
+    }
+
+    val mirrors = video.mirrorsAmong(links)
+    val known = downloadManager.downloads.value.keys
+    val downloadId = downloadManager.startDownload(
+      nextItem, video.uri, mirrors = mirrors, expectedBytes = video.fileSize
+    )
+    // A download the user started already keeps its priority
+    if (downloadId in known) return true
+    governor.setPriority(downloadId, BandwidthGovernor.Priority.LOW)
+    Timber.i("Prefetching ${nextItem.getSlug()} as $downloadId")
+    return true
+  }
+
+  private suspend fun nextEpisodeOf(episode: EpisodeItem): Episode? {
+    episode.nextEpisode?.let { return it }
+    val detail = databaseExtension.value?.run<DatabaseClient, AVPMediaItem?>(throwableFlow) {
+      getMediaDetail(episode)
+    }
+    return (detail as? EpisodeItem)?.nextEpisode
+  }
+
+  /**
+   * Links the stream extensions find for [item] within [LINK_TIMEOUT_MS]; slow extensions are
+   * left out rather than waited for.
+   */
+  private suspend fun resolveLinks(item: EpisodeItem): List<Video> {
+    val links = CopyOnWriteArrayList<Video>()
+    val extensions = extensionFlow.value.orEmpty().filter {
+      it.metadata.types.contains(ExtensionType.STREAM)
+    }
+    withTimeoutOrNull(LINK_TIMEOUT_MS) {
+      supervisorScope {
+        extensions.forEach { ext ->
+          launch {
+            ext.run<StreamClient, Boolean>(throwableFlow) {
+              loadLinks(item, subtitleCallback = {}, callback = { links.add(it) })
+            }
+          }
+        }
+      }
+    }
+    return links
+  }
+
+  /**
+   * The link to download: plain HTTP files first, as they can be fetched in parallel and from
+   * mirrors, then the best quality. Torrents and store links are never prefetched.
+   */
+  private fun pick(links: List<Video>): Video.RemoteVideo? =
+    links.filterIsInstance<Video.RemoteVideo>()
+      .filter { it.uri.startsWith("http") && !it.uri.endsWith(".torrent") && it.magnets.isNullOrEmpty() }
+      .filter { it.premiumType != PremiumType.JustWatch.ordinal }
+      .maxWithOrNull(compareBy<Video.RemoteVideo>({ it.isPlainHttp() }, { it.streamQuality.ordinal }))
+
+  private fun isMetered(): Boolean {
+    val connectivityManager = context.getSystemService(ConnectivityManager::class.java) ?: return true
+    return connectivityManager.isActiveNetworkMetered
+  }
+
+  companion object {
+    const val DEFAULT_THRESHOLD_PERCENT = 70
+    private const val LINK_TIMEOUT_MS = 60_000L
+
+    // Free space left for downloads the user starts, beyond what the download manager keeps
+    private const val STORAGE_RESERVE = 1024L * 1024 * 1024
+  }
+}
@@ -87,6 +87,7 @@ class PlayerFragment : Fragment() {
   private val currentMediaIdx by lazy { arguments?.getInt("selectedMediaIdx") ?: 0 }
   private val subtitles by lazy { arguments?.getSerialized<List<SubtitleData>>("subtitles") }
   private val currentSubtitleIdx by lazy { arguments?.getInt("selectedSubtitleIdx") ?: 0 }
+  private val episode by lazy { arguments?.getSerialized<AVPMediaItem.EpisodeItem>("episode") }
   private val currentActivity by lazy { requireActivity() }
 
   private lateinit var volumeManager: VolumeManager
@@ -104,7 +105,8 @@ class PlayerFragment : Fragment() {
       mediaItems: List<AVPMediaItem>,
       selectedMediaIdx: Int = 0,
       subtitles: List<SubtitleData>? = null,
-      selectedSubtitleIdx: Int = 0
+      selectedSubtitleIdx: Int = 0,
+      episode: AVPMediaItem.EpisodeItem? = null
     ) = PlayerFragment().apply {
       val bundle = bundleOf()
       bundle.putSerialized("mediaItems", mediaItems)
@@ -113,6 +115,7 @@ class PlayerFragment : Fragment() {
         bundle.putSerialized("subtitles", subtitles)
         bundle.putInt("selectedSubtitleIdx", selectedSubtitleIdx)
       }
+      episode?.let { bundle.putSerialized("episode", it) }
       arguments = bundle
     }
 
@@ -283,7 +286,8 @@ class PlayerFragment : Fragment() {
       subtitles = subtitles ?: emptyList(),
       selectedSubtitleIdx = currentSubtitleIdx,
       initialPosition = viewModel.playbackPositionMs.value,
-      subtitleOffsetMs = 0L
+      subtitleOffsetMs = 0L,
+      episode = episode
     )
 
     binding.playerView.player = viewModel.player
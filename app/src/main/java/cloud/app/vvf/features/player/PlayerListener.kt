@@ -62,6 +62,7 @@ class PlayerListener(val viewModel: PlayerViewModel) : Player.Listener {
 
   override fun onPlaybackStateChanged(playbackState: Int) {
     viewModel.playbackState.value = playbackState
+    viewModel.bandwidthGovernor.setPlaybackBuffering(playbackState == Player.STATE_BUFFERING)
     super.onPlaybackStateChanged(playbackState)
   }
 
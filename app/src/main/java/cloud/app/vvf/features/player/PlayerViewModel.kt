@@ -46,13 +46,17 @@ import cloud.app.vvf.features.player.utils.getSelected
 import cloud.app.vvf.features.player.utils.getSubtitleMime
 import cloud.app.vvf.features.player.subtitle.SubtitleCue
 import cloud.app.vvf.features.player.utils.PlayerCacheProvider
+import cloud.app.vvf.features.player.utils.ProgressiveDataSource
 import cloud.app.vvf.features.player.utils.uriToSubtitleConfiguration
+import cloud.app.vvf.services.downloader.helper.BandwidthGovernor
+import cloud.app.vvf.services.downloader.helper.ProgressiveDownloads
 import cloud.app.vvf.utils.showToast
 import dagger.hilt.android.lifecycle.HiltViewModel
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import timber.log.Timber
@@ -66,7 +70,10 @@ import javax.inject.Inject
 class PlayerViewModel @Inject constructor(
   val defaultAppSetting: SharedPreferences,
   private val application: Application,
-  private val appDataStoreFlow: MutableStateFlow<AppDataStore>
+  private val appDataStoreFlow: MutableStateFlow<AppDataStore>,
+  val bandwidthGovernor: BandwidthGovernor,
+  private val progressiveDownloads: ProgressiveDownloads,
+  private val nextEpisodePrefetcher: NextEpisodePrefetcher
 ) : AndroidViewModel(application) {
 
   // Public fields
@@ -122,7 +129,8 @@ class PlayerViewModel @Inject constructor(
     subtitles: List<SubtitleData> = emptyList(),
     selectedSubtitleIdx: Int = 0,
     initialPosition: Long = 0L,
-    subtitleOffsetMs: Long
+    subtitleOffsetMs: Long,
+    episode: AVPMediaItem.EpisodeItem? = null
   ) {
     if (player != null) {
       play()
@@ -141,7 +149,8 @@ class PlayerViewModel @Inject constructor(
     delayedFactory = DelayedSubtitleParserFactory(DefaultSubtitleParserFactory())
     delayedFactory.setDelayMs(subtitleOffsetMs)
 
-    val dataSourceFactory = DefaultDataSource.Factory(context)
+    // Running downloads are read from their file instead of streamed a second time
+    val dataSourceFactory = ProgressiveDataSource.Factory(DefaultDataSource.Factory(context), progressiveDownloads)
     val cacheDataSourceFactory = CacheDataSource.Factory().setCache(simpleCache!!)
       .setUpstreamDataSourceFactory(dataSourceFactory)
       .setCacheWriteDataSinkFactory(null) // Optional: Disable writing to cache for specific cases
@@ -211,6 +220,25 @@ class PlayerViewModel @Inject constructor(
         }
         prepare()
       }
+    episode?.let { prefetchNextEpisode(it) }
+  }
+
+  private var prefetchJob: Job? = null
+
+  /**
+   * Hands [episode] to the prefetcher once playback passes the configured share of it.
+   */
+  private fun prefetchNextEpisode(episode: AVPMediaItem.EpisodeItem) {
+    if (!nextEpisodePrefetcher.isEnabled) return
+    val threshold = nextEpisodePrefetcher.thresholdPercent / 100.0
+    prefetchJob?.cancel()
+    prefetchJob = viewModelScope.launch {
+      playbackPositionMs.first { position ->
+        val duration = player?.duration ?: C.TIME_UNSET
+        duration != C.TIME_UNSET && duration > 0 && position >= duration * threshold
+      }
+      nextEpisodePrefetcher.prefetchAfter(episode)
+    }
   }
 
   fun parseSubtitles(context: Context, onResult: (Boolean) -> Unit) {
@@ -297,6 +325,7 @@ class PlayerViewModel @Inject constructor(
   }
 
   override fun onCleared() {
+    bandwidthGovernor.setPlaybackBuffering(false)
     player?.release()
     player = null
     playerListener.release()
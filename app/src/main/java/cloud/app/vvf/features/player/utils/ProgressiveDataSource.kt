@@ -0,0 +1,180 @@
+package cloud.app.vvf.features.player.utils
+
+import android.net.Uri
+import android.os.SystemClock
+import androidx.media3.common.C
+import androidx.media3.common.PlaybackException
+import androidx.media3.common.util.UnstableApi
+import androidx.media3.datasource.BaseDataSource
+import androidx.media3.datasource.DataSource
+import androidx.media3.datasource.DataSourceException
+import androidx.media3.datasource.DataSpec
+import androidx.media3.datasource.TransferListener
+import cloud.app.vvf.services.downloader.helper.ProgressiveDownloads
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Plays downloads while they run. A URI that is a running download, by its file or by the URL it
+ * is downloaded from, is read from the partly written file; everything else goes to [upstream].
+ * The same transfer then serves playback and the offline copy.
+ */
+@UnstableApi
+class ProgressiveDataSource(
+  private val upstream: DataSource,
+  private val downloads: ProgressiveDownloads
+) : DataSource {
+
+  class Factory(
+    private val upstream: DataSource.Factory,
+    private val downloads: ProgressiveDownloads
+  ) : DataSource.Factory {
+    override fun createDataSource() = ProgressiveDataSource(upstream.createDataSource(), downloads)
+  }
+
+  private val local = DownloadingFileDataSource(downloads)
+  private var current: DataSource? = null
+
+  override fun addTransferListener(transferListener: TransferListener) {
+    upstream.addTransferListener(transferListener)
+    local.addTransferListener(transferListener)
+  }
+
+  override fun open(dataSpec: DataSpec): Long {
+    val entry = downloads.find(dataSpec.uri.toString())
+    val source = if (entry != null) local.also { it.entry = entry } else upstream
+    current = source
+    return source.open(dataSpec)
+  }
+
+  override fun read(buffer: ByteArray, offset: Int, length: Int): Int =
+    current?.read(buffer, offset, length) ?: throw IOException("Read before open")
+
+  override fun getUri(): Uri? = current?.uri
+
+  override fun getResponseHeaders(): Map<String, List<String>> = current?.responseHeaders ?: emptyMap()
+
+  override fun close() {
+    try {
+      current?.close()
+    } finally {
+      current = null
+    }
+  }
+}
+
+/**
+ * Reads a file while it downloads. Bytes not stored yet are waited for, up to [MAX_WAIT_MS]
+ * each time, after asking the download to fetch them next; the download wakes the reader as
+ * soon as it stores something.
+ */
+@UnstableApi
+private class DownloadingFileDataSource(
+  private val downloads: ProgressiveDownloads
+) : BaseDataSource(false) {
+
+  var entry: ProgressiveDownloads.Entry? = null
+
+  private var channel: FileChannel? = null
+  private var uri: Uri? = null
+  private var position = 0L
+  private var bytesRemaining = C.LENGTH_UNSET.toLong()
+  private var opened = false
+
+  override fun open(dataSpec: DataSpec): Long {
+    val entry = entry ?: throw IOException("No download to read ${dataSpec.uri}")
+    uri = dataSpec.uri
+    transferInitializing(dataSpec)
+    channel = entry.file.openChannel()
+    position = dataSpec.position
+    val length = entry.length
+    if (length >= 0 && position > length) {
+      throw DataSourceException(PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE)
+    }
+    bytesRemaining = when {
+      dataSpec.length != C.LENGTH_UNSET.toLong() -> dataSpec.length
+      length >= 0 -> length - position
+      else -> C.LENGTH_UNSET.toLong()
+    }
+    entry.ranges.prioritize(position)
+    downloads.onReaderOpened(entry)
+    opened = true
+    transferStarted(dataSpec)
+    return bytesRemaining
+  }
+
+  override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+    if (length == 0) return 0
+    if (bytesRemaining == 0L) return C.RESULT_END_OF_INPUT
+    val entry = entry ?: throw IOException("Read before open")
+    val channel = channel ?: throw IOException("Read before open")
+
+    val available = awaitStored(entry, channel)
+    if (available <= 0) return C.RESULT_END_OF_INPUT
+    var toRead = minOf(length.toLong(), available)
+    if (bytesRemaining != C.LENGTH_UNSET.toLong()) toRead = minOf(toRead, bytesRemaining)
+
+    val read = channel.read(ByteBuffer.wrap(buffer, offset, toRead.toInt()), position)
+    if (read < 0) return C.RESULT_END_OF_INPUT
+    position += read
+    if (bytesRemaining != C.LENGTH_UNSET.toLong()) bytesRemaining -= read
+    bytesTransferred(read)
+    return read
+  }
+
+  /**
+   * Bytes readable at [position], waiting for the download to store some. 0 at the end of a
+   * finished file.
+   */
+  private fun awaitStored(entry: ProgressiveDownloads.Entry, channel: FileChannel): Long {
+    val deadline = SystemClock.elapsedRealtime() + MAX_WAIT_MS
+    while (true) {
+      // Taken before checking, so a write or close in between ends the wait right away
+      val ranges = entry.ranges
+      val seen = ranges.version
+      if (entry.completed) return channel.size() - position
+      val available = ranges.available(position)
+      if (available > 0) return available
+      if (entry.length >= 0 && position >= entry.length) return 0L
+      if (entry.closed) throw IOException("Download of $uri stopped before byte $position")
+      val remaining = deadline - SystemClock.elapsedRealtime()
+      if (remaining <= 0) {
+        // Surfaced like a stalled connection, so the player's retry policy applies
+        throw DataSourceException(
+          "Byte $position of $uri did not arrive within ${MAX_WAIT_MS}ms",
+          PlaybackException.ERROR_CODE_IO_NETWORK_CONNECTION_TIMEOUT
+        )
+      }
+      ranges.prioritize(position)
+      try {
+        ranges.awaitChange(seen, remaining)
+      } catch (e: InterruptedException) {
+        Thread.currentThread().interrupt()
+        throw InterruptedIOException()
+      }
+    }
+  }
+
+  override fun getUri(): Uri? = uri
+
+  override fun close() {
+    uri = null
+    try {
+      channel?.close()
+    } finally {
+      channel = null
+      if (opened) {
+        opened = false
+        entry?.let { downloads.onReaderClosed(it) }
+        transferEnded()
+      }
+      entry = null
+    }
+  }
+
+  companion object {
+    private const val MAX_WAIT_MS = 30_000L
+  }
+}
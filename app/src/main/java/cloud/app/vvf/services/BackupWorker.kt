@@ -3,7 +3,6 @@ package cloud.app.vvf.services
 import android.content.Context
 import android.content.SharedPreferences
 import android.content.pm.ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC
-import android.net.Uri
 import android.os.Build.VERSION.SDK_INT
 import androidx.core.app.NotificationCompat
 import androidx.hilt.work.HiltWorker
@@ -17,7 +16,6 @@ import androidx.work.WorkerParameters
 import cloud.app.vvf.R
 import cloud.app.vvf.VVFApplication.Companion.createNotificationChannel
 import cloud.app.vvf.utils.FileHelper
-import cloud.app.vvf.utils.KUniFile
 import dagger.assisted.Assisted
 import dagger.assisted.AssistedInject
 import kotlinx.coroutines.Dispatchers
@@ -104,17 +102,14 @@ class BackupWorker @AssistedInject constructor(
 
 
     return withContext(Dispatchers.IO) {
-      // Define backup file
-      val backupFilePath = sharedPreferences.getString(context.getString(R.string.pref_backup_path), null)
-      val backupFile = KUniFile.fromUri(context, Uri.parse(backupFilePath)) ?: return@withContext Result.failure()
+      val backupDir = fileHelper.getBackupDir(sharedPreferences)
+      if (backupDir?.isDirectory != true) return@withContext Result.failure()
 
-
-      // Or backup all SharedPreferences
+      // Periodic backups only hold what changed since the previous one, with a full one now and then
       val allPrefs = fileHelper.getAllSharedPrefsNames()
-      val backupAllSuccess =
-        fileHelper.backupSharedPreferencesToJson(allPrefs, backupFile)
+      val backupFile = fileHelper.backupChained(allPrefs, backupDir)
 
-      if (backupAllSuccess)
+      if (backupFile != null)
         Result.success()
       else
         Result.failure()
@@ -0,0 +1,67 @@
+package cloud.app.vvf.services
+
+import android.content.Context
+import androidx.hilt.work.HiltWorker
+import androidx.work.Constraints
+import androidx.work.CoroutineWorker
+import androidx.work.ExistingPeriodicWorkPolicy
+import androidx.work.PeriodicWorkRequest
+import androidx.work.WorkManager
+import androidx.work.WorkerParameters
+import cloud.app.vvf.datastore.app.AppDataStore
+import dagger.assisted.Assisted
+import dagger.assisted.AssistedInject
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.yield
+import timber.log.Timber
+import java.util.concurrent.TimeUnit
+
+const val COMPACTION_WORK_NAME = "work_compaction"
+
+/**
+ * Applies the history retention of the current [AppDataStore] in small batches, yielding between
+ * them so it never holds the storage for long.
+ */
+@HiltWorker
+class CompactionWorker @AssistedInject constructor(
+  @Assisted context: Context,
+  @Assisted params: WorkerParameters,
+  private val dataFlow: MutableStateFlow<AppDataStore>
+) : CoroutineWorker(context, params) {
+  companion object {
+    private const val MAX_STEPS = 50
+
+    fun enqueuePeriodicWork(context: Context?) {
+      if (context == null) return
+
+      val constraints = Constraints.Builder()
+        .setRequiresBatteryNotLow(true)
+        .build()
+
+      val periodicCompactionWork =
+        PeriodicWorkRequest.Builder(CompactionWorker::class.java, 1, TimeUnit.DAYS)
+          .addTag(COMPACTION_WORK_NAME)
+          .setConstraints(constraints)
+          .build()
+
+      WorkManager.getInstance(context).enqueueUniquePeriodicWork(
+        COMPACTION_WORK_NAME,
+        ExistingPeriodicWorkPolicy.KEEP,
+        periodicCompactionWork
+      )
+    }
+  }
+
+  override suspend fun doWork(): Result = withContext(Dispatchers.IO) {
+    val dataStore = dataFlow.value
+    var steps = 0
+    while (!isStopped && steps < MAX_STEPS && dataStore.compact()) {
+      steps++
+      yield()
+    }
+    Timber.i("Compaction ran $steps extra steps for ${dataStore.account.getSlug()}")
+    Result.success()
+  }
+}
@@ -1,7 +1,9 @@
 package cloud.app.vvf.services.downloader
 
 import cloud.app.vvf.common.models.AVPMediaItem
+import cloud.app.vvf.services.downloader.helper.HttpValidators
 import kotlinx.serialization.Serializable
+import kotlinx.serialization.json.JsonArray
 import kotlinx.serialization.json.JsonElement
 import kotlinx.serialization.json.JsonPrimitive
 import kotlinx.serialization.json.booleanOrNull
@@ -76,6 +78,11 @@ data class DownloadData(
       const val RESUME_SUPPORTED = "resumeSupported"
       const val CONTENT_TYPE = "contentType"
       const val HEADERS = "headers"
+      const val ETAG = "etag"
+      const val LAST_MODIFIED = "lastModified"
+      const val CONTENT_LENGTH = "contentLength"
+      const val SHA256 = "sha256"
+      const val MIRRORS = "mirrors"
 
       // Common
       const val PROGRESS = "progress"
@@ -88,6 +95,7 @@ data class DownloadData(
       const val STREAM_URL = "streamUrl"
       const val NOTE = "note"
       const val ERROR = "error"
+      const val INSUFFICIENT_STORAGE = "insufficientStorage"
 
       const val THREAD_COUNT = "threadCount"
 
@@ -182,6 +190,21 @@ data class DownloadData(
       fun contentType(type: String?) =
         apply { type?.let { typeSpecificData[Keys.CONTENT_TYPE] = JsonPrimitive(it) } }
 
+      fun etag(etag: String?) =
+        apply { etag?.let { typeSpecificData[Keys.ETAG] = JsonPrimitive(it) } }
+
+      fun lastModified(lastModified: String?) =
+        apply { lastModified?.let { typeSpecificData[Keys.LAST_MODIFIED] = JsonPrimitive(it) } }
+
+      fun contentLength(length: Long) =
+        apply { typeSpecificData[Keys.CONTENT_LENGTH] = JsonPrimitive(length) }
+
+      fun sha256(hash: String?) =
+        apply { hash?.let { typeSpecificData[Keys.SHA256] = JsonPrimitive(it) } }
+
+      fun mirrors(urls: List<String>) =
+        apply { if (urls.isNotEmpty()) typeSpecificData[Keys.MIRRORS] = JsonArray(urls.map { JsonPrimitive(it) }) }
+
       // Common builders
       fun streamUrl(url: String?) =
         apply { url?.let { typeSpecificData[Keys.STREAM_URL] = JsonPrimitive(it) } }
@@ -251,6 +274,27 @@ data class DownloadData(
     get() = (typeSpecificData[Keys.RESUME_SUPPORTED] as? JsonPrimitive)?.booleanOrNull ?: false
   val contentType: String? get() = (typeSpecificData[Keys.CONTENT_TYPE] as? JsonPrimitive)?.contentOrNull
   val headers: Map<String, String> get() = emptyMap() // TODO: Implement if needed
+  val sha256: String? get() = (typeSpecificData[Keys.SHA256] as? JsonPrimitive)?.contentOrNull
+
+  /**
+   * Other URLs serving the same file, downloaded from alongside [url] once verified.
+   */
+  val mirrors: List<String>
+    get() = (typeSpecificData[Keys.MIRRORS] as? JsonArray)
+      ?.mapNotNull { (it as? JsonPrimitive)?.contentOrNull }
+      ?: emptyList()
+
+  /**
+   * Validators of the version being downloaded, null until the server was first asked.
+   */
+  val validators: HttpValidators?
+    get() {
+      val etag = (typeSpecificData[Keys.ETAG] as? JsonPrimitive)?.contentOrNull
+      val lastModified = (typeSpecificData[Keys.LAST_MODIFIED] as? JsonPrimitive)?.contentOrNull
+      if (etag == null && lastModified == null) return null
+      val contentLength = (typeSpecificData[Keys.CONTENT_LENGTH] as? JsonPrimitive)?.longOrNull ?: -1L
+      return HttpValidators(etag, lastModified, contentLength)
+    }
 
   // Common getters
   val streamUrl: String? get() = (typeSpecificData[Keys.STREAM_URL] as? JsonPrimitive)?.contentOrNull
@@ -8,17 +8,29 @@ import androidx.work.Data
 import androidx.work.WorkerParameters
 import androidx.work.workDataOf
 import cloud.app.vvf.R
+import cloud.app.vvf.services.downloader.helper.BandwidthGovernor
 import cloud.app.vvf.services.downloader.helper.DownloadFileManager
 import cloud.app.vvf.services.downloader.helper.DownloadFileManager.Companion.uriToSlug
 import cloud.app.vvf.services.downloader.helper.DownloadNotificationManager
+import cloud.app.vvf.services.downloader.helper.DownloadTransport
+import cloud.app.vvf.services.downloader.helper.HostConcurrencyController
+import cloud.app.vvf.services.downloader.helper.HlsDecryptor
+import cloud.app.vvf.services.downloader.helper.HlsPlaylistParser
+import cloud.app.vvf.services.downloader.helper.HlsResumeJournal
+import cloud.app.vvf.services.downloader.helper.HlsSegment
+import cloud.app.vvf.services.downloader.helper.HlsSegmentPipeline
+import cloud.app.vvf.services.downloader.helper.HlsSizeEstimator
+import cloud.app.vvf.services.downloader.helper.HlsVariant
 import cloud.app.vvf.services.downloader.helper.HttpDownloadClient
+import cloud.app.vvf.services.downloader.helper.InsufficientStorageException
+import cloud.app.vvf.services.downloader.helper.ProgressiveDownloads
+import cloud.app.vvf.services.downloader.helper.SequentialRanges
+import cloud.app.vvf.services.downloader.helper.StorageBudget
+import cloud.app.vvf.services.downloader.stateMachine.DownloadProgressBus
 import dagger.assisted.Assisted
 import dagger.assisted.AssistedInject
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.async
-import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.withContext
-import kotlinx.coroutines.sync.Semaphore
 import okhttp3.OkHttpClient
 import okhttp3.Request
 import timber.log.Timber
@@ -32,6 +44,12 @@ import kotlin.math.pow
 class HlsDownloader @AssistedInject constructor(
   @Assisted val context: Context,
   @Assisted workerParameters: WorkerParameters,
+  private val concurrencyController: HostConcurrencyController,
+  transport: DownloadTransport,
+  private val governor: BandwidthGovernor,
+  private val progressBus: DownloadProgressBus,
+  private val progressiveDownloads: ProgressiveDownloads,
+  private val storageBudget: StorageBudget
 ) : CoroutineWorker(context, workerParameters) {
 
   companion object {
@@ -39,12 +57,15 @@ class HlsDownloader @AssistedInject constructor(
     const val KEY_HLS_URL = "key_hls_url"
     const val KEY_FILE_NAME = "key_file_name"
     const val KEY_QUALITY = "key_quality"
+
+    private const val JOURNAL_INTERVAL_MS = 1_000L
   }
 
   private val notificationManager = DownloadNotificationManager(context)
   private val fileManager = DownloadFileManager(context)
 
-  private val httpClient = HttpDownloadClient()
+  private val downloadClient = transport.client
+  private val httpClient = HttpDownloadClient(downloadClient)
 
   @Inject
   lateinit var sharedPreferences: SharedPreferences
@@ -76,10 +97,13 @@ class HlsDownloader @AssistedInject constructor(
     } catch (e: Exception) {
       Timber.e(e, "HLS download failed for ${downloadParams.downloadId}")
       val keys = DownloadData.Companion.Keys
+      val noSpace = generateSequence<Throwable>(e) { it.cause }.filterIsInstance<InsufficientStorageException>().firstOrNull()
       Result.failure(
         workDataOf(
           keys.ERROR to (e.message ?: "Unknown HLS download error"),
-          keys.DOWNLOAD_ID to downloadParams.downloadId
+          keys.DOWNLOAD_ID to downloadParams.downloadId,
+          keys.INSUFFICIENT_STORAGE to (noSpace != null),
+          keys.TOTAL_BYTES to (noSpace?.length ?: 0L)
         )
       )
     }
@@ -91,9 +115,9 @@ class HlsDownloader @AssistedInject constructor(
     val selectedVariant = selectBestVariant(masterPlaylist, params.quality, params.hlsUrl)
 
     // If it's a master playlist, fetch the variant playlist
-    val (segmentPlaylist, playlistBaseUrl) = if (selectedVariant != params.hlsUrl) {
-      val variantPlaylist = fetchPlaylist(selectedVariant)
-      Pair(variantPlaylist, selectedVariant)
+    val (segmentPlaylist, playlistBaseUrl) = if (selectedVariant != null) {
+      val variantPlaylist = fetchPlaylist(selectedVariant.url)
+      Pair(variantPlaylist, selectedVariant.url)
     } else {
       Pair(masterPlaylist, params.hlsUrl)
     }
@@ -105,61 +129,31 @@ class HlsDownloader @AssistedInject constructor(
     // Parse display name from HLS playlist
     val displayName = parseDisplayNameFromHls(masterPlaylist, segmentPlaylist, params.hlsUrl)
 
+    // Pick up where a previous worker for the same playlist stopped
+    val journal = HlsResumeJournal(context, params.downloadId)
+    val playlistHash = HlsResumeJournal.hashOf(segments.map { it.url to it.byteRange?.rangeHeader })
+    val resumeState = journal.read(playlistHash, totalSegments)
+
     // Create output file using fileManager
-    val (outputFile, _) = fileManager.createOrGetFile(
+    val (outputFile, resumed) = fileManager.createOrGetFile(
       params.downloadId,
       detectHlsMimeType(segmentPlaylist, segments),
-      false,
-      0L
+      resumeState != null,
+      resumeState?.byteOffset ?: 0L
     )
-
-    // Pre-calculate total size from all segments (estimate)
-    var estimatedTotalBytes = 0L
-    val estimationClient = OkHttpClient.Builder()
-      .followRedirects(true)
-      .followSslRedirects(true)
-      .build()
-
-    // Get size of more segments to get better estimation
-    val sampleSize = minOf(10, totalSegments) // Sample up to 10 segments or all if less
-    val sampleSegments = segments.take(sampleSize)
-    var totalSampleSize = 0L
-    var successfulSamples = 0
-
-    for (segmentUrl in sampleSegments) {
-      try {
-        val headRequest = createRequestWithHeaders(segmentUrl).newBuilder().head().build()
-        val headResponse = estimationClient.newCall(headRequest).execute()
-        if (headResponse.isSuccessful) {
-          val contentLength = headResponse.header("Content-Length")?.toLongOrNull() ?: 0L
-          if (contentLength > 0) {
-            totalSampleSize += contentLength
-            successfulSamples++
-          }
-        }
-        headResponse.close()
-      } catch (e: Exception) {
-        Timber.w(e, "Failed to get segment size for estimation")
-      }
-    }
-
-    // Estimate total size based on average segment size with safety margin
-    estimatedTotalBytes = if (totalSampleSize > 0 && successfulSamples > 0) {
-      val averageSegmentSize = totalSampleSize / successfulSamples
-      // Add 30% safety margin to account for size variations
-      (averageSegmentSize * totalSegments * 1.3).toLong()
+    val skippedSegments = if (resumed) resumeState?.completedSegments ?: 0 else 0
+    val resumedBytes = if (resumed) resumeState?.byteOffset ?: 0L else 0L
+    downloadedBytes.set(resumedBytes)
+    if (resumed) {
+      Timber.d("Resuming HLS download ${params.downloadId} at segment $skippedSegments/$totalSegments ($resumedBytes bytes)")
     } else {
-      // Fallback: assume average segment is 3MB per segment (increased from 2MB)
-      totalSegments * 3 * 1024 * 1024L
+      journal.delete()
     }
 
-    Timber.d(
-      "Estimated total size: ${formatFileSize(estimatedTotalBytes)} for $totalSegments segments (sampled $successfulSamples segments, avg: ${
-        if (successfulSamples > 0) formatFileSize(
-          totalSampleSize / successfulSamples
-        ) else "unknown"
-      })"
-    )
+    // Size from the playlist itself, refined with every finished segment
+    val sizeEstimator = HlsSizeEstimator(segments, selectedVariant)
+    sizeEstimator.recordResumed(segments.take(skippedSegments), resumedBytes)
+    Timber.d("Estimated total size: ${formatFileSize(sizeEstimator.estimate())} for $totalSegments segments")
 
     // Speed calculation variables
     val downloadStartTime = System.currentTimeMillis()
@@ -168,121 +162,100 @@ class HlsDownloader @AssistedInject constructor(
     val speedSamples = mutableListOf<Long>() // Store recent speed samples for smoothing
     val maxSpeedSamples = 5 // Keep last 5 speed samples
 
-    // Use simple client without progress callback to avoid double counting
-    val downloadClient = OkHttpClient.Builder()
-      .followRedirects(true)
-      .followSslRedirects(true)
-      .build()
-
-    // Download segments and merge
-    outputFile.openOutputStream().use { outputStream ->
-      // Download segments in parallel with batch processing
-      val batchSize =
-        sharedPreferences.getInt(context.getString(R.string.pref_download_batch_size), 3)
-      val segmentDataMap =
-        mutableMapOf<Int, ByteArray>() // Store segments by index for ordered writing
-      val semaphore = Semaphore(batchSize) // Control concurrency
-
-      // Process segments in batches to maintain order
-      segments.chunked(batchSize).forEachIndexed { batchIndex, segmentBatch ->
-        if (isStopped) {
-          throw InterruptedException("Download was stopped")
-        }
-
-        // Download segments in current batch concurrently
-        val batchJobs = segmentBatch.mapIndexed { indexInBatch: Int, segmentUrl: String ->
-          val globalIndex = batchIndex * batchSize + indexInBatch
-
-          withContext(Dispatchers.IO) {
-            async {
-              semaphore.acquire()
-              try {
-                val segmentStartTime = System.currentTimeMillis()
-
-                // Download segment
-                val request = createRequestWithHeaders(segmentUrl)
-                val response = downloadClient.newCall(request).execute()
-
-                if (!response.isSuccessful) {
-                  throw IOException("Failed to download segment ${globalIndex + 1}: HTTP ${response.code}: segmentUrl ${segmentUrl}")
-                }
-
-                val segmentData = response.body.bytes()
-                response.close()
-
-                val segmentEndTime = System.currentTimeMillis()
-                downloadedBytes.addAndGet(segmentData.size.toLong())
-
-                // Calculate download speed (thread-safe)
-                val currentSpeed = calculateDownloadSpeed(
-                  downloadStartTime,
-                  lastSpeedUpdateTime.get(),
-                  lastSpeedUpdateBytes.get(),
-                  downloadedBytes.get(),
-                  segmentData.size.toLong(),
-                  segmentEndTime - segmentStartTime,
-                  speedSamples,
-                  maxSpeedSamples
-                )
-
-                // Update atomic variables
-                lastSpeedUpdateTime.set(segmentEndTime)
-                lastSpeedUpdateBytes.set(downloadedBytes.get())
-
-                // Update progress
-                updateProgress(
-                  params.downloadId,
-                  displayName,
-                  downloadedBytes.get(),
-                  estimatedTotalBytes,
-                  currentSpeed,
-                  quality = params.quality,
-                  segmentsDownloaded = globalIndex + 1,
-                  totalSegment = totalSegments
-                )
-
-                Timber.d(
-                  "Downloaded segment ${globalIndex + 1}/$totalSegments (${segmentData.size} bytes, ${
-                    formatSpeed(
-                      currentSpeed
-                    )
-                  }) - Total: ${formatFileSize(downloadedBytes.get())}/${
-                    formatFileSize(
-                      estimatedTotalBytes
-                    )
-                  }"
+    // Readable by the player while it downloads, up to the last flushed segment
+    val stored = SequentialRanges(resumedBytes)
+    progressiveDownloads.open(params.downloadId, null, outputFile).attach(stored, -1L)
+    var completed = false
+    try {
+      // Segments are appended as they arrive, so the estimate is set aside rather than allocated
+      sizeEstimator.estimate().takeIf { it > 0 }?.let { storageBudget.reserve(params.downloadId, outputFile, it) }
+
+      // Download segments through a sliding window, written in order as they become contiguous
+      governor.register(params.downloadId).use { lease ->
+        outputFile.openOutputStream(append = resumed).use { outputStream ->
+          val limiter = concurrencyController.limiter(
+            segments.firstOrNull()?.url ?: playlistBaseUrl,
+            sharedPreferences.getInt(context.getString(R.string.pref_download_batch_size), 3)
+          )
+          var lastJournalWrite = 0L
+          val pipeline = HlsSegmentPipeline(
+            client = downloadClient,
+            requestFactory = ::createRequestWithHeaders,
+            output = outputStream.buffered(),
+            limiter = limiter,
+            decryptor = HlsDecryptor(downloadClient, ::createRequestWithHeaders),
+            lease = lease,
+            onWritten = { writtenSegments, writtenBytes ->
+              stored.end = resumedBytes + writtenBytes
+              val now = System.currentTimeMillis()
+              if (now - lastJournalWrite >= JOURNAL_INTERVAL_MS) {
+                lastJournalWrite = now
+                journal.write(
+                  HlsResumeJournal.State(
+                    playlistHash = playlistHash,
+                    segmentCount = totalSegments,
+                    completedSegments = skippedSegments + writtenSegments,
+                    byteOffset = resumedBytes + writtenBytes
+                  )
                 )
-
-                // Return segment data with its index
-                Pair(globalIndex, segmentData)
-
-              } finally {
-                semaphore.release()
               }
             }
-          }
-        }
+          )
 
-        // Wait for current batch to complete and write segments in order
-        val batchResults: List<Pair<Int, ByteArray>> = batchJobs.map { it.await() }
-        batchResults.forEach { (index: Int, data: ByteArray) ->
-          segmentDataMap[index] = data
-        }
-
-        // Write completed segments to file in order
-        val startIndex = batchIndex * batchSize
-        val endIndex = minOf(startIndex + batchSize, totalSegments)
-
-        for (i in startIndex until endIndex) {
-          segmentDataMap[i]?.let { segmentData ->
-            outputStream.write(segmentData)
-            outputStream.flush()
-            segmentDataMap.remove(i) // Free memory after writing
+          pipeline.run(segments.drop(skippedSegments)) { segment, segmentBytes, sessionBytes, sessionSegments ->
+            if (isStopped) {
+              throw InterruptedException("Download was stopped")
+            }
+            sizeEstimator.record(segment, segmentBytes)
+            val estimatedTotalBytes = sizeEstimator.estimate()
+            val bytes = resumedBytes + sessionBytes
+            val completedSegments = skippedSegments + sessionSegments
+            downloadedBytes.set(bytes)
+            val now = System.currentTimeMillis()
+
+            // Calculate download speed
+            val currentSpeed = calculateDownloadSpeed(
+              downloadStartTime,
+              lastSpeedUpdateTime.get(),
+              lastSpeedUpdateBytes.get(),
+              sessionBytes,
+              sessionBytes - lastSpeedUpdateBytes.get(),
+              now - lastSpeedUpdateTime.get(),
+              speedSamples,
+              maxSpeedSamples
+            )
+            lastSpeedUpdateTime.set(now)
+            lastSpeedUpdateBytes.set(sessionBytes)
+
+            // Update progress
+            updateProgress(
+              params.downloadId,
+              displayName,
+              bytes,
+              estimatedTotalBytes,
+              currentSpeed,
+              quality = params.quality,
+              segmentsDownloaded = completedSegments,
+              totalSegment = totalSegments,
+              connections = limiter.window
+            )
+
+            Timber.d(
+              "Downloaded $completedSegments/$totalSegments segments (${formatSpeed(currentSpeed)}) - Total: ${
+                formatFileSize(bytes)
+              }/${formatFileSize(estimatedTotalBytes)}"
+            )
           }
         }
       }
+      completed = true
+    } finally {
+      progressiveDownloads.close(params.downloadId, completed)
+      storageBudget.release(params.downloadId)
     }
 
+    journal.delete()
+
     val finalSize =
       downloadedBytes.get() // Use actual downloaded bytes instead of outputFile.length()
     val filePath = outputFile.uri.path ?: outputFile.uri.toString()
@@ -302,20 +275,13 @@ class HlsDownloader @AssistedInject constructor(
   }
 
   private suspend fun fetchPlaylist(url: String): String = withContext(Dispatchers.IO) {
-    // Use simple client for playlist fetching (no progress needed)
-    val simpleClient = OkHttpClient.Builder()
-      .followRedirects(true)
-      .followSslRedirects(true)
-      .build()
-
     val request = createRequestWithHeaders(url)
-    val response = simpleClient.newCall(request).execute()
-
-    if (!response.isSuccessful) {
-      throw IOException("Failed to fetch playlist: HTTP ${response.code}")
+    downloadClient.newCall(request).execute().use { response ->
+      if (!response.isSuccessful) {
+        throw IOException("Failed to fetch playlist: HTTP ${response.code}")
+      }
+      response.body.string()
     }
-
-    response.body.string()
   }
 
   private suspend fun downloadSegmentWithProgress(client: OkHttpClient, url: String): ByteArray =
@@ -330,53 +296,31 @@ class HlsDownloader @AssistedInject constructor(
       response.body.bytes()
     }
 
-  private fun selectBestVariant(masterPlaylist: String, quality: String, baseUrl: String): String {
-    val lines = masterPlaylist.lines()
-    val variants = mutableListOf<Pair<String, Int>>() // URL to bandwidth
-
-    var i = 0
-    while (i < lines.size) {
-      val line = lines[i].trim()
-      if (line.startsWith("#EXT-X-STREAM-INF:")) {
-        val bandwidth = extractBandwidth(line)
-        if (i + 1 < lines.size && !lines[i + 1].startsWith("#")) {
-          val variantUrl = lines[i + 1].trim()
-          // Convert relative URL to absolute URL
-          val absoluteUrl = if (variantUrl.startsWith("http")) {
-            variantUrl
-          } else {
-            try {
-              URI.create(baseUrl).resolve(variantUrl).toString()
-            } catch (e: Exception) {
-              Timber.w(e, "Failed to resolve variant URL: $variantUrl")
-              continue
-            }
-          }
-          variants.add(Pair(absoluteUrl, bandwidth))
-        }
-      }
-      i++
-    }
-
-    if (variants.isEmpty()) {
-      // Not a master playlist, return original URL
-      return baseUrl
+  /**
+   * The variant of [masterPlaylist] matching [quality], or null when it is a media playlist.
+   */
+  private fun selectBestVariant(masterPlaylist: String, quality: String, baseUrl: String): HlsVariant? {
+    val variants = try {
+      HlsPlaylistParser.parseMaster(masterPlaylist, baseUrl)
+    } catch (e: Exception) {
+      Timber.w(e, "Failed to parse master playlist: $baseUrl")
+      emptyList()
     }
+    if (variants.isEmpty()) return null
 
     // Select variant based on quality preference
     return when (quality.lowercase()) {
-      "low" -> variants.minByOrNull { it.second }?.first
-      "high" -> variants.maxByOrNull { it.second }?.first
-      else -> variants.sortedBy { it.second }.getOrNull(variants.size / 2)?.first
-    } ?: variants.first().first
+      "low" -> variants.minByOrNull { it.bandwidth }
+      "high" -> variants.maxByOrNull { it.bandwidth }
+      else -> variants.sortedBy { it.bandwidth }.getOrNull(variants.size / 2)
+    } ?: variants.first()
   }
 
-  private fun extractBandwidth(streamInfLine: String): Int {
-    val bandwidthRegex = "BANDWIDTH=(\\d+)".toRegex()
-    return bandwidthRegex.find(streamInfLine)?.groupValues?.get(1)?.toIntOrNull() ?: 0
-  }
-
-  private suspend fun parseSegments(playlist: String, baseUrl: String): List<String> {
+  /**
+   * Everything to fetch for [playlist], in output order: init sections and media segments with
+   * their keys and byte ranges. Master playlists and lists of sub-playlists are followed.
+   */
+  private suspend fun parseSegments(playlist: String, baseUrl: String): List<HlsSegment> {
     val baseUri = try {
       URI.create(baseUrl)
     } catch (e: Exception) {
@@ -384,66 +328,31 @@ class HlsDownloader @AssistedInject constructor(
       return emptyList()
     }
 
-    val lines = playlist.lines()
-    val segments = mutableListOf<String>()
-
-    // Check if this is a media playlist (contains actual segments) or master playlist (contains sub-playlists)
-    val hasMediaSegments = lines.any { line ->
-      val trimmed = line.trim()
-      !trimmed.startsWith("#") && trimmed.isNotBlank() &&
-        (trimmed.endsWith(".ts") || trimmed.endsWith(".m4s") || trimmed.endsWith(".mp4"))
+    val subPlaylistUrls = if (HlsPlaylistParser.isMedia(playlist)) emptyList() else {
+      HlsPlaylistParser.parseMaster(playlist, baseUrl).map { it.url }.ifEmpty {
+        playlist.lines().map { it.trim() }
+          .filter { !it.startsWith("#") && it.endsWith(".m3u8") }
+          .mapNotNull { HlsPlaylistParser.resolve(it, baseUri) }
+      }
     }
 
-    if (hasMediaSegments) {
-      // This is a media playlist - parse actual media segments
-      lines.forEach { line ->
-        val trimmed = line.trim()
-        if (!trimmed.startsWith("#") && trimmed.isNotBlank()) {
-          val segmentUrl = resolveUrl(trimmed, baseUri)
-          if (segmentUrl != null) {
-            segments.add(segmentUrl)
-          }
-        }
-      }
+    val segments = mutableListOf<HlsSegment>()
+    if (subPlaylistUrls.isEmpty()) {
+      // A media playlist, or a bare list of segment URLs which parses the same way
+      segments += HlsPlaylistParser.parseMedia(playlist, baseUrl).downloadParts()
     } else {
-      // This might be a master playlist or contains sub-playlists - recursively parse them
-      val subPlaylistUrls = mutableListOf<String>()
-
-      lines.forEach { line ->
-        val trimmed = line.trim()
-        if (!trimmed.startsWith("#") && trimmed.isNotBlank() && trimmed.endsWith(".m3u8")) {
-          val subPlaylistUrl = resolveUrl(trimmed, baseUri)
-          if (subPlaylistUrl != null) {
-            subPlaylistUrls.add(subPlaylistUrl)
-          }
-        }
-      }
-
-      // If we found sub-playlists, fetch and parse them recursively
-      if (subPlaylistUrls.isNotEmpty()) {
-        for (subPlaylistUrl in subPlaylistUrls) {
-          try {
-            Timber.d("Fetching sub-playlist: $subPlaylistUrl")
-            val subPlaylist = fetchPlaylist(subPlaylistUrl)
-            // Use the sub-playlist URL as base for resolving its segments
-            val subSegments = parseSegments(subPlaylist, subPlaylistUrl)
-            segments.addAll(subSegments)
-            Timber.d("Found ${subSegments.size} segments in sub-playlist: $subPlaylistUrl")
-          } catch (e: Exception) {
-            Timber.w(e, "Failed to fetch sub-playlist: $subPlaylistUrl")
-            // Continue with other sub-playlists
-          }
-        }
-      } else {
-        // No sub-playlists found, treat as regular segments (fallback)
-        lines.forEach { line ->
-          val trimmed = line.trim()
-          if (!trimmed.startsWith("#") && trimmed.isNotBlank()) {
-            val segmentUrl = resolveUrl(trimmed, baseUri)
-            if (segmentUrl != null) {
-              segments.add(segmentUrl)
-            }
-          }
+      // Sub-playlists, fetch and parse them recursively
+      for (subPlaylistUrl in subPlaylistUrls) {
+        try {
+          Timber.d("Fetching sub-playlist: $subPlaylistUrl")
+          val subPlaylist = fetchPlaylist(subPlaylistUrl)
+          // Use the sub-playlist URL as base for resolving its segments
+          val subSegments = parseSegments(subPlaylist, subPlaylistUrl)
+          segments.addAll(subSegments)
+          Timber.d("Found ${subSegments.size} segments in sub-playlist: $subPlaylistUrl")
+        } catch (e: Exception) {
+          Timber.w(e, "Failed to fetch sub-playlist: $subPlaylistUrl")
+          // Continue with other sub-playlists
         }
       }
     }
@@ -452,24 +361,6 @@ class HlsDownloader @AssistedInject constructor(
     return segments
   }
 
-  /**
-   * Helper function to properly resolve relative URLs to absolute URLs
-   */
-  private fun resolveUrl(url: String, baseUri: URI): String? {
-    return try {
-      if (url.startsWith("http://") || url.startsWith("https://")) {
-        // Already absolute URL
-        url
-      } else {
-        // Relative URL - resolve against base URI
-        baseUri.resolve(url).toString()
-      }
-    } catch (e: Exception) {
-      Timber.w(e, "Failed to resolve URL: $url with base: $baseUri")
-      null
-    }
-  }
-
   private fun extractDownloadParams(): HlsDownloadParams {
     return HlsDownloadParams(
       downloadId = inputData.getString(KEY_DOWNLOAD_ID) ?: "",
@@ -488,18 +379,22 @@ class HlsDownloader @AssistedInject constructor(
     currentSpeed: Long,
     quality: String,
     segmentsDownloaded: Int,
-    totalSegment: Int
+    totalSegment: Int,
+    connections: Int
   ) {
     val now = System.currentTimeMillis()
     if (now - lastProgressUpdateTime < 1000) return // Only update once per second
     lastProgressUpdateTime = now
 
     val progress = if (totalBytes > 0) {
-      ((downloadedBytes * 100) / totalBytes).toInt()
+      ((downloadedBytes * 100) / totalBytes).toInt().coerceAtMost(99)
+    } else if (totalSegment > 0) {
+      segmentsDownloaded * 100 / totalSegment
     } else 0
 
     val keys = DownloadData.Companion.Keys
-    setProgressAsync(
+    progressBus.publish(
+      downloadId,
       workDataOf(
         keys.DOWNLOAD_ID to downloadId,
         keys.PROGRESS to progress,
@@ -509,7 +404,8 @@ class HlsDownloader @AssistedInject constructor(
         keys.DOWNLOAD_SPEED to currentSpeed,
         keys.QUALITY to quality,
         keys.SEGMENTS_DOWNLOADED to segmentsDownloaded,
-        keys.TOTAL_SEGMENTS to totalSegment
+        keys.TOTAL_SEGMENTS to totalSegment,
+        keys.CONNECTIONS to connections
       )
     )
 
@@ -531,7 +427,8 @@ class HlsDownloader @AssistedInject constructor(
     fileSize: Long
   ) {
     val keys = DownloadData.Companion.Keys
-    setProgressAsync(
+    progressBus.publish(
+      downloadId,
       workDataOf(
         keys.PROGRESS to 100,
         keys.DOWNLOADED_BYTES to fileSize,
@@ -693,7 +590,7 @@ class HlsDownloader @AssistedInject constructor(
   /**
    * Detect MIME type based on HLS playlist and segment information
    */
-  private fun detectHlsMimeType(playlist: String, segments: List<String>): String {
+  private fun detectHlsMimeType(playlist: String, segments: List<HlsSegment>): String {
     // 1. Check playlist for CODECS information
     val lines = playlist.lines()
     for (line in lines) {
@@ -717,8 +614,8 @@ class HlsDownloader @AssistedInject constructor(
 
     // 2. Check segment file extensions
     if (segments.isNotEmpty()) {
-      val segmentExtensions = segments.take(5).map { url ->
-        url.substringAfterLast('.').lowercase()
+      val segmentExtensions = segments.take(5).map { segment ->
+        segment.url.substringBefore('?').substringAfterLast('.').lowercase()
       }.distinct()
 
       for (extension in segmentExtensions) {
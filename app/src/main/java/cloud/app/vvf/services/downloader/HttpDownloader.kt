@@ -8,10 +8,19 @@ import androidx.work.Data
 import androidx.work.WorkerParameters
 import androidx.work.workDataOf
 import cloud.app.vvf.R
+import cloud.app.vvf.services.downloader.helper.BandwidthGovernor
 import cloud.app.vvf.services.downloader.helper.DownloadFileManager
 import cloud.app.vvf.services.downloader.helper.DownloadFileManager.Companion.uriToSlug
 import cloud.app.vvf.services.downloader.helper.DownloadNotificationManager
+import cloud.app.vvf.services.downloader.helper.DownloadTransport
+import cloud.app.vvf.services.downloader.helper.HostConcurrencyController
 import cloud.app.vvf.services.downloader.helper.HttpDownloadClient
+import cloud.app.vvf.services.downloader.helper.HttpValidators
+import cloud.app.vvf.services.downloader.helper.InsufficientStorageException
+import cloud.app.vvf.services.downloader.helper.ProgressiveDownloads
+import cloud.app.vvf.services.downloader.helper.RangeResumeJournal
+import cloud.app.vvf.services.downloader.helper.StorageBudget
+import cloud.app.vvf.services.downloader.stateMachine.DownloadProgressBus
 import cloud.app.vvf.utils.KUniFile
 import dagger.assisted.Assisted
 import dagger.assisted.AssistedInject
@@ -23,7 +32,13 @@ import javax.inject.Inject
 @HiltWorker
 class HttpDownloader @AssistedInject constructor(
   @Assisted val context: Context,
-  @Assisted workerParameters: WorkerParameters
+  @Assisted workerParameters: WorkerParameters,
+  private val concurrencyController: HostConcurrencyController,
+  transport: DownloadTransport,
+  private val governor: BandwidthGovernor,
+  private val progressBus: DownloadProgressBus,
+  private val progressiveDownloads: ProgressiveDownloads,
+  private val storageBudget: StorageBudget
 ) : CoroutineWorker(context, workerParameters) {
 
   @Inject
@@ -36,11 +51,15 @@ class HttpDownloader @AssistedInject constructor(
     const val KEY_RESUME_PROGRESS = "resume_progress"
     const val KEY_RESUME_BYTES = "resume_bytes"
     const val KEY_RESUME_FROM_PAUSE = "resume_from_pause"
+    const val KEY_ETAG = "etag"
+    const val KEY_LAST_MODIFIED = "last_modified"
+    const val KEY_CONTENT_LENGTH = "content_length"
+    const val KEY_MIRRORS = "mirrors"
   }
 
   private val notificationManager = DownloadNotificationManager(context)
   private val fileManager = DownloadFileManager(context)
-  private val httpClient = HttpDownloadClient()
+  private val httpClient = HttpDownloadClient(transport.client)
 
   override suspend fun doWork(): Result {
     val downloadParams = extractDownloadParams()
@@ -68,10 +87,13 @@ class HttpDownloader @AssistedInject constructor(
     } catch (e: Exception) {
       Timber.e(e, "HTTP download failed for ${downloadParams.downloadId}")
       val keys = DownloadData.Companion.Keys
+      val noSpace = generateSequence<Throwable>(e) { it.cause }.filterIsInstance<InsufficientStorageException>().firstOrNull()
       Result.failure(
         workDataOf(
           keys.ERROR to (e.message ?: "Unknown HTTP download error"),
-          keys.DOWNLOAD_ID to downloadParams.downloadId
+          keys.DOWNLOAD_ID to downloadParams.downloadId,
+          keys.INSUFFICIENT_STORAGE to (noSpace != null),
+          keys.TOTAL_BYTES to (noSpace?.length ?: 0L)
         )
       )
     }
@@ -82,55 +104,86 @@ class HttpDownloader @AssistedInject constructor(
       throw InterruptedException("Download was stopped")
     }
 
-    // Create or get file for download
-    val (mediaFile, _) = fileManager.createOrGetFile(
-      params.downloadUrl.uriToSlug(),
-      null,
-      params.isResuming,
-      params.resumeBytes
-    )
+    // Create or get file for download; ranged downloads keep their progress in the journal
+    val journal = RangeResumeJournal(context, params.downloadId)
+    val (mediaFile, _) = if (params.isResuming && journal.read() != null) {
+      fileManager.findOrCreateFile(params.downloadUrl.uriToSlug(), null)
+    } else {
+      journal.delete()
+      fileManager.createOrGetFile(
+        params.downloadUrl.uriToSlug(),
+        null,
+        params.isResuming,
+        params.resumeBytes
+      )
+    }
 
     // Use parallel download
     var lastProgress = 0L
     var lastUpdateTime = 0L
     var lastDownloadedBytes = 0L
     val keys = DownloadData.Companion.Keys
-    val threadCount = sharedPreferences.getInt(
-      context.getString(R.string.pref_download_batch_size),
-      Runtime.getRuntime().availableProcessors().coerceAtLeast(1)
-    )
-    httpClient.downloadFileParallel(
+    val limiter = concurrencyController.limiter(
       params.downloadUrl,
-      mediaFile,
-      threadCount = threadCount,
-      progressCallback = { downloaded, total ->
-        if (isStopped) return@downloadFileParallel
-        val percent = ((downloaded - lastProgress) * 100 / total).toInt()
-        val now = System.currentTimeMillis()
-        // Calculate download speed (bytes per second, smoothed over 1s)
-        val timeDiff = now - lastUpdateTime
-        val bytesDiff = downloaded - lastDownloadedBytes
-        val downloadSpeed = if (timeDiff > 0 && lastUpdateTime > 0) {
-          (bytesDiff * 1000) / timeDiff
-        } else 0L
-        Timber.d("Download progress: $percent% ($downloaded / $total bytes) for ${params.downloadId}, speed: ${formatFileSize(downloadSpeed)}/s")
-        if (total > 0 && downloaded > 0 && percent > 1) {
-          lastProgress = downloaded
-          lastDownloadedBytes = downloaded
-          lastUpdateTime = now
-          val progress = ((downloaded * 100) / total).toInt()
-
-          setProgressAsync(
-            workDataOf(
-              keys.PROGRESS to progress,
-              keys.DOWNLOADED_BYTES to downloaded,
-              keys.TOTAL_BYTES to total,
-              keys.DOWNLOAD_SPEED to downloadSpeed,
-              keys.DOWNLOAD_ID to params.downloadId,
-              keys.DISPLAY_NAME to (mediaFile.name ?: mediaFile.uri.toString()),
-              keys.CONNECTIONS to threadCount
-            )
-          )
+      sharedPreferences.getInt(
+        context.getString(R.string.pref_download_batch_size),
+        HostConcurrencyController.DEFAULT_INITIAL_WINDOW
+      )
+    )
+    val mirrors = params.mirrors.associateWith { concurrencyController.limiter(it, limiter.window) }
+    val connections = { (listOf(limiter) + mirrors.values).distinct().sumOf { it.window } }
+    var validators = params.validators ?: HttpValidators()
+    // Readable by the player while it downloads
+    val progressive = progressiveDownloads.open(params.downloadId, params.downloadUrl, mediaFile)
+    var completed = false
+    val verified = try {
+      governor.register(params.downloadId).use { lease ->
+        httpClient.downloadFileParallel(
+          params.downloadUrl,
+          mediaFile,
+          limiter = limiter,
+          journal = journal,
+          knownValidators = params.validators?.takeIf { params.isResuming },
+          mirrors = mirrors,
+          lease = lease,
+          onValidators = {
+            validators = it
+            // Fails before anything is written when the file would not fit
+            if (it.contentLength > 0) storageBudget.reserve(params.downloadId, mediaFile, it.contentLength)
+          },
+          onRanges = { ranges, length -> progressive.attach(ranges, length) },
+          progressCallback = { downloaded, total ->
+            if (isStopped) return@downloadFileParallel
+            val percent = ((downloaded - lastProgress) * 100 / total).toInt()
+            val now = System.currentTimeMillis()
+            // Calculate download speed (bytes per second, smoothed over 1s)
+            val timeDiff = now - lastUpdateTime
+            val bytesDiff = downloaded - lastDownloadedBytes
+            val downloadSpeed = if (timeDiff > 0 && lastUpdateTime > 0) {
+              (bytesDiff * 1000) / timeDiff
+            } else 0L
+            Timber.d("Download progress: $percent% ($downloaded / $total bytes) for ${params.downloadId}, speed: ${formatFileSize(downloadSpeed)}/s")
+            if (total > 0 && downloaded > 0 && percent > 1) {
+              lastProgress = downloaded
+              lastDownloadedBytes = downloaded
+              lastUpdateTime = now
+              val progress = ((downloaded * 100) / total).toInt()
+
+              progressBus.publish(
+                params.downloadId,
+                workDataOf(
+                  keys.PROGRESS to progress,
+                  keys.DOWNLOADED_BYTES to downloaded,
+                  keys.TOTAL_BYTES to total,
+                  keys.DOWNLOAD_SPEED to downloadSpeed,
+                  keys.DOWNLOAD_ID to params.downloadId,
+                  keys.DISPLAY_NAME to (mediaFile.name ?: mediaFile.uri.toString()),
+                  keys.CONNECTIONS to connections(),
+                  keys.ETAG to validators.etag,
+                  keys.LAST_MODIFIED to validators.lastModified,
+                  keys.CONTENT_LENGTH to validators.contentLength
+                )
+              )
 //          notificationManager.updateNotification(
 //            this,
 //            params.downloadId,
@@ -139,9 +192,14 @@ class HttpDownloader @AssistedInject constructor(
 //            DownloadStatus.DOWNLOADING,
 //            "Downloading... $progress% • ${formatFileSize(downloaded)} / ${formatFileSize(total)}"
 //          )
-        }
-      }
-    )
+            }
+          }
+        )
+      }.also { completed = true }
+    } finally {
+      progressiveDownloads.close(params.downloadId, completed)
+      storageBudget.release(params.downloadId)
+    }
 
     val filename = mediaFile.name ?: mediaFile.uri.toString().substringAfterLast('/')
     notificationManager.showCompletionNotification(
@@ -158,6 +216,10 @@ class HttpDownloader @AssistedInject constructor(
       keys.DOWNLOADED_BYTES to (mediaFile.length() ?: 0L),
       keys.TOTAL_BYTES to (mediaFile.length() ?: 0L),
       keys.PROGRESS to 100,
+      keys.ETAG to verified.validators.etag,
+      keys.LAST_MODIFIED to verified.validators.lastModified,
+      keys.CONTENT_LENGTH to verified.validators.contentLength,
+      keys.SHA256 to verified.sha256
     )
   }
 
@@ -182,7 +244,13 @@ class HttpDownloader @AssistedInject constructor(
       downloadType = inputData.getString(KEY_DOWNLOAD_TYPE) ?: "HTTP",
       resumeProgress = inputData.getInt(KEY_RESUME_PROGRESS, 0),
       resumeBytes = inputData.getLong(KEY_RESUME_BYTES, 0L),
-      isResuming = inputData.getBoolean(KEY_RESUME_FROM_PAUSE, false)
+      isResuming = inputData.getBoolean(KEY_RESUME_FROM_PAUSE, false),
+      validators = inputData.getString(KEY_ETAG).let { etag ->
+        val lastModified = inputData.getString(KEY_LAST_MODIFIED)
+        if (etag == null && lastModified == null) null
+        else HttpValidators(etag, lastModified, inputData.getLong(KEY_CONTENT_LENGTH, -1L))
+      },
+      mirrors = inputData.getStringArray(KEY_MIRRORS)?.toList() ?: emptyList()
     )
   }
 
@@ -192,7 +260,9 @@ class HttpDownloader @AssistedInject constructor(
     val downloadType: String,
     val resumeProgress: Int,
     val resumeBytes: Long,
-    val isResuming: Boolean
+    val isResuming: Boolean,
+    val validators: HttpValidators? = null,
+    val mirrors: List<String> = emptyList()
   ) {
     fun isValid(): Boolean = downloadId.isNotEmpty() && downloadUrl.isNotEmpty()
   }
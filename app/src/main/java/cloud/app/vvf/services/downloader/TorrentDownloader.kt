@@ -7,8 +7,11 @@ import androidx.work.WorkerParameters
 import androidx.work.workDataOf
 import cloud.app.vvf.features.player.torrent.TorrentManager
 import cloud.app.vvf.network.api.torrentserver.TorrentStatus
+import cloud.app.vvf.services.downloader.helper.BandwidthGovernor
 import cloud.app.vvf.services.downloader.helper.DownloadFileManager
 import cloud.app.vvf.services.downloader.helper.DownloadNotificationManager
+import cloud.app.vvf.services.downloader.helper.DownloadTransport
+import cloud.app.vvf.services.downloader.stateMachine.DownloadProgressBus
 import dagger.assisted.Assisted
 import dagger.assisted.AssistedInject
 import kotlinx.coroutines.Dispatchers
@@ -17,7 +20,6 @@ import kotlinx.coroutines.withContext
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.CoroutineScope
-import okhttp3.OkHttpClient
 import okhttp3.Request
 import timber.log.Timber
 import java.io.IOException
@@ -28,6 +30,9 @@ import javax.inject.Inject
 class TorrentDownloader @AssistedInject constructor(
   @Assisted val context: Context,
   @Assisted workerParameters: WorkerParameters,
+  private val transport: DownloadTransport,
+  private val governor: BandwidthGovernor,
+  private val progressBus: DownloadProgressBus
 ) : CoroutineWorker(context, workerParameters) {
 
   @Inject
@@ -124,14 +129,7 @@ class TorrentDownloader @AssistedInject constructor(
       return@withContext downloadFromStreamUrl(streamUrl, params)
 
     } catch (e: Exception) {
-      Timber.w(e, "TorrentManager transform failed, reporting error to UI")
-      // Update progress to UI with error state
-      setProgressAsync(
-        workDataOf(
-          DownloadData.Companion.Keys.ERROR to (e.message ?: "TorrentManager transform failed"),
-          DownloadData.Companion.Keys.DOWNLOAD_ID to params.downloadId
-        )
-      )
+      Timber.w(e, "TorrentManager transform failed")
       throw e // propagate error to be handled by doWork
     }
   }
@@ -172,11 +170,7 @@ class TorrentDownloader @AssistedInject constructor(
       0L
     )
 
-    // Configure HTTP client for streaming download
-    val client = OkHttpClient.Builder()
-      .followRedirects(true)
-      .followSslRedirects(true)
-      .build()
+    val client = transport.client
 
     val request = Request.Builder()
       .url(streamUrl)
@@ -193,23 +187,26 @@ class TorrentDownloader @AssistedInject constructor(
     val startTime = System.currentTimeMillis()
 
     // Download the stream to file
-    response.body?.byteStream()?.use { inputStream ->
-      outputFile.openOutputStream().use { outputStream ->
-        val buffer = ByteArray(8192)
-        var bytesRead: Int
-
-        while (inputStream.read(buffer).also { bytesRead = it } != -1 &&
-          isDownloadActive.get() && isActive && !isStopped) {
-          outputStream.write(buffer, 0, bytesRead)
-          downloadedSize += bytesRead
-
-          // Update progress directly
-          updateProgress(
-            params.downloadId,
-            currentTorrentStatus?.name ?: params.downloadId,
-            downloadedSize,
-            totalSize
-          )
+    governor.register(params.downloadId).use { lease ->
+      response.body?.byteStream()?.use { inputStream ->
+        outputFile.openOutputStream().use { outputStream ->
+          val buffer = ByteArray(8192)
+          var bytesRead: Int
+
+          while (inputStream.read(buffer).also { bytesRead = it } != -1 &&
+            isDownloadActive.get() && isActive && !isStopped) {
+            outputStream.write(buffer, 0, bytesRead)
+            downloadedSize += bytesRead
+            lease.acquire(bytesRead)
+
+            // Update progress directly
+            updateProgress(
+              params.downloadId,
+              currentTorrentStatus?.name ?: params.downloadId,
+              downloadedSize,
+              totalSize
+            )
+          }
         }
       }
     }
@@ -256,7 +253,8 @@ class TorrentDownloader @AssistedInject constructor(
     } else 0
 
     val keys = DownloadData.Companion.Keys
-    setProgressAsync(
+    progressBus.publish(
+      downloadId,
       workDataOf(
         keys.PROGRESS to progress,
         keys.DOWNLOADED_BYTES to downloadedBytes,
@@ -289,7 +287,8 @@ class TorrentDownloader @AssistedInject constructor(
     fileSize: Long
   ) {
     val keys = DownloadData.Companion.Keys
-    setProgressAsync(
+    progressBus.publish(
+      downloadId,
       workDataOf(
         keys.PROGRESS to 100,
         keys.DOWNLOADED_BYTES to fileSize,
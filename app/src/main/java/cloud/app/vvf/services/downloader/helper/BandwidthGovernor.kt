@@ -0,0 +1,135 @@
+package cloud.app.vvf.services.downloader.helper
+
+import android.content.Context
+import android.content.SharedPreferences
+import cloud.app.vvf.R
+import kotlinx.coroutines.delay
+import java.io.Closeable
+import java.util.concurrent.ConcurrentHashMap
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Process-wide download bandwidth budget. Every download read loop takes its bytes from a
+ * [Lease], a token bucket refilled at the download's share of the global rate: the rate split by
+ * [Priority] weight over the downloads currently running.
+ *
+ * The global rate is the user cap, lowered to [PLAYBACK_YIELD_RATE] while playback is buffering
+ * when yielding is enabled. Downloads the player is reading from don't yield. Without either the
+ * buckets are bypassed.
+ */
+@Singleton
+class BandwidthGovernor @Inject constructor(
+  private val sharedPreferences: SharedPreferences,
+  context: Context
+) {
+
+  enum class Priority(val weight: Int) {
+    LOW(1),
+    NORMAL(2),
+    HIGH(4)
+  }
+
+  inner class Lease internal constructor(val downloadId: String) : Closeable {
+    internal var tokens = 0.0
+    internal var refilledAt = System.nanoTime()
+
+    /**
+     * Takes [bytes] from the bucket, suspending for as long as the bucket runs into debt.
+     */
+    suspend fun acquire(bytes: Int) {
+      val waitMs = reserve(this, bytes)
+      if (waitMs > 0) delay(waitMs)
+    }
+
+    override fun close() = release(this)
+  }
+
+  private val capKey = context.getString(R.string.pref_download_speed_limit)
+  private val yieldKey = context.getString(R.string.pref_download_yield_to_playback)
+
+  private val leases = mutableListOf<Lease>()
+  private val priorities = ConcurrentHashMap<String, Priority>()
+  private val feedingPlayback = ConcurrentHashMap.newKeySet<String>()
+
+  @Volatile
+  private var playbackBuffering = false
+
+  fun register(downloadId: String): Lease = synchronized(this) {
+    Lease(downloadId).also { leases += it }
+  }
+
+  private fun release(lease: Lease) = synchronized(this) {
+    leases.remove(lease)
+    Unit
+  }
+
+  /**
+   * Sets the weight of [downloadId], also before it starts.
+   */
+  fun setPriority(downloadId: String, priority: Priority) {
+    priorities[downloadId] = priority
+  }
+
+  fun clearPriority(downloadId: String) {
+    priorities.remove(downloadId)
+  }
+
+  /**
+   * Told by the player while it is buffering, so downloads back off until it has caught up.
+   */
+  fun setPlaybackBuffering(buffering: Boolean) {
+    playbackBuffering = buffering
+  }
+
+  /**
+   * Told while the player reads [downloadId] as it downloads, yielding to playback would only
+   * starve the playback.
+   */
+  fun setFeedingPlayback(downloadId: String, feeding: Boolean) {
+    if (feeding) feedingPlayback += downloadId else feedingPlayback -= downloadId
+  }
+
+  /**
+   * Global rate in bytes per second for [lease], or null when it may go as fast as it can.
+   */
+  private fun globalRate(lease: Lease): Long? {
+    val cap = sharedPreferences.getInt(capKey, 0).toLong() * BYTES_PER_MBIT
+    val yielding = playbackBuffering && sharedPreferences.getBoolean(yieldKey, true) &&
+      lease.downloadId !in feedingPlayback
+    return listOfNotNull(
+      cap.takeIf { it > 0 },
+      PLAYBACK_YIELD_RATE.takeIf { yielding }
+    ).minOrNull()
+  }
+
+  private fun weightOf(lease: Lease) = (priorities[lease.downloadId] ?: Priority.NORMAL).weight
+
+  /**
+   * Charges [bytes] to [lease] and returns how long to wait for the bucket to be out of debt.
+   */
+  @Synchronized
+  private fun reserve(lease: Lease, bytes: Int): Long {
+    val now = System.nanoTime()
+    val global = globalRate(lease)
+    if (global == null) {
+      lease.tokens = 0.0
+      lease.refilledAt = now
+      return 0L
+    }
+    val totalWeight = leases.sumOf { weightOf(it) }.coerceAtLeast(weightOf(lease))
+    val rate = global.toDouble() * weightOf(lease) / totalWeight
+
+    val elapsedSeconds = (now - lease.refilledAt) / 1_000_000_000.0
+    lease.tokens = (lease.tokens + elapsedSeconds * rate).coerceAtMost(rate * BURST_SECONDS)
+    lease.refilledAt = now
+    lease.tokens -= bytes
+    return if (lease.tokens >= 0) 0L else (-lease.tokens / rate * 1000).toLong()
+  }
+
+  companion object {
+    private const val BYTES_PER_MBIT = 125_000L
+    const val PLAYBACK_YIELD_RATE = 256L * 1024
+    private const val BURST_SECONDS = 0.25
+  }
+}
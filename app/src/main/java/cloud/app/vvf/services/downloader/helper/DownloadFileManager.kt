@@ -7,6 +7,7 @@ import android.os.Environment
 import cloud.app.vvf.R
 import cloud.app.vvf.utils.KUniFile
 import timber.log.Timber
+import java.io.FileOutputStream
 import java.io.IOException
 import androidx.core.content.edit
 
@@ -81,6 +82,19 @@ class DownloadFileManager(private val context: Context) {
     }
   }
 
+  /**
+   * The existing file named [fileName] as it is, for downloads that track their progress
+   * themselves, or a new one.
+   */
+  fun findOrCreateFile(fileName: String, contentType: String?): Pair<KUniFile, Boolean> {
+    val downloadsDir = getDownloadUri()
+    val fullFileName = ensureFileExtension(fileName, contentType)
+    downloadsDir.findFile(fullFileName)?.let { return Pair(it, true) }
+    val newFile = downloadsDir.createFile(fullFileName, contentType ?: "application/octet-stream")
+      ?: throw IOException("Failed to create media file with name: $fullFileName")
+    return Pair(newFile, false)
+  }
+
   private fun handleResumeFile(
     downloadsDir: KUniFile,
     fileName: String,
@@ -130,19 +144,10 @@ class DownloadFileManager(private val context: Context) {
 
   private fun truncateFile(file: KUniFile, targetSize: Long) {
     try {
-      val tempBuffer = ByteArray(targetSize.toInt())
-      var bytesRead = 0
-
-      file.openInputStream().use { input ->
-        bytesRead = input.read(tempBuffer, 0, targetSize.toInt())
-      }
-
-      if (bytesRead > 0) {
-        file.openOutputStream().use { output ->
-          output.write(tempBuffer, 0, bytesRead)
-          output.flush()
-        }
-      }
+      // Truncate in place; resumed HLS files are far too large to copy through memory
+      context.contentResolver.openFileDescriptor(file.uri, "rw")?.use { descriptor ->
+        FileOutputStream(descriptor.fileDescriptor).channel.truncate(targetSize)
+      } ?: throw IOException("Cannot open ${file.uri} for truncation")
     } catch (e: Exception) {
       Timber.e(e, "Failed to truncate file")
       throw e
@@ -0,0 +1,26 @@
+package cloud.app.vvf.services.downloader.helper
+
+import cloud.app.vvf.common.models.video.Video
+
+/**
+ * Whether [this] is one file served over HTTP, not a playlist or a torrent.
+ */
+fun Video.RemoteVideo.isPlainHttp() =
+  uri.startsWith("http") && !uri.contains("m3u8") && magnets.isNullOrEmpty() &&
+    streamingProtocol?.contains("hls", ignoreCase = true) != true
+
+/**
+ * Plain HTTP links among [links] that look like the same file as [this]: the same size, or the
+ * same name at the same quality. The download verifies them before using any.
+ */
+fun Video.RemoteVideo.mirrorsAmong(links: List<Video>): List<String> {
+  if (!isPlainHttp()) return emptyList()
+  return links
+    .filterIsInstance<Video.RemoteVideo>()
+    .filter { it.uri != uri && it.isPlainHttp() }
+    .filter {
+      (fileSize > 0 && it.fileSize == fileSize) ||
+        (fileName.isNotBlank() && it.fileName == fileName && it.streamQuality == streamQuality)
+    }
+    .map { it.uri }
+}
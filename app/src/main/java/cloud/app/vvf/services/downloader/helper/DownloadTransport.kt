@@ -0,0 +1,57 @@
+package cloud.app.vvf.services.downloader.helper
+
+import cloud.app.vvf.network.Interceptors.CacheInterceptor
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.internal.tls.OkHostnameVerifier
+import okhttp3.logging.HttpLoggingInterceptor
+import java.security.KeyStore
+import java.util.concurrent.TimeUnit
+import javax.inject.Inject
+import javax.inject.Singleton
+import javax.net.ssl.SSLContext
+import javax.net.ssl.TrustManagerFactory
+import javax.net.ssl.X509TrustManager
+
+/**
+ * The HTTP client of every download worker. Derived from the app client, so it shares its
+ * connection pool, dispatcher, DNS and cookies, and with them TLS sessions and HTTP/2 connections
+ * across segments, playlists and concurrent downloads.
+ *
+ * The response cache and the interceptors that would buffer or rewrite bodies are left out, and
+ * certificates and host names are checked again, the app client accepts any.
+ */
+@Singleton
+class DownloadTransport @Inject constructor(appClient: OkHttpClient) {
+
+  val client: OkHttpClient = appClient.newBuilder()
+    .cache(null)
+    .apply {
+      interceptors().removeAll { it is HttpLoggingInterceptor }
+      networkInterceptors().removeAll { it is CacheInterceptor }
+    }
+    .apply {
+      val trustManager = platformTrustManager()
+      val sslContext = SSLContext.getInstance("TLS").apply { init(null, arrayOf(trustManager), null) }
+      sslSocketFactory(sslContext.socketFactory, trustManager)
+    }
+    .hostnameVerifier(OkHostnameVerifier)
+    .protocols(listOf(Protocol.HTTP_2, Protocol.HTTP_1_1))
+    .followRedirects(true)
+    .followSslRedirects(true)
+    .retryOnConnectionFailure(true)
+    .connectTimeout(CONNECT_TIMEOUT_S, TimeUnit.SECONDS)
+    .readTimeout(READ_TIMEOUT_S, TimeUnit.SECONDS)
+    .build()
+
+  companion object {
+    private fun platformTrustManager(): X509TrustManager {
+      val factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm())
+      factory.init(null as KeyStore?)
+      return factory.trustManagers.filterIsInstance<X509TrustManager>().first()
+    }
+
+    private const val CONNECT_TIMEOUT_S = 15L
+    private const val READ_TIMEOUT_S = 30L
+  }
+}
@@ -0,0 +1,61 @@
+package cloud.app.vvf.services.downloader.helper
+
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import javax.crypto.Cipher
+import javax.crypto.CipherInputStream
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Streaming AES-128-CBC stage for `#EXT-X-KEY:METHOD=AES-128` segments. Bodies are decrypted
+ * while they are read, keys are fetched once per key URI.
+ */
+class HlsDecryptor(
+  private val client: OkHttpClient,
+  private val requestFactory: (String) -> Request
+) {
+
+  private val keys = ConcurrentHashMap<String, ByteArray>()
+
+  /**
+   * Wraps [input] so it yields the clear bytes of [segment]; unencrypted segments pass through.
+   */
+  fun decrypt(segment: HlsSegment, input: InputStream): InputStream {
+    val key = segment.key?.takeIf { it.isEncrypted } ?: return input
+    if (key.method != HlsKey.METHOD_AES_128) {
+      throw IOException("Unsupported HLS encryption ${key.method}")
+    }
+    val uri = key.uri ?: throw IOException("AES-128 key without URI")
+    val cipher = Cipher.getInstance(TRANSFORMATION).apply {
+      init(Cipher.DECRYPT_MODE, SecretKeySpec(keyBytes(uri), "AES"), IvParameterSpec(ivOf(key, segment)))
+    }
+    return CipherInputStream(input, cipher)
+  }
+
+  private fun keyBytes(uri: String): ByteArray = keys.getOrPut(uri) {
+    client.newCall(requestFactory(uri)).execute().use { response ->
+      if (!response.isSuccessful) throw IOException("Failed to fetch HLS key: HTTP ${response.code}")
+      response.body.bytes().also {
+        if (it.size != KEY_SIZE) throw IOException("HLS key has ${it.size} bytes, expected $KEY_SIZE")
+      }
+    }
+  }
+
+  private fun ivOf(key: HlsKey, segment: HlsSegment): ByteArray {
+    key.iv?.let { hex ->
+      return hex.padStart(KEY_SIZE * 2, '0').chunked(2).map { it.toInt(16).toByte() }.toByteArray()
+    }
+    // No explicit IV: the media sequence number as a 128-bit big-endian integer
+    return ByteBuffer.allocate(KEY_SIZE).putLong(8, segment.sequence).array()
+  }
+
+  companion object {
+    private const val TRANSFORMATION = "AES/CBC/PKCS5Padding"
+    private const val KEY_SIZE = 16
+  }
+}
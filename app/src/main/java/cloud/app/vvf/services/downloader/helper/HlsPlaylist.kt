@@ -0,0 +1,232 @@
+package cloud.app.vvf.services.downloader.helper
+
+import timber.log.Timber
+import java.net.URI
+
+/**
+ * `#EXT-X-BYTERANGE` sub-range of a resource.
+ */
+data class HlsByteRange(val length: Long, val offset: Long) {
+  val rangeHeader get() = "bytes=$offset-${offset + length - 1}"
+}
+
+/**
+ * `#EXT-X-KEY` in effect for a segment. [iv] is the explicit IV as hex, without `0x`; when it is
+ * missing the media sequence number of the segment is used, as the spec requires.
+ */
+data class HlsKey(
+  val method: String,
+  val uri: String?,
+  val iv: String?,
+  val keyFormat: String?
+) {
+  val isEncrypted get() = method != METHOD_NONE
+
+  companion object {
+    const val METHOD_NONE = "NONE"
+    const val METHOD_AES_128 = "AES-128"
+  }
+}
+
+/**
+ * `#EXT-X-MAP` initialization section, written once before the segments that use it.
+ */
+data class HlsInitSection(val url: String, val byteRange: HlsByteRange?)
+
+data class HlsSegment(
+  val url: String,
+  val sequence: Long,
+  val durationSeconds: Double,
+  val byteRange: HlsByteRange? = null,
+  val key: HlsKey? = null,
+  val initSection: HlsInitSection? = null,
+  val discontinuity: Boolean = false,
+  val isInitSection: Boolean = false
+)
+
+data class HlsVariant(
+  val url: String,
+  val bandwidth: Long,
+  val averageBandwidth: Long?,
+  val codecs: String?,
+  val resolution: String?
+)
+
+data class HlsMediaPlaylist(
+  val segments: List<HlsSegment>,
+  val targetDurationSeconds: Double?,
+  val mediaSequence: Long,
+  val endList: Boolean
+) {
+  val durationSeconds get() = segments.sumOf { it.durationSeconds }
+
+  /**
+   * What has to be fetched, in output order: the segments with each init section inserted
+   * before the first segment using it, and again whenever it changes.
+   */
+  fun downloadParts(): List<HlsSegment> = buildList {
+    var currentInit: HlsInitSection? = null
+    segments.forEach { segment ->
+      val init = segment.initSection
+      if (init != null && init != currentInit) {
+        add(
+          HlsSegment(
+            url = init.url,
+            sequence = segment.sequence,
+            durationSeconds = 0.0,
+            byteRange = init.byteRange,
+            key = segment.key,
+            isInitSection = true
+          )
+        )
+      }
+      currentInit = init
+      add(segment)
+    }
+  }
+}
+
+/**
+ * M3U8 parser for the tags the downloader needs, RFC 8216.
+ */
+object HlsPlaylistParser {
+
+  fun isMaster(playlist: String) = playlist.lineSequence().any { it.trim().startsWith(TAG_STREAM_INF) }
+
+  fun isMedia(playlist: String) = playlist.lineSequence().any { it.trim().startsWith(TAG_INF) }
+
+  fun parseMaster(playlist: String, baseUrl: String): List<HlsVariant> {
+    val baseUri = URI.create(baseUrl)
+    val variants = mutableListOf<HlsVariant>()
+    var pending: Map<String, String>? = null
+    playlist.lineSequence().map { it.trim() }.filter { it.isNotEmpty() }.forEach { line ->
+      when {
+        line.startsWith(TAG_STREAM_INF) -> pending = parseAttributes(line.substringAfter(':'))
+        line.startsWith("#") -> Unit
+        else -> pending?.let { attributes ->
+          resolve(line, baseUri)?.let { url ->
+            variants += HlsVariant(
+              url = url,
+              bandwidth = attributes["BANDWIDTH"]?.toLongOrNull() ?: 0L,
+              averageBandwidth = attributes["AVERAGE-BANDWIDTH"]?.toLongOrNull(),
+              codecs = attributes["CODECS"],
+              resolution = attributes["RESOLUTION"]
+            )
+          }
+          pending = null
+        }
+      }
+    }
+    return variants
+  }
+
+  fun parseMedia(playlist: String, baseUrl: String): HlsMediaPlaylist {
+    val baseUri = URI.create(baseUrl)
+    val segments = mutableListOf<HlsSegment>()
+    var targetDuration: Double? = null
+    var mediaSequence = 0L
+    var endList = false
+
+    var sequence = 0L
+    var duration = 0.0
+    var byteRange: HlsByteRange? = null
+    var discontinuity = false
+    var key: HlsKey? = null
+    var initSection: HlsInitSection? = null
+    // End of the last sub-range per resource, where a range without offset continues
+    val rangeEnds = HashMap<String, Long>()
+
+    playlist.lineSequence().map { it.trim() }.filter { it.isNotEmpty() }.forEach { line ->
+      when {
+        line.startsWith(TAG_TARGET_DURATION) -> targetDuration = line.substringAfter(':').toDoubleOrNull()
+        line.startsWith(TAG_MEDIA_SEQUENCE) -> {
+          mediaSequence = line.substringAfter(':').trim().toLongOrNull() ?: 0L
+          sequence = mediaSequence
+        }
+
+        line.startsWith(TAG_INF) -> duration = line.substringAfter(':').substringBefore(',').trim().toDoubleOrNull() ?: 0.0
+        line.startsWith(TAG_BYTERANGE) -> byteRange = parseByteRange(line.substringAfter(':'), null)
+        line.startsWith(TAG_DISCONTINUITY) && !line.startsWith(TAG_DISCONTINUITY_SEQUENCE) -> discontinuity = true
+        line.startsWith(TAG_KEY) -> {
+          val attributes = parseAttributes(line.substringAfter(':'))
+          val method = attributes["METHOD"] ?: HlsKey.METHOD_NONE
+          key = if (method == HlsKey.METHOD_NONE) null else HlsKey(
+            method = method,
+            uri = attributes["URI"]?.let { resolve(it, baseUri) },
+            iv = attributes["IV"]?.removePrefix("0x")?.removePrefix("0X"),
+            keyFormat = attributes["KEYFORMAT"]
+          )
+        }
+
+        line.startsWith(TAG_MAP) -> {
+          val attributes = parseAttributes(line.substringAfter(':'))
+          initSection = attributes["URI"]?.let { resolve(it, baseUri) }?.let { url ->
+            HlsInitSection(url, attributes["BYTERANGE"]?.let { parseByteRange(it, 0L) })
+          }
+        }
+
+        line.startsWith(TAG_ENDLIST) -> endList = true
+        line.startsWith("#") -> Unit
+        else -> resolve(line, baseUri)?.let { url ->
+          val range = byteRange?.let { range ->
+            if (range.offset >= 0) range else range.copy(offset = rangeEnds[url] ?: 0L)
+          }
+          range?.let { rangeEnds[url] = it.offset + it.length }
+          segments += HlsSegment(
+            url = url,
+            sequence = sequence,
+            durationSeconds = duration,
+            byteRange = range,
+            key = key,
+            initSection = initSection,
+            discontinuity = discontinuity
+          )
+          sequence++
+          duration = 0.0
+          byteRange = null
+          discontinuity = false
+        }
+      }
+    }
+    return HlsMediaPlaylist(segments, targetDuration, mediaSequence, endList)
+  }
+
+  /**
+   * `<n>[@<o>]`; a missing offset is -1 unless [defaultOffset] is given.
+   */
+  private fun parseByteRange(value: String, defaultOffset: Long?): HlsByteRange? {
+    val parts = value.trim().trim('"').split('@')
+    val length = parts[0].toLongOrNull() ?: return null
+    val offset = parts.getOrNull(1)?.toLongOrNull() ?: defaultOffset ?: -1L
+    return HlsByteRange(length, offset)
+  }
+
+  /**
+   * Attribute list of a tag, quoted values may contain commas.
+   */
+  fun parseAttributes(list: String): Map<String, String> =
+    ATTRIBUTE_REGEX.findAll(list).associate { match ->
+      match.groupValues[1] to match.groupValues[2].removeSurrounding("\"")
+    }
+
+  fun resolve(url: String, baseUri: URI): String? = try {
+    if (url.startsWith("http://") || url.startsWith("https://")) url
+    else baseUri.resolve(url).toString()
+  } catch (e: Exception) {
+    Timber.w(e, "Failed to resolve URL: $url with base: $baseUri")
+    null
+  }
+
+  private val ATTRIBUTE_REGEX = Regex("""([A-Z0-9-]+)=("[^"]*"|[^,]*)""")
+
+  private const val TAG_STREAM_INF = "#EXT-X-STREAM-INF"
+  private const val TAG_INF = "#EXTINF"
+  private const val TAG_TARGET_DURATION = "#EXT-X-TARGETDURATION"
+  private const val TAG_MEDIA_SEQUENCE = "#EXT-X-MEDIA-SEQUENCE"
+  private const val TAG_BYTERANGE = "#EXT-X-BYTERANGE"
+  private const val TAG_DISCONTINUITY = "#EXT-X-DISCONTINUITY"
+  private const val TAG_DISCONTINUITY_SEQUENCE = "#EXT-X-DISCONTINUITY-SEQUENCE"
+  private const val TAG_KEY = "#EXT-X-KEY"
+  private const val TAG_MAP = "#EXT-X-MAP"
+  private const val TAG_ENDLIST = "#EXT-X-ENDLIST"
+}
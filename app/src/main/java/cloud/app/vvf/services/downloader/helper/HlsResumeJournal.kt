@@ -0,0 +1,81 @@
+package cloud.app.vvf.services.downloader.helper
+
+import android.content.Context
+import cloud.app.vvf.common.utils.toJson
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.json.Json
+import timber.log.Timber
+import java.io.File
+import java.security.MessageDigest
+
+/**
+ * Per-download record of how far an HLS download got, so a resumed worker can skip the segments
+ * already in the output file instead of starting from the first one.
+ *
+ * Segments are written in playlist order, so progress is the number of leading segments stored
+ * and the output offset right after the last of them.
+ */
+class HlsResumeJournal(context: Context, downloadId: String) {
+
+  @Serializable
+  data class State(
+    val playlistHash: String,
+    val segmentCount: Int,
+    val completedSegments: Int,
+    val byteOffset: Long,
+    val updatedAt: Long = System.currentTimeMillis()
+  )
+
+  private val file = File(File(context.filesDir, JOURNAL_DIR), "$downloadId.json")
+
+  fun read(): State? {
+    if (!file.exists()) return null
+    return try {
+      json.decodeFromString<State>(file.readText())
+    } catch (e: Exception) {
+      Timber.w(e, "Discarding unreadable HLS journal ${file.name}")
+      null
+    }
+  }
+
+  /**
+   * Returns the stored state when it belongs to the playlist with [playlistHash].
+   */
+  fun read(playlistHash: String, segmentCount: Int): State? =
+    read()?.takeIf { it.playlistHash == playlistHash && it.segmentCount == segmentCount }
+
+  fun write(state: State) {
+    try {
+      file.parentFile?.mkdirs()
+      val temp = File(file.path + ".tmp")
+      temp.writeText(state.toJson())
+      temp.renameTo(file)
+    } catch (e: Exception) {
+      Timber.w(e, "Failed to write HLS journal ${file.name}")
+    }
+  }
+
+  fun delete() {
+    file.delete()
+  }
+
+  companion object {
+    private const val JOURNAL_DIR = "hls_journal"
+    private val json = Json { ignoreUnknownKeys = true }
+
+    /**
+     * Identifies a media playlist by its segment paths and byte ranges; query strings are left
+     * out of the paths as signed URLs change between fetches of the same playlist.
+     */
+    fun hashOf(segments: List<Pair<String, String?>>): String {
+      val digest = MessageDigest.getInstance("SHA-256")
+      segments.forEach { (url, range) ->
+        digest.update(url.substringBefore('?').toByteArray())
+        digest.update(0)
+        range?.let { digest.update(it.toByteArray()) }
+        digest.update(0)
+      }
+      return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+  }
+}
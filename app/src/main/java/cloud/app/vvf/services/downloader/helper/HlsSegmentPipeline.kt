@@ -0,0 +1,231 @@
+package cloud.app.vvf.services.downloader.helper
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import timber.log.Timber
+import java.io.IOException
+import java.io.OutputStream
+import kotlin.coroutines.coroutineContext
+
+/**
+ * Downloads HLS segments through a sliding window of requests and writes them to [output] in
+ * playlist order. The window is that of [limiter], which adapts it to how the host copes.
+ *
+ * A new request starts as soon as a permit frees up. Bodies are streamed in chunks: the
+ * segment at the head of the output goes straight to [output], later ones are held in a reorder
+ * buffer of at most [maxBufferedBytes] until they become contiguous. Fetchers wait when the
+ * buffer is full, except the head one, so a slow segment never stalls the pipeline for good.
+ *
+ * Every chunk read is paid for from [lease], which keeps the download within its bandwidth share.
+ *
+ * Byte-range segments are fetched with a `Range` request and encrypted ones go through
+ * [decryptor] while streaming.
+ *
+ * [onWritten] is told after each move of the head how many leading segments and bytes are fully
+ * in [output] (flushed), which is what a resume can safely start from.
+ */
+class HlsSegmentPipeline(
+  private val client: OkHttpClient,
+  private val requestFactory: (String) -> Request,
+  private val output: OutputStream,
+  private val limiter: HostLimiter,
+  private val decryptor: HlsDecryptor? = null,
+  private val lease: BandwidthGovernor.Lease? = null,
+  private val maxBufferedBytes: Long = DEFAULT_MAX_BUFFERED_BYTES,
+  private val maxRetries: Int = DEFAULT_MAX_RETRIES,
+  private val onWritten: (writtenSegments: Int, writtenBytes: Long) -> Unit = { _, _ -> }
+) {
+
+  private class Slot {
+    val chunks = ArrayList<ByteArray>()
+    var done = false
+  }
+
+  private val mutex = Mutex()
+  private val slots = HashMap<Int, Slot>()
+  private var nextIndex = 0
+  private var bufferedBytes = 0L
+  private var writtenBytes = 0L
+
+  // Bumped whenever buffer space frees up or the head moves
+  private val changed = MutableStateFlow(0L)
+
+  /**
+   * Runs the pipeline over [segments] until every one is written.
+   *
+   * @param onProgress called after each finished segment with that segment and its size, the
+   * bytes received so far and the number of finished segments; calls never overlap
+   */
+  suspend fun run(
+    segments: List<HlsSegment>,
+    onProgress: suspend (segment: HlsSegment, segmentBytes: Long, downloadedBytes: Long, completedSegments: Int) -> Unit
+  ) = withContext(Dispatchers.IO) {
+    val progressLock = Mutex()
+    var downloadedBytes = 0L
+    var completedSegments = 0
+
+    coroutineScope {
+      segments.forEachIndexed { index, segment ->
+        limiter.acquire()
+        launch {
+          try {
+            val bytes = fetch(index, segment)
+            complete(index)
+            progressLock.withLock {
+              downloadedBytes += bytes
+              completedSegments++
+              onProgress(segment, bytes, downloadedBytes, completedSegments)
+            }
+          } finally {
+            limiter.release()
+          }
+        }
+      }
+    }
+    output.flush()
+  }
+
+  /**
+   * Streams one segment into the pipeline, retrying from the byte it stopped at.
+   */
+  private suspend fun fetch(index: Int, segment: HlsSegment): Long {
+    var delivered = 0L
+    var attempt = 0
+    val buffer = ByteArray(CHUNK_SIZE)
+    while (true) {
+      coroutineContext.ensureActive()
+      var statusCode: Int? = null
+      try {
+        val sentAt = System.currentTimeMillis()
+        client.newCall(requestOf(segment)).execute().use { response ->
+          limiter.onResponse(System.currentTimeMillis() - sentAt)
+          if (!response.isSuccessful) {
+            statusCode = response.code
+            throw IOException("Failed to download segment ${index + 1}: HTTP ${response.code}: segmentUrl ${segment.url}")
+          }
+          if (segment.byteRange != null && response.code != 206) {
+            throw IOException("Server ignored the byte range of segment ${index + 1}")
+          }
+          val body = response.body.byteStream()
+          val stream = decryptor?.decrypt(segment, body) ?: body
+          // Bytes already handed over on a previous attempt
+          stream.skipFully(delivered)
+          while (true) {
+            val read = stream.read(buffer)
+            if (read == -1) break
+            lease?.acquire(read)
+            offer(index, buffer, read)
+            delivered += read
+            limiter.onBytes(read.toLong())
+          }
+        }
+        return delivered
+      } catch (e: IOException) {
+        limiter.onFailure(statusCode)
+        if (++attempt > maxRetries) throw e
+        Timber.w(e, "Segment ${index + 1} failed, retry $attempt/$maxRetries")
+        delay(RETRY_DELAY_MS * attempt)
+      }
+    }
+  }
+
+  private fun requestOf(segment: HlsSegment): Request {
+    val request = requestFactory(segment.url)
+    val range = segment.byteRange ?: return request
+    return request.newBuilder().header("Range", range.rangeHeader).build()
+  }
+
+  private suspend fun offer(index: Int, data: ByteArray, length: Int) {
+    val reserved = !awaitRoom(index)
+    mutex.withLock {
+      if (index == nextIndex) {
+        if (reserved) release(CHUNK_SIZE.toLong())
+        write(data, length)
+      } else {
+        slots.getOrPut(index) { Slot() }.chunks += data.copyOf(length)
+      }
+    }
+  }
+
+  /**
+   * Returns true when [index] is the head and may write directly, otherwise once a chunk of
+   * buffer space is reserved for it.
+   */
+  private suspend fun awaitRoom(index: Int): Boolean {
+    while (true) {
+      val seen = changed.value
+      mutex.withLock {
+        if (index == nextIndex) return true
+        if (bufferedBytes + CHUNK_SIZE <= maxBufferedBytes) {
+          bufferedBytes += CHUNK_SIZE
+          return false
+        }
+      }
+      changed.first { it != seen }
+    }
+  }
+
+  private suspend fun complete(index: Int) = mutex.withLock {
+    if (index != nextIndex) {
+      slots.getOrPut(index) { Slot() }.done = true
+      return@withLock
+    }
+    slots.remove(index)
+    nextIndex++
+    var committedBytes = writtenBytes
+    // Write out every segment that became contiguous, stop at the first one still in flight
+    while (true) {
+      val slot = slots[nextIndex] ?: break
+      slot.chunks.forEach { write(it, it.size) }
+      release(slot.chunks.size.toLong() * CHUNK_SIZE)
+      slot.chunks.clear()
+      if (!slot.done) break
+      committedBytes = writtenBytes
+      slots.remove(nextIndex)
+      nextIndex++
+    }
+    changed.value++
+    output.flush()
+    onWritten(nextIndex, committedBytes)
+  }
+
+  private fun write(data: ByteArray, length: Int) {
+    output.write(data, 0, length)
+    writtenBytes += length
+  }
+
+  private fun release(bytes: Long) {
+    bufferedBytes -= bytes
+    changed.value++
+  }
+
+  private fun java.io.InputStream.skipFully(count: Long) {
+    var remaining = count
+    while (remaining > 0) {
+      val skipped = skip(remaining)
+      if (skipped <= 0) {
+        if (read() == -1) throw IOException("Segment shorter than on the previous attempt")
+        remaining--
+      } else {
+        remaining -= skipped
+      }
+    }
+  }
+
+  companion object {
+    const val CHUNK_SIZE = 64 * 1024
+    const val DEFAULT_MAX_BUFFERED_BYTES = 32L * 1024 * 1024
+    const val DEFAULT_MAX_RETRIES = 3
+    private const val RETRY_DELAY_MS = 1_000L
+  }
+}
@@ -0,0 +1,78 @@
+package cloud.app.vvf.services.downloader.helper
+
+/**
+ * Estimates the final size of an HLS download without probing segments.
+ *
+ * Byte-range segments have an exact size. The others are estimated from their `#EXTINF`
+ * durations at a bitrate that starts at the variant's `AVERAGE-BANDWIDTH` (or `BANDWIDTH`) and
+ * moves towards the bitrate actually measured as segments arrive. Without durations the mean size
+ * of finished segments is used instead.
+ */
+class HlsSizeEstimator(
+  segments: List<HlsSegment>,
+  private val variant: HlsVariant?
+) {
+
+  private val totalSegments = segments.count { it.byteRange == null }
+  private val totalDuration = segments.sumOf { if (it.byteRange == null) it.durationSeconds else 0.0 }
+  private val knownBytes = segments.sumOf { it.byteRange?.length ?: 0L }
+
+  private var measuredSegments = 0
+  private var measuredDuration = 0.0
+  private var measuredBytes = 0L
+
+  /**
+   * Accounts a finished [segment] of [bytes] bytes, as received after decryption.
+   */
+  @Synchronized
+  fun record(segment: HlsSegment, bytes: Long) {
+    if (segment.byteRange != null) return
+    measuredSegments++
+    measuredDuration += segment.durationSeconds
+    measuredBytes += bytes
+  }
+
+  /**
+   * Accounts the leading [finished] segments of a resumed download, [bytes] long together.
+   */
+  @Synchronized
+  fun recordResumed(finished: List<HlsSegment>, bytes: Long) {
+    val measured = finished.filter { it.byteRange == null }
+    measuredSegments += measured.size
+    measuredDuration += measured.sumOf { it.durationSeconds }
+    measuredBytes += bytes - finished.sumOf { it.byteRange?.length ?: 0L }
+  }
+
+  /**
+   * Estimated total size in bytes, or 0 while nothing is known yet.
+   */
+  @Synchronized
+  fun estimate(): Long {
+    val remainingSegments = totalSegments - measuredSegments
+    if (remainingSegments <= 0) return knownBytes + measuredBytes
+
+    val remainingBytes = if (totalDuration > 0) {
+      bytesPerSecond()?.let { it * (totalDuration - measuredDuration).coerceAtLeast(0.0) }
+    } else if (measuredSegments > 0) {
+      measuredBytes.toDouble() / measuredSegments * remainingSegments
+    } else null
+
+    return remainingBytes?.let { knownBytes + measuredBytes + it.toLong() } ?: 0L
+  }
+
+  /**
+   * Advertised and measured bitrate blended by how much media has been measured, so the
+   * advertised one only matters for the first [PRIOR_WEIGHT_SECONDS] or so.
+   */
+  private fun bytesPerSecond(): Double? {
+    val advertised = (variant?.averageBandwidth ?: variant?.bandwidth)?.takeIf { it > 0 }?.let { it / 8.0 }
+    val measured = if (measuredDuration > 0) measuredBytes / measuredDuration else null
+    if (advertised == null || measured == null) return measured ?: advertised
+    val weight = measuredDuration / (measuredDuration + PRIOR_WEIGHT_SECONDS)
+    return measured * weight + advertised * (1 - weight)
+  }
+
+  companion object {
+    private const val PRIOR_WEIGHT_SECONDS = 30.0
+  }
+}
@@ -0,0 +1,173 @@
+package cloud.app.vvf.services.downloader.helper
+
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import timber.log.Timber
+import java.net.URI
+import java.util.concurrent.ConcurrentHashMap
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * One [HostLimiter] per host, shared by every download worker so they all learn from and respect
+ * the same connection window.
+ */
+@Singleton
+class HostConcurrencyController @Inject constructor() {
+
+  private val limiters = ConcurrentHashMap<String, HostLimiter>()
+
+  /**
+   * The limiter of the host of [url]. [initialWindow] only applies when the host is new.
+   */
+  fun limiter(url: String, initialWindow: Int = DEFAULT_INITIAL_WINDOW): HostLimiter {
+    val host = try {
+      URI.create(url).host
+    } catch (e: Exception) {
+      null
+    } ?: url
+    return limiters.getOrPut(host) { HostLimiter(host, initialWindow) }
+  }
+
+  companion object {
+    const val DEFAULT_INITIAL_WINDOW = 2
+  }
+}
+
+/**
+ * AIMD connection window for one host.
+ *
+ * Every [EVALUATION_INTERVAL_MS] the aggregate throughput of all requests to the host is
+ * compared with the previous interval: while the window is in full use and throughput keeps
+ * improving it grows by one, an increase that did not pay off is undone. Errors and throttling
+ * (429/503) halve it, response latency well above the best seen shrinks it by a quarter.
+ */
+class HostLimiter internal constructor(
+  val host: String,
+  initialWindow: Int,
+  private val minWindow: Int = MIN_WINDOW,
+  private val maxWindow: Int = MAX_WINDOW
+) {
+
+  @Volatile
+  var window = initialWindow.coerceIn(minWindow, maxWindow)
+    private set
+
+  private var inFlight = 0
+
+  private var intervalStart = System.currentTimeMillis()
+  private var intervalBytes = 0L
+  private var lastThroughput = 0L
+  private var grewLastInterval = false
+  private var lastDecrease = 0L
+
+  private var baselineLatency = Long.MAX_VALUE
+  private var recentLatency = 0.0
+
+  // Bumped whenever a permit is released or the window grows
+  private val changed = MutableStateFlow(0L)
+
+  suspend fun acquire() {
+    while (true) {
+      val seen = changed.value
+      synchronized(this) {
+        if (inFlight < window) {
+          inFlight++
+          return
+        }
+      }
+      changed.first { it != seen }
+    }
+  }
+
+  fun release() {
+    synchronized(this) { inFlight-- }
+    changed.value++
+  }
+
+  suspend fun <T> withPermit(block: suspend () -> T): T {
+    acquire()
+    try {
+      return block()
+    } finally {
+      release()
+    }
+  }
+
+  /**
+   * Time from sending a request until its response headers arrived.
+   */
+  @Synchronized
+  fun onResponse(latencyMs: Long) {
+    baselineLatency = minOf(baselineLatency, latencyMs)
+    recentLatency = if (recentLatency == 0.0) latencyMs.toDouble()
+    else recentLatency + (latencyMs - recentLatency) * LATENCY_SMOOTHING
+  }
+
+  fun onBytes(count: Long) {
+    val now = System.currentTimeMillis()
+    synchronized(this) {
+      intervalBytes += count
+      if (now - intervalStart >= EVALUATION_INTERVAL_MS) evaluate(now)
+    }
+  }
+
+  /**
+   * A failed request; [statusCode] is its HTTP status, or null for a connection error.
+   */
+  @Synchronized
+  fun onFailure(statusCode: Int?) {
+    val now = System.currentTimeMillis()
+    // Requests in flight fail together, count them as one congestion event
+    if (now - lastDecrease < EVALUATION_INTERVAL_MS) return
+    val throttled = statusCode == 429 || statusCode == 503
+    decrease(now, window / 2, if (throttled) "throttled ($statusCode)" else "failure ($statusCode)")
+  }
+
+  private fun evaluate(now: Long) {
+    val throughput = intervalBytes * 1000 / (now - intervalStart)
+    val inflated = baselineLatency != Long.MAX_VALUE &&
+      recentLatency > baselineLatency * LATENCY_INFLATION &&
+      recentLatency - baselineLatency > MIN_LATENCY_INFLATION_MS
+    val improved = throughput > lastThroughput * IMPROVEMENT_RATIO
+
+    when {
+      inflated && now - lastDecrease >= EVALUATION_INTERVAL_MS ->
+        decrease(now, window * 3 / 4, "latency ${recentLatency.toLong()}ms over ${baselineLatency}ms")
+
+      grewLastInterval && !improved -> {
+        window = (window - 1).coerceAtLeast(minWindow)
+        grewLastInterval = false
+      }
+
+      improved && inFlight >= window && window < maxWindow -> {
+        window++
+        grewLastInterval = true
+        changed.value++
+        Timber.d("Window for $host grew to $window (${throughput / 1024} KB/s)")
+      }
+
+      else -> grewLastInterval = false
+    }
+    lastThroughput = throughput
+    intervalBytes = 0L
+    intervalStart = now
+  }
+
+  private fun decrease(now: Long, target: Int, reason: String) {
+    window = target.coerceAtLeast(minWindow)
+    grewLastInterval = false
+    lastDecrease = now
+    Timber.d("Window for $host shrank to $window: $reason")
+  }
+
+  companion object {
+    const val MIN_WINDOW = 1
+    const val MAX_WINDOW = 16
+    private const val EVALUATION_INTERVAL_MS = 2_000L
+    private const val IMPROVEMENT_RATIO = 1.05
+    private const val LATENCY_INFLATION = 2.0
+    private const val MIN_LATENCY_INFLATION_MS = 100L
+    private const val LATENCY_SMOOTHING = 0.2
+  }
+}
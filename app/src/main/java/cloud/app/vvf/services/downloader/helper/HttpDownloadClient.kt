@@ -1,9 +1,14 @@
 package cloud.app.vvf.services.downloader.helper
 
+import android.util.Base64
 import cloud.app.vvf.utils.KUniFile
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
 import kotlinx.coroutines.async
 import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import okhttp3.Interceptor
 import okhttp3.MediaType
@@ -18,14 +23,18 @@ import okio.Source
 import okio.buffer
 import okio.use
 import timber.log.Timber
-import java.io.File
 import java.io.IOException
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
 import java.util.concurrent.atomic.AtomicLong
 
-class HttpDownloadClient {
+/**
+ * @param baseClient the shared download client, see [DownloadTransport]
+ */
+class HttpDownloadClient(private val baseClient: OkHttpClient) {
 
   fun createClient(progressCallback: (Long, Long) -> Unit): OkHttpClient {
-    return OkHttpClient.Builder()
+    return baseClient.newBuilder()
       .addNetworkInterceptor(ProgressInterceptor(progressCallback))
       .build()
   }
@@ -34,7 +43,7 @@ class HttpDownloadClient {
    * Check if server supports range requests for chunked download
    */
   private suspend fun checkRangeSupport(url: String): RangeSupport = withContext(Dispatchers.IO) {
-    val client = createClient { _, _ -> }
+    val client = baseClient
 
     try {
       // Method 1: Check HEAD request for Accept-Ranges header
@@ -111,165 +120,367 @@ class HttpDownloadClient {
     val etag: String? = null,
     val lastModified: String? = null,
     val method: String = "unknown"
+  ) {
+    val validators get() = HttpValidators(etag, lastModified, totalSize)
+  }
+
+  /**
+   * What a finished download was checked against: the validators of the version fetched and,
+   * when the file arrived as a single stream from its start, the SHA-256 of that stream.
+   */
+  data class VerifiedDownload(
+    val validators: HttpValidators,
+    val sha256: String? = null
   )
 
   /**
    * Download a file in parallel using multiple threads (coroutines).
-   * Supports resume and safe recovery from interruptions.
+   * Ranges are written in place into the pre-sized [outputFile], so there is nothing to merge.
+   * Supports resume and safe recovery from interruptions through [journal]. Resumes only
+   * continue the version they started from; when the server has another one the download
+   * starts over once. The result is verified for length, and for its hash where possible.
+   *
+   * [mirrors] that serve the same length and the same sample ranges as [url] are downloaded
+   * from at the same time, each within the window of its own host; see [MirrorPool] for how
+   * slow or failing ones are dropped.
    * @param url The file URL
    * @param outputFile The output KUniFile
-   * @param threadCount Number of parallel threads (default: CPU cores)
+   * @param limiter Connection window of the host, chunks are fetched as it hands out permits
+   * @param journal Where the progress of each range is kept between runs
+   * @param knownValidators Validators of the version already partly in [outputFile], if any
+   * @param mirrors Other URLs said to serve the same file, with the window of their host
+   * @param lease Bandwidth share every read is paid from
+   * @param onValidators Called with the validators of the version being downloaded
+   * @param onRanges Called with what is stored of [outputFile] and its length (-1 if unknown)
+   *   whenever writing (re)starts, for reading the file while it downloads
    * @param progressCallback (downloadedBytes, totalBytes) -> Unit
    */
   suspend fun downloadFileParallel(
     url: String,
     outputFile: KUniFile,
-    threadCount: Int = Runtime.getRuntime().availableProcessors().coerceAtLeast(1),
+    limiter: HostLimiter,
+    journal: RangeResumeJournal,
+    knownValidators: HttpValidators? = null,
+    mirrors: Map<String, HostLimiter> = emptyMap(),
+    lease: BandwidthGovernor.Lease? = null,
+    onValidators: (HttpValidators) -> Unit = {},
+    onRanges: (StoredRanges, Long) -> Unit = { _, _ -> },
     progressCallback: (Long, Long) -> Unit = { _, _ -> }
-  ) = withContext(Dispatchers.IO) {
-    // Check range support with improved detection
+  ): VerifiedDownload = withContext(Dispatchers.IO) {
     val rangeSupport = checkRangeSupport(url)
+    onValidators(rangeSupport.validators)
+    try {
+      download(url, outputFile, limiter, journal, rangeSupport, knownValidators, mirrors, lease, onRanges, progressCallback)
+    } catch (e: RemoteFileChangedException) {
+      Timber.w("${e.message}, downloading it again from the start")
+      journal.delete()
+      outputFile.openChannel().use { it.truncate(0) }
+      val restarted = checkRangeSupport(url)
+      onValidators(restarted.validators)
+      download(url, outputFile, limiter, journal, restarted, null, mirrors, lease, onRanges, progressCallback)
+    }
+  }
 
+  private suspend fun download(
+    url: String,
+    outputFile: KUniFile,
+    limiter: HostLimiter,
+    journal: RangeResumeJournal,
+    rangeSupport: RangeSupport,
+    knownValidators: HttpValidators?,
+    mirrors: Map<String, HostLimiter>,
+    lease: BandwidthGovernor.Lease?,
+    onRanges: (StoredRanges, Long) -> Unit,
+    progressCallback: (Long, Long) -> Unit
+  ): VerifiedDownload {
     Timber.d("Range support result: ${rangeSupport.supportsRange} (method: ${rangeSupport.method})")
 
-    if (!rangeSupport.supportsRange || threadCount == 1 || rangeSupport.totalSize < 1024 * 1024) {
+    if (!rangeSupport.supportsRange || rangeSupport.totalSize < 1024 * 1024) {
       // Fallback to single-threaded download if:
       // - No range support
-      // - Only 1 thread requested
       // - File too small (< 1MB) for chunking to be beneficial
       Timber.d("Using single-threaded download")
-      downloadFileSingle(url, outputFile, progressCallback)
-      return@withContext
+      if (journal.read() != null) {
+        // The file was pre-sized for ranges, its length is not the progress of a plain download
+        outputFile.openChannel().use { it.truncate(0) }
+        journal.delete()
+      }
+      return limiter.withPermit {
+        downloadFileSingle(url, outputFile, rangeSupport.validators, knownValidators, lease, onRanges, progressCallback)
+      }
     }
 
     val totalSize = rangeSupport.totalSize
-    val chunkSize = totalSize / threadCount
-    val progressTracker = AtomicLong(0)
-    val tempDir = File(outputFile.uri.path).parentFile
-    val baseName = outputFile.name ?: "download"
-
-    Timber.d("Using parallel download with $threadCount threads, chunk size: $chunkSize")
-
-    try {
-      // Download chunks in parallel to temporary files
-      val chunkFiles = (0 until threadCount).map { i ->
-        val start = i * chunkSize
-        val end = if (i == threadCount - 1) totalSize - 1 else (start + chunkSize - 1)
-        val chunkFile = File(tempDir, "${baseName}.chunk$i.tmp")
+    val validators = rangeSupport.validators
+    val journaled = journal.read(url, validators)
+    val ifRange = (journaled?.validators ?: validators).ifRange
+    val pool = MirrorPool(listOf(MirrorSource(url, limiter, ifRange)) + verifyMirrors(url, totalSize, mirrors))
+    val window = pool.sources.map { it.limiter }.distinct().sumOf { it.window }
+    val state = journaled
+      ?: RangeResumeJournal.State(url, totalSize, splitRanges(totalSize, window), validators = validators)
+    val scheduler = RangeScheduler(state.ranges)
+    val progressTracker = AtomicLong(state.downloadedBytes)
+    onRanges(scheduler, totalSize)
+
+    Timber.d("Using parallel download with ${state.ranges.size} ranges from ${pool.sources.size} sources, window $window, resumed at ${progressTracker.get()}")
+
+    // Allocate the whole file so every range can be written at its offset, a full disk fails
+    // here rather than near the end and the file isn't fragmented by interleaved ranges
+    outputFile.preallocate(totalSize)
+    outputFile.openChannel().use { channel ->
+      if (channel.size() > totalSize) channel.truncate(totalSize)
+
+      // Positions are read before forcing, so the journal never runs ahead of the storage
+      fun saveJournal() {
+        val ranges = scheduler.snapshot()
+        channel.force(false)
+        journal.write(state.copy(ranges = ranges, updatedAt = System.currentTimeMillis()))
+      }
 
-        async {
-          downloadChunk(url, chunkFile, start, end, progressTracker, totalSize, progressCallback)
-          chunkFile
+      try {
+        coroutineScope {
+          val saver = launch {
+            while (true) {
+              delay(JOURNAL_INTERVAL_MS)
+              saveJournal()
+            }
+          }
+          do {
+            val liveBefore = pool.live.size
+            // One worker per possible connection of each source; the limiters decide how many
+            // run at once and a worker that gets a permit with no range left steals half of the
+            // slowest one, wherever it is fetched from
+            pool.live.flatMap { source ->
+              (0 until HostLimiter.MAX_WINDOW).map {
+                async {
+                  while (!source.dropped) {
+                    val claimed = source.limiter.withPermit {
+                      if (source.dropped) return@withPermit false
+                      val part = scheduler.next() ?: return@withPermit false
+                      try {
+                        downloadChunk(source, pool, channel, part, progressTracker, totalSize, lease, progressCallback)
+                      } catch (e: IOException) {
+                        // The primary changing means the file did, a mirror changing only loses the mirror
+                        if (e is RemoteFileChangedException && source.url == url) throw e
+                        if (!pool.drop(source, e.message)) throw e
+                      } finally {
+                        scheduler.release(part)
+                      }
+                      true
+                    }
+                    if (!claimed) break
+                  }
+                }
+              }
+            }.awaitAll()
+            // A dropped source may have given back ranges after the others ran out of work
+          } while (pool.live.size in 1 until liveBefore && scheduler.snapshot().any { !it.isComplete })
+          saver.cancel()
         }
+      } finally {
+        // Keep what was stored for the next attempt, also when stopped or failed
+        withContext(NonCancellable) { saveJournal() }
       }
 
-      val completedChunks = chunkFiles.awaitAll()
+      val incomplete = scheduler.snapshot().count { !it.isComplete }
+      if (incomplete > 0) throw IOException("$incomplete ranges of $url were left incomplete")
+      if (channel.size() != totalSize) {
+        throw IOException("Downloaded size ${channel.size()} does not match $totalSize")
+      }
+    }
+    journal.delete()
+    return VerifiedDownload(validators)
+  }
 
-      // Merge chunks into final file
-      mergeChunks(completedChunks, outputFile)
+  /**
+   * Initial ranges, one per connection of the current window; later connections get their work
+   * by splitting these.
+   */
+  private fun splitRanges(totalSize: Long, window: Int): List<RangeResumeJournal.Range> {
+    val rangeCount = window.toLong().coerceIn(1L, (totalSize / MIN_CHUNK_SIZE).coerceAtLeast(1L)).toInt()
+    val rangeSize = totalSize / rangeCount
+    return (0 until rangeCount).map { i ->
+      val start = i * rangeSize
+      val end = if (i == rangeCount - 1) totalSize - 1 else (start + rangeSize - 1)
+      RangeResumeJournal.Range(start, end, start)
+    }
+  }
 
-      // Cleanup temporary files
-      completedChunks.forEach { it.delete() }
+  /**
+   * The [mirrors] that serve a file of [totalSize] bytes whose sample ranges hash the same as
+   * those of [url], checked concurrently. None when [url] itself can't be sampled.
+   */
+  private suspend fun verifyMirrors(
+    url: String,
+    totalSize: Long,
+    mirrors: Map<String, HostLimiter>
+  ): List<MirrorSource> {
+    val candidates = mirrors.filterKeys { it != url }
+    if (candidates.isEmpty()) return emptyList()
+    val expected = fingerprint(url, totalSize) ?: return emptyList()
+    return coroutineScope {
+      candidates.map { (mirror, mirrorLimiter) ->
+        async {
+          val support = checkRangeSupport(mirror)
+          when {
+            !support.supportsRange || support.totalSize != totalSize -> {
+              Timber.w("Mirror $mirror rejected: ${support.totalSize} bytes, ranges ${support.supportsRange}")
+              null
+            }
 
-    } catch (e: Exception) {
-      // Cleanup on error
-      (0 until threadCount).forEach { i ->
-        File(tempDir, "${baseName}.chunk$i.tmp").delete()
+            fingerprint(mirror, totalSize) != expected -> {
+              Timber.w("Mirror $mirror rejected: sample ranges differ from $url")
+              null
+            }
+
+            else -> MirrorSource(mirror, mirrorLimiter, support.validators.ifRange)
+          }
+        }
+      }.awaitAll().filterNotNull()
+    }.also { Timber.d("${it.size} of ${candidates.size} mirrors of $url verified") }
+  }
+
+  /**
+   * SHA-256 over [SAMPLE_SIZE] bytes at the start, middle and end of [url], or null when the
+   * samples can't be fetched. Two URLs with the same length and fingerprint are taken to serve
+   * the same file.
+   */
+  private suspend fun fingerprint(url: String, totalSize: Long): String? = withContext(Dispatchers.IO) {
+    val digest = MessageDigest.getInstance("SHA-256")
+    val offsets = listOf(0L, totalSize / 2 - SAMPLE_SIZE / 2, totalSize - SAMPLE_SIZE).distinct()
+    try {
+      for (offset in offsets) {
+        val end = offset + SAMPLE_SIZE - 1
+        baseClient.newCall(createRequest(url, offset, end)).execute().use { response ->
+          if (response.code != 206) return@withContext null
+          val sample = response.body.bytes()
+          if (sample.size.toLong() != SAMPLE_SIZE) return@withContext null
+          digest.update(sample)
+        }
       }
-      throw e
+      digest.digest().joinToString("") { "%02x".format(it) }
+    } catch (e: IOException) {
+      Timber.w("Failed to sample $url: ${e.message}")
+      null
     }
   }
 
   /**
-   * Download a single chunk with resume support
+   * Download [part] into [channel] from [source], from its position to its end, retrying from
+   * where it stopped. Returns early when a split moved the end of the part below what the request
+   * covers, or when [pool] dropped the source.
    */
   private suspend fun downloadChunk(
-    url: String,
-    chunkFile: File,
-    start: Long,
-    end: Long,
+    source: MirrorSource,
+    pool: MirrorPool,
+    channel: FileChannel,
+    part: RangeScheduler.Part,
     progressTracker: AtomicLong,
     totalSize: Long,
+    lease: BandwidthGovernor.Lease?,
     progressCallback: (Long, Long) -> Unit
   ) {
-    var currentStart = start
-
-    // Check if chunk already partially downloaded
-    if (chunkFile.exists()) {
-      currentStart = start + chunkFile.length()
-      progressTracker.addAndGet(chunkFile.length())
-    }
-
-    if (currentStart > end) {
-      return // Chunk already complete
-    }
-
-    val client = createClient { _, _ -> }
+    val client = baseClient
+    val limiter = source.limiter
+    val ifRange = source.ifRange
     var retryCount = 0
     val maxRetries = 3
 
     while (retryCount < maxRetries) {
+      if (part.isComplete) return // Chunk already complete
+
+      var statusCode: Int? = null
       try {
         val request = Request.Builder()
-          .url(url)
-          .addHeader("Range", "bytes=$currentStart-$end")
+          .url(source.url)
+          .addHeader("Range", "bytes=${part.position}-${part.end}")
           .addHeader("User-Agent", "VividFusion-Downloader/1.0")
+          .apply { ifRange?.let { addHeader("If-Range", it) } }
           .build()
 
-        val response = client.newCall(request).execute()
-
-        if (!response.isSuccessful) {
-          response.close()
-          if (response.code == 416) {
-            // Range not satisfiable - chunk might be complete
-            return
+        val sentAt = System.currentTimeMillis()
+        client.newCall(request).execute().use { response ->
+          limiter.onResponse(System.currentTimeMillis() - sentAt)
+
+          if (!response.isSuccessful) {
+            statusCode = response.code
+            if (response.code == 416) {
+              // Only a part lying past the end of the file is done; anything else would be
+              // handed straight back and requested again
+              if (part.position >= totalSize) {
+                part.clampEnd(totalSize - 1)
+                return
+              }
+              throw IOException("HTTP 416 for bytes ${part.position}-${part.end} of $totalSize")
+            }
+            throw IOException("HTTP ${response.code}")
+          }
+          if (response.code == 200 && ifRange != null) {
+            throw RemoteFileChangedException("${source.url} changed since the download started")
+          }
+          if (response.code != 206) {
+            // A full body written at this offset would overwrite the other ranges
+            throw IOException("Server ignored the range request")
           }
-          throw IOException("HTTP ${response.code}")
-        }
 
-        response.body?.byteStream()?.use { inputStream ->
-          chunkFile.outputStream().use { outputStream ->
+          response.body.byteStream().use { inputStream ->
             val buffer = ByteArray(8192)
             var bytesRead: Int
 
             while (inputStream.read(buffer).also { bytesRead = it } != -1) {
-              outputStream.write(buffer, 0, bytesRead)
-              val currentProgress = progressTracker.addAndGet(bytesRead.toLong())
+              val written = part.write(channel, buffer, bytesRead)
+              lease?.acquire(written)
+              limiter.onBytes(written.toLong())
+              pool.onBytes(source, written.toLong())
+              val currentProgress = progressTracker.addAndGet(written.toLong())
               progressCallback(currentProgress, totalSize)
+              // The tail was taken over by another connection
+              if (written < bytesRead || source.dropped) return
             }
           }
         }
-        response.body?.close()
-        response.close()
         return // Success
 
-      } catch (e: Exception) {
+      } catch (e: RemoteFileChangedException) {
+        throw e
+      } catch (e: IOException) {
+        limiter.onFailure(statusCode)
         retryCount++
         if (retryCount >= maxRetries) {
           throw IOException("Failed to download chunk after $maxRetries retries: ${e.message}", e)
         }
 
         // Wait before retry with exponential backoff
-        kotlinx.coroutines.delay(1000L * retryCount)
+        delay(1000L * retryCount)
         Timber.w("Retrying chunk download ($retryCount/$maxRetries): ${e.message}")
       }
     }
   }
 
   /**
-   * Fallback single-threaded download with resume support
+   * Fallback single-threaded download with resume support. A resume asks for the rest of the
+   * version in [knownValidators] only; any other answer rewrites the file from its start.
    */
   private suspend fun downloadFileSingle(
     url: String,
     outputFile: KUniFile,
+    validators: HttpValidators,
+    knownValidators: HttpValidators?,
+    lease: BandwidthGovernor.Lease?,
+    onRanges: (StoredRanges, Long) -> Unit,
     progressCallback: (Long, Long) -> Unit
-  ) {
-    val existingSize = outputFile.length()
+  ): VerifiedDownload {
+    var existingSize = outputFile.length()
+    if (existingSize > 0 && knownValidators != null && !knownValidators.matches(validators)) {
+      Timber.w("$url changed since the download started, downloading it again from the start")
+      outputFile.openChannel().use { it.truncate(0) }
+      existingSize = 0L
+    }
     val client = createClient { bytesRead, totalBytes ->
       progressCallback(existingSize + bytesRead, totalBytes + existingSize)
     }
 
-    val request = createRequest(url, existingSize)
+    val request = createRequest(url, existingSize, ifRange = knownValidators?.ifRange)
     val response = client.newCall(request).execute()
 
     // Handle HTTP 416 (Range Not Satisfiable) gracefully
@@ -287,17 +498,34 @@ class HttpDownloadClient {
         if (remoteLength != null && fileLength >= remoteLength) {
           Timber.w("HTTP 416 but file already complete: $fileLength/$remoteLength")
           response.close()
-          return
+          return VerifiedDownload(validators)
         } else if (remoteLength == null && fileLength > 0L) {
           Timber.w("HTTP 416, no remote length info, but file exists. Treating as complete.")
           response.close()
-          return
+          return VerifiedDownload(validators)
         }
       }
       response.close()
       throw IOException("Invalid response for single download (code: ${response.code})")
     }
 
+    if (existingSize > 0 && response.code != 206) {
+      // Another version, or a server that ignored the range; either way this is the whole file
+      Timber.w("Resume of $url answered with ${response.code}, rewriting from the start")
+      existingSize = 0L
+    }
+    val expectedLength = when {
+      response.code == 206 ->
+        response.header("Content-Range")?.substringAfterLast("/")?.toLongOrNull()
+      response.body.contentLength() >= 0 -> response.body.contentLength()
+      else -> null
+    } ?: validators.contentLength.takeIf { it > 0 }
+    // Hashed while written; a resumed file would need a second pass over what is already there
+    val digest = if (existingSize == 0L) MessageDigest.getInstance("SHA-256") else null
+    val expectedSha256 = if (existingSize == 0L) announcedSha256(response) else null
+    val stored = SequentialRanges(existingSize)
+    onRanges(stored, expectedLength ?: -1L)
+
     response.body.byteStream().use { inputStream ->
       outputFile.openOutputStream(existingSize > 0).use { outputStream ->
         val buffer = ByteArray(8192)
@@ -305,31 +533,51 @@ class HttpDownloadClient {
 
         while (inputStream.read(buffer).also { bytesRead = it } != -1) {
           outputStream.write(buffer, 0, bytesRead)
+          stored.end += bytesRead
+          digest?.update(buffer, 0, bytesRead)
+          lease?.acquire(bytesRead)
         }
       }
     }
     response.body.close()
     response.close()
+
+    val length = outputFile.length()
+    if (expectedLength != null && length != expectedLength) {
+      throw IOException("Downloaded size $length does not match $expectedLength")
+    }
+    val sha256 = digest?.digest()?.joinToString("") { "%02x".format(it) }
+    if (expectedSha256 != null && sha256 != expectedSha256) {
+      throw IOException("SHA-256 of $url is $sha256, the server announced $expectedSha256")
+    }
+    return VerifiedDownload(if (existingSize == 0L) HttpValidators.of(response, length) else validators, sha256)
   }
 
   /**
-   * Merge downloaded chunks into final file
+   * SHA-256 of the full body when the server sends one, from `Repr-Digest` (`sha-256=:b64:`)
+   * or the older `Digest` (`SHA-256=b64`).
    */
-  private suspend fun mergeChunks(chunkFiles: List<File>, outputFile: KUniFile) {
-    outputFile.openOutputStream(false).use { outputStream ->
-      chunkFiles.forEach { chunkFile ->
-        chunkFile.inputStream().use { inputStream ->
-          val buffer = ByteArray(8192)
-          var bytesRead: Int
-          while (inputStream.read(buffer).also { bytesRead = it } != -1) {
-            outputStream.write(buffer, 0, bytesRead)
-          }
-        }
-      }
+  private fun announcedSha256(response: Response): String? {
+    val value = response.header("Repr-Digest") ?: response.header("Digest") ?: return null
+    val encoded = value.split(',')
+      .map { it.trim() }
+      .firstOrNull { it.startsWith("sha-256=", ignoreCase = true) }
+      ?.substringAfter('=')
+      ?.trim(':')
+      ?: return null
+    return try {
+      Base64.decode(encoded, Base64.DEFAULT).joinToString("") { "%02x".format(it) }
+    } catch (e: IllegalArgumentException) {
+      null
     }
   }
 
-  fun createRequest(url: String, resumeBytes: Long = 0L, endByte: Long? = null): Request {
+  fun createRequest(
+    url: String,
+    resumeBytes: Long = 0L,
+    endByte: Long? = null,
+    ifRange: String? = null
+  ): Request {
     val requestBuilder = Request.Builder()
       .url(url)
       .addHeader("User-Agent", "VividFusion-Downloader/1.0")
@@ -343,6 +591,7 @@ class HttpDownloadClient {
         "bytes=$resumeBytes-"
       }
       requestBuilder.addHeader("Range", rangeHeader)
+      ifRange?.let { requestBuilder.addHeader("If-Range", it) }
       Timber.d("Adding Range header: $rangeHeader")
     }
 
@@ -360,6 +609,12 @@ class HttpDownloadClient {
     return true
   }
 
+  companion object {
+    private const val MIN_CHUNK_SIZE = 4L * 1024 * 1024
+    private const val JOURNAL_INTERVAL_MS = 1_000L
+    private const val SAMPLE_SIZE = 64L * 1024
+  }
+
   private class ProgressInterceptor(
     private val listener: (Long, Long) -> Unit
   ) : Interceptor {
@@ -0,0 +1,50 @@
+package cloud.app.vvf.services.downloader.helper
+
+import kotlinx.serialization.Serializable
+import okhttp3.Response
+import java.io.IOException
+
+/**
+ * Identifies one version of a remote file: its entity tag, modification date and length, as
+ * captured at first contact. Resumes send them back in `If-Range`, so a server holding a
+ * different version answers with the whole new file instead of a range of it.
+ */
+@Serializable
+data class HttpValidators(
+  val etag: String? = null,
+  val lastModified: String? = null,
+  val contentLength: Long = -1L
+) {
+
+  /**
+   * Value for `If-Range`: a strong entity tag, else the modification date. Weak tags are not
+   * allowed there.
+   */
+  val ifRange: String?
+    get() = etag?.takeUnless { it.startsWith("W/") } ?: lastModified
+
+  /**
+   * Whether [other] describes the same version; only what is known on both sides is compared.
+   */
+  fun matches(other: HttpValidators): Boolean {
+    if (contentLength >= 0 && other.contentLength >= 0 && contentLength != other.contentLength) {
+      return false
+    }
+    if (etag != null && other.etag != null) return etag == other.etag
+    if (lastModified != null && other.lastModified != null) return lastModified == other.lastModified
+    return true
+  }
+
+  companion object {
+    fun of(response: Response, contentLength: Long = -1L) = HttpValidators(
+      etag = response.header("ETag"),
+      lastModified = response.header("Last-Modified"),
+      contentLength = contentLength
+    )
+  }
+}
+
+/**
+ * The remote file changed since the download started, what is on disk can't be continued.
+ */
+class RemoteFileChangedException(message: String) : IOException(message)
@@ -0,0 +1,85 @@
+package cloud.app.vvf.services.downloader.helper
+
+import timber.log.Timber
+
+/**
+ * A URL the file is fetched from in a parallel download, with the connection window of its host
+ * and the `If-Range` value of the version it serves.
+ */
+class MirrorSource internal constructor(
+  val url: String,
+  val limiter: HostLimiter,
+  val ifRange: String?
+) {
+
+  @Volatile
+  var dropped = false
+    internal set
+
+  private var firstByteAt = 0L
+  private var bytes = 0L
+
+  @Synchronized
+  internal fun onBytes(count: Long, now: Long) {
+    if (firstByteAt == 0L) firstByteAt = now
+    bytes += count
+  }
+
+  /**
+   * Bytes per second since the first byte arrived, null until [minElapsedMs] have passed.
+   */
+  @Synchronized
+  internal fun throughput(now: Long, minElapsedMs: Long): Double? {
+    if (firstByteAt == 0L || now - firstByteAt < minElapsedMs) return null
+    return bytes * 1000.0 / (now - firstByteAt)
+  }
+}
+
+/**
+ * The sources of one download. A source whose request failed after its retries, or that
+ * delivers a small fraction of what the best one does, is dropped and its ranges go to the
+ * others. The last source standing is never dropped, its failures fail the download.
+ */
+class MirrorPool(val sources: List<MirrorSource>) {
+
+  private var evaluatedAt = System.currentTimeMillis()
+
+  val live get() = sources.filter { !it.dropped }
+
+  fun onBytes(source: MirrorSource, count: Long) {
+    val now = System.currentTimeMillis()
+    source.onBytes(count, now)
+    if (sources.size > 1 && now - evaluatedAt >= EVALUATION_INTERVAL_MS) evaluate(now)
+  }
+
+  /**
+   * Drops [source], returns false when it is the last one left and has to be kept.
+   */
+  @Synchronized
+  fun drop(source: MirrorSource, reason: String?): Boolean {
+    if (source.dropped) return true
+    if (live.size <= 1) return false
+    source.dropped = true
+    Timber.w("Dropped source ${source.url}: $reason")
+    return true
+  }
+
+  @Synchronized
+  private fun evaluate(now: Long) {
+    if (now - evaluatedAt < EVALUATION_INTERVAL_MS) return
+    evaluatedAt = now
+    val rates = live.associateWith { it.throughput(now, SLOW_GRACE_MS) }
+    val best = rates.values.filterNotNull().maxOrNull() ?: return
+    rates.forEach { (source, rate) ->
+      if (rate != null && rate * SLOW_RATIO < best) {
+        drop(source, "${rate.toLong() / 1024} KB/s against ${best.toLong() / 1024} KB/s")
+      }
+    }
+  }
+
+  companion object {
+    private const val EVALUATION_INTERVAL_MS = 2_000L
+    private const val SLOW_GRACE_MS = 10_000L
+    private const val SLOW_RATIO = 8
+  }
+}
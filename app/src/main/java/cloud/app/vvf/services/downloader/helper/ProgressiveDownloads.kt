@@ -0,0 +1,166 @@
+package cloud.app.vvf.services.downloader.helper
+
+import cloud.app.vvf.utils.KUniFile
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import javax.inject.Inject
+import javax.inject.Singleton
+import kotlin.concurrent.withLock
+
+/**
+ * What of a file being downloaded is stored already, as seen by someone reading it meanwhile.
+ * The writer calls [signalStored] after storing bytes, which wakes readers in [awaitChange].
+ */
+abstract class StoredRanges {
+
+  private val lock = ReentrantLock()
+  private val changed = lock.newCondition()
+  private val waiting = AtomicInteger()
+  private val changes = AtomicLong()
+
+  /**
+   * Bumped by every [signalStored]; a reader takes it before checking [available] so a write
+   * landing in between is not missed.
+   */
+  val version get() = changes.get()
+
+  /**
+   * Bytes stored contiguously from [position] on, 0 while the byte at [position] is missing.
+   */
+  abstract fun available(position: Long): Long
+
+  /**
+   * Asks for the bytes from [position] on to be fetched before the rest, where the download
+   * can choose its order.
+   */
+  open fun prioritize(position: Long) {}
+
+  fun signalStored() {
+    changes.incrementAndGet()
+    // Called per buffer written, so only take the lock when a reader actually waits
+    if (waiting.get() > 0) lock.withLock { changed.signalAll() }
+  }
+
+  /**
+   * Blocks until [signalStored] moved [version] past [seen] or [timeoutMs] passed.
+   */
+  @Throws(InterruptedException::class)
+  fun awaitChange(seen: Long, timeoutMs: Long) {
+    waiting.incrementAndGet()
+    try {
+      lock.withLock {
+        var nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+        while (version == seen && nanos > 0) nanos = changed.awaitNanos(nanos)
+      }
+    } finally {
+      waiting.decrementAndGet()
+    }
+  }
+}
+
+/**
+ * A file written in order from its start, stored up to [end].
+ */
+class SequentialRanges(start: Long = 0L) : StoredRanges() {
+
+  @Volatile
+  var end = start
+    set(value) {
+      field = value
+      signalStored()
+    }
+
+  override fun available(position: Long) = (end - position).coerceAtLeast(0L)
+}
+
+/**
+ * Downloads that can be read while they run. A worker [open]s an entry for the file it writes,
+ * [Entry.attach]es what it knows about the stored ranges once it does, and [close]s the entry
+ * when it stops. Readers, the player in particular, find the entry by the file or by the URL it
+ * is downloaded from.
+ *
+ * While someone reads a download it is exempt from yielding bandwidth to playback, since it is
+ * what the playback is waiting for.
+ */
+@Singleton
+class ProgressiveDownloads @Inject constructor(
+  private val governor: BandwidthGovernor
+) {
+
+  class Entry internal constructor(
+    val downloadId: String,
+    val sourceUrl: String?,
+    val file: KUniFile
+  ) {
+
+    @Volatile
+    var ranges: StoredRanges = SequentialRanges()
+      private set
+
+    /**
+     * Final length of the file, -1 while unknown.
+     */
+    @Volatile
+    var length = -1L
+      private set
+
+    /**
+     * Set once the worker stopped, with [completed] telling whether the file is whole.
+     */
+    @Volatile
+    var closed = false
+      internal set
+
+    @Volatile
+    var completed = false
+      internal set
+
+    internal val readers = AtomicInteger()
+
+    fun attach(ranges: StoredRanges, length: Long) {
+      val previous = this.ranges
+      this.ranges = ranges
+      this.length = length
+      // Readers waiting on the placeholder go on to wait on the real ranges
+      previous.signalStored()
+    }
+  }
+
+  private val entries = ConcurrentHashMap<String, Entry>()
+
+  /**
+   * Makes [file] readable while [downloadId] writes it. [sourceUrl] lets a player asking for the
+   * remote file read it from here instead; leave it null when the file is not what that URL
+   * serves, as with a playlist.
+   */
+  fun open(downloadId: String, sourceUrl: String?, file: KUniFile): Entry =
+    Entry(downloadId, sourceUrl, file).also { entries[downloadId] = it }
+
+  fun close(downloadId: String, completed: Boolean) {
+    entries.remove(downloadId)?.let {
+      it.completed = completed
+      it.closed = true
+      it.ranges.signalStored()
+    }
+  }
+
+  fun get(downloadId: String): Entry? = entries[downloadId]
+
+  /**
+   * The running download of [uri], either its file or the URL it comes from.
+   */
+  fun find(uri: String): Entry? =
+    entries.values.firstOrNull { it.file.uri.toString() == uri || it.sourceUrl == uri }
+
+  fun onReaderOpened(entry: Entry) {
+    entry.readers.incrementAndGet()
+    governor.setFeedingPlayback(entry.downloadId, true)
+  }
+
+  fun onReaderClosed(entry: Entry) {
+    if (entry.readers.decrementAndGet() <= 0) governor.setFeedingPlayback(entry.downloadId, false)
+  }
+}
@@ -0,0 +1,75 @@
+package cloud.app.vvf.services.downloader.helper
+
+import android.content.Context
+import cloud.app.vvf.common.utils.toJson
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.json.Json
+import timber.log.Timber
+import java.io.File
+
+/**
+ * Per-download record of the byte ranges of a parallel HTTP download and how far each got.
+ *
+ * Ranges are written straight into the final file at their offsets, so the file length says
+ * nothing about progress; this journal does. A position is only recorded once the bytes before
+ * it have been forced to storage.
+ */
+class RangeResumeJournal(context: Context, downloadId: String) {
+
+  @Serializable
+  data class Range(val start: Long, val end: Long, val position: Long) {
+    val isComplete get() = position > end
+    val remaining get() = (end - position + 1).coerceAtLeast(0L)
+  }
+
+  @Serializable
+  data class State(
+    val url: String,
+    val totalSize: Long,
+    val ranges: List<Range>,
+    val updatedAt: Long = System.currentTimeMillis(),
+    val validators: HttpValidators? = null
+  ) {
+    val downloadedBytes get() = ranges.sumOf { it.position - it.start }
+  }
+
+  private val file = File(File(context.filesDir, JOURNAL_DIR), "$downloadId.json")
+
+  fun read(): State? {
+    if (!file.exists()) return null
+    return try {
+      json.decodeFromString<State>(file.readText())
+    } catch (e: Exception) {
+      Timber.w(e, "Discarding unreadable range journal ${file.name}")
+      null
+    }
+  }
+
+  /**
+   * Returns the stored state when it was made for the version of [url] in [validators].
+   */
+  fun read(url: String, validators: HttpValidators): State? = read()?.takeIf {
+    it.url == url && it.totalSize == validators.contentLength &&
+      it.validators?.matches(validators) != false
+  }
+
+  fun write(state: State) {
+    try {
+      file.parentFile?.mkdirs()
+      val temp = File(file.path + ".tmp")
+      temp.writeText(state.toJson())
+      temp.renameTo(file)
+    } catch (e: Exception) {
+      Timber.w(e, "Failed to write range journal ${file.name}")
+    }
+  }
+
+  fun delete() {
+    file.delete()
+  }
+
+  companion object {
+    private const val JOURNAL_DIR = "range_journal"
+    private val json = Json { ignoreUnknownKeys = true }
+  }
+}
@@ -0,0 +1,189 @@
+package cloud.app.vvf.services.downloader.helper
+
+import timber.log.Timber
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import kotlin.math.abs
+
+/**
+ * Hands out the byte ranges of a parallel download to connections, splitting work on demand.
+ *
+ * Ranges nobody works on go first. After that a connection that asks for work takes over the
+ * tail half of the range expected to finish last, judged by the throughput of the connection
+ * working on it, so fast connections never sit idle behind a straggler. Ranges smaller than
+ * [minSplitSize] are left alone.
+ *
+ * A reader of the file can [prioritize] an offset, as the player does with its playhead: the
+ * range there is cut at that offset and the connection furthest from it is stopped, so the next
+ * claim starts right where the reader waits.
+ */
+class RangeScheduler(
+  ranges: List<RangeResumeJournal.Range>,
+  private val minSplitSize: Long = DEFAULT_MIN_SPLIT_SIZE
+) : StoredRanges() {
+
+  /**
+   * A range being filled from [position] up to and including [end]. The owner writes through
+   * [write], which stops at [end] even when a split moved it under a running request.
+   */
+  class Part internal constructor(
+    val start: Long,
+    end: Long,
+    position: Long,
+    private val onWritten: () -> Unit
+  ) {
+    @Volatile
+    var end = end
+      private set
+
+    @Volatile
+    var position = position
+      private set
+
+    internal var active = false
+    private var activeSince = 0L
+    private var activeFrom = 0L
+
+    val isComplete get() = position > end
+    val remaining get() = (end - position + 1).coerceAtLeast(0L)
+
+    /**
+     * Writes up to [length] bytes of [data] at [position], fewer when the range ends earlier.
+     * Returns the number written, 0 once the range is complete.
+     */
+    @Synchronized
+    fun write(channel: FileChannel, data: ByteArray, length: Int): Int {
+      val allowed = minOf(length.toLong(), end - position + 1).toInt()
+      if (allowed <= 0) return 0
+      val buffer = ByteBuffer.wrap(data, 0, allowed)
+      var offset = position
+      while (buffer.hasRemaining()) {
+        offset += channel.write(buffer, offset)
+      }
+      position = offset
+      onWritten()
+      return allowed
+    }
+
+    internal fun activate(now: Long) {
+      active = true
+      activeSince = now
+      activeFrom = position
+    }
+
+    /**
+     * Bytes per second of the connection on this range since it took it.
+     */
+    internal fun throughput(now: Long): Double {
+      val elapsed = (now - activeSince).coerceAtLeast(1L)
+      return (position - activeFrom) * 1000.0 / elapsed
+    }
+
+    /**
+     * Cuts off the tail half of what is left and returns it as a new part.
+     */
+    @Synchronized
+    internal fun splitTail(minSize: Long): Part? {
+      val left = end - position + 1
+      if (left < minSize * 2) return null
+      return splitAt(position + left / 2)
+    }
+
+    /**
+     * Cuts the part at [offset], which must not be behind [position], and returns the rest from
+     * there as a new part. Cutting at [position] leaves this one complete.
+     */
+    @Synchronized
+    internal fun splitAt(offset: Long): Part? {
+      if (offset < position || offset > end) return null
+      val tail = Part(offset, end, offset, onWritten)
+      end = offset - 1
+      return tail
+    }
+
+    /**
+     * Ends the part at [lastByte] at the latest, for a file shorter than the part assumed.
+     */
+    @Synchronized
+    internal fun clampEnd(lastByte: Long) {
+      if (lastByte < end) end = lastByte
+    }
+
+    internal fun snapshot() = synchronized(this) { RangeResumeJournal.Range(start, end, position) }
+  }
+
+  private val parts = ranges.map { Part(it.start, it.end, it.position, ::signalStored) }.toMutableList()
+
+  // Offset a reader is waiting for, -1 when none
+  private var focus = -1L
+
+  /**
+   * Claims work for a connection, or null when there is nothing left worth taking.
+   */
+  @Synchronized
+  fun next(): Part? {
+    val now = System.currentTimeMillis()
+    val idle = parts.filter { !it.active && !it.isComplete }
+    val claimed = if (focus < 0) idle.firstOrNull() else {
+      idle.firstOrNull { focus in it.position..it.end }
+        ?: idle.filter { it.start > focus }.minByOrNull { it.start }
+        ?: idle.firstOrNull()
+    }
+    claimed?.let {
+      it.activate(now)
+      return it
+    }
+
+    // Steal from the range that would otherwise finish last
+    val victim = parts.filter { it.active && it.remaining >= minSplitSize * 2 }
+      .maxByOrNull { it.remaining / it.throughput(now).coerceAtLeast(1.0) }
+      ?: return null
+    val tail = victim.splitTail(minSplitSize) ?: return null
+    Timber.d(
+      "Split ${victim.start}-${victim.end} at ${tail.start} " +
+        "(${victim.throughput(now).toLong() / 1024} KB/s, ${tail.remaining} bytes taken over)"
+    )
+    parts += tail
+    tail.activate(now)
+    return tail
+  }
+
+  /**
+   * Gives [part] back, whether it was finished or its connection failed.
+   */
+  @Synchronized
+  fun release(part: Part) {
+    part.active = false
+  }
+
+  @Synchronized
+  fun snapshot(): List<RangeResumeJournal.Range> = parts.map { it.snapshot() }
+
+  @Synchronized
+  override fun available(position: Long): Long {
+    val part = parts.firstOrNull { position in it.start..it.end } ?: return 0L
+    return (part.position - position).coerceAtLeast(0L)
+  }
+
+  @Synchronized
+  override fun prioritize(position: Long) {
+    if (position == focus) return
+    focus = position
+    val part = parts.firstOrNull { position in it.start..it.end } ?: return
+    // Stored already, or its connection gets there soon enough
+    if (part.isComplete || position < part.position + minSplitSize) return
+    if (!part.active) return
+
+    val tail = part.splitAt(position) ?: return
+    parts += tail
+    // Free a connection for it: the one furthest from the reader stops where it is and what it
+    // had left goes back to be claimed after the reader's range
+    val victim = parts.filter { it.active && it !== part }.maxByOrNull { abs(it.position - position) } ?: part
+    victim.splitAt(victim.position)?.let { parts += it }
+    Timber.d("Prioritized $position, ${tail.remaining} bytes from there are next")
+  }
+
+  companion object {
+    const val DEFAULT_MIN_SPLIT_SIZE = 1024L * 1024
+  }
+}
@@ -0,0 +1,125 @@
+package cloud.app.vvf.services.downloader.helper
+
+import android.content.Context
+import android.os.StatFs
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import cloud.app.vvf.utils.KUniFile
+import dagger.hilt.android.qualifiers.ApplicationContext
+import timber.log.Timber
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Free space of the download volume as downloads see it. A running download [reserve]s the
+ * length of its file before writing, and until that many bytes are allocated on disk the rest
+ * counts as taken, so downloads running side by side can't overrun the volume between them.
+ * A reserve of 2% of the volume, at least [MIN_RESERVE], is always left to the system.
+ */
+@Singleton
+class StorageBudget @Inject constructor(
+  @ApplicationContext private val context: Context
+) {
+
+  private class Reservation(val file: KUniFile, val length: Long)
+
+  private val reservations = ConcurrentHashMap<String, Reservation>()
+  private val fileManager = DownloadFileManager(context)
+
+  /**
+   * Bytes downloads may still take, [excluding] the reservation of one of them.
+   */
+  fun available(excluding: String? = null): Long {
+    val volume = volume()
+    val reserved = reservations.filterKeys { it != excluding }.values.sumOf { it.outstanding() }
+    return volume.availableBytes - reserved - maxOf(MIN_RESERVE, volume.totalBytes / 50)
+  }
+
+  /**
+   * Sets [length] bytes aside for [file] of [downloadId], replacing an earlier reservation.
+   * Throws [InsufficientStorageException] when what is missing of the file does not fit.
+   */
+  @Synchronized
+  fun reserve(downloadId: String, file: KUniFile, length: Long) {
+    val reservation = Reservation(file, length)
+    val needed = reservation.outstanding()
+    val available = available(excluding = downloadId)
+    if (needed > available) {
+      throw InsufficientStorageException("$downloadId needs $needed more bytes, $available are free", length)
+    }
+    reservations[downloadId] = reservation
+  }
+
+  fun release(downloadId: String) {
+    reservations.remove(downloadId)
+  }
+
+  private fun Reservation.outstanding() = (length - file.allocatedBytes()).coerceAtLeast(0L)
+
+  /**
+   * The volume downloads are written to, or the one of the app files when its path is unknown,
+   * as with some document providers.
+   */
+  private fun volume(): StatFs {
+    val path = try {
+      fileManager.getDownloadUri().filePath
+    } catch (e: IOException) {
+      null
+    }
+    if (path != null) {
+      try {
+        return StatFs(path)
+      } catch (e: IllegalArgumentException) {
+        Timber.d("Cannot stat $path, using the app storage")
+      }
+    }
+    return StatFs((context.getExternalFilesDir(null) ?: context.filesDir).path)
+  }
+
+  companion object {
+    private const val MIN_RESERVE = 200L * 1024 * 1024
+  }
+}
+
+/**
+ * There is not enough free storage for a download of [length] bytes.
+ */
+class InsufficientStorageException(message: String, val length: Long) : IOException(message)
+
+/**
+ * Allocates [length] bytes for the file up front, without changing what it holds, so a full
+ * disk fails the download before it starts rather than near its end, and the file is laid out
+ * in one piece. Where the file system can't allocate, FAT formatted SD cards and some FUSE
+ * mounts, the file is only extended to [length], sparsely.
+ */
+fun KUniFile.preallocate(length: Long) {
+  openFileDescriptor().use { descriptor ->
+    val fd = descriptor.fileDescriptor
+    try {
+      try {
+        Os.posix_fallocate(fd, 0L, length)
+        return
+      } catch (e: ErrnoException) {
+        if (e.errno == OsConstants.ENOSPC) {
+          throw InsufficientStorageException("No space to allocate $length bytes for $name", length)
+        }
+        Timber.d("Cannot allocate $name (${e.message}), extending it instead")
+      }
+      if (Os.fstat(fd).st_size < length) Os.ftruncate(fd, length)
+    } catch (e: ErrnoException) {
+      throw IOException("Failed to size $name to $length bytes", e)
+    }
+  }
+}
+
+/**
+ * Bytes of the file backed by disk blocks. Sparse files count only what was written.
+ */
+fun KUniFile.allocatedBytes(): Long = try {
+  openFileDescriptor().use { Os.fstat(it.fileDescriptor).st_blocks * 512 }
+} catch (e: Exception) {
+  if (exists()) length() else 0L
+}
@@ -22,6 +22,20 @@ class DownloadController {
   private val _downloads = MutableStateFlow<Map<String, DownloadData>>(emptyMap())
   val downloads: StateFlow<Map<String, DownloadData>> = _downloads.asStateFlow()
 
+  // The same data per download, for screens following a single one
+  private val downloadFlows = ConcurrentHashMap<String, MutableStateFlow<DownloadData?>>()
+
+  /**
+   * Current data of [downloadId], null while it does not exist.
+   */
+  fun download(downloadId: String): StateFlow<DownloadData?> =
+    downloadFlows.getOrPut(downloadId) { MutableStateFlow(_downloads.value[downloadId]) }
+      .asStateFlow()
+
+  private fun publish(downloadId: String, data: DownloadData?) {
+    downloadFlows[downloadId]?.value = data
+  }
+
   /**
    * Execute a download command
    * Returns true if command was accepted, false if invalid
@@ -84,6 +98,26 @@ class DownloadController {
     return false
   }
 
+  /**
+   * Applies a batch of worker progress, replacing the downloads map once for all of them.
+   * Returns the downloads that changed.
+   */
+  fun applyProgress(updates: Map<String, DownloadData>): List<DownloadData> {
+    val currentDownloads = _downloads.value.toMutableMap()
+    val changed = updates.mapNotNull { (downloadId, data) ->
+      val existingData = currentDownloads[downloadId] ?: return@mapNotNull null
+      val newState = stateMachines[downloadId]
+        ?.handleEvent(DownloadEvent.ProgressUpdated(downloadId, data))
+        ?: return@mapNotNull null
+      mergeState(existingData, newState).also {
+        currentDownloads[downloadId] = it
+        publish(downloadId, it)
+      }
+    }
+    if (changed.isNotEmpty()) _downloads.value = currentDownloads
+    return changed
+  }
+
   /**
    * Update the DownloadData based on current state
    */
@@ -96,7 +130,16 @@ class DownloadController {
       return
     }
 
-    val updatedData = when (state) {
+    val updatedData = mergeState(existingData, state)
+    currentDownloads[downloadId] = updatedData
+    _downloads.value = currentDownloads
+    publish(downloadId, updatedData)
+
+    Timber.d("Updated DownloadData $downloadId: ${updatedData.status} (${updatedData.progress}%)")
+  }
+
+  private fun mergeState(existingData: DownloadData, state: DownloadState): DownloadData {
+    return when (state) {
       is DownloadState.Running -> {
         val downloadData = state.downloadData
 
@@ -125,6 +168,8 @@ class DownloadController {
           filePath = state.localPath,
           updatedAt = System.currentTimeMillis(),
           downloadSpeed = downloadData?.downloadSpeed ?: 0L,
+          typeSpecificData = existingData.typeSpecificData +
+            (downloadData?.typeSpecificData ?: emptyMap())
         )
       }
 
@@ -145,11 +190,6 @@ class DownloadController {
         )
       }
     }
-
-    currentDownloads[downloadId] = updatedData
-    _downloads.value = currentDownloads
-
-    Timber.d("Updated DownloadData $downloadId: ${updatedData.status} (${updatedData.progress}%)")
   }
 
   /**
@@ -159,6 +199,7 @@ class DownloadController {
     val currentDownloads = _downloads.value.toMutableMap()
     currentDownloads[downloadData.id] = downloadData
     _downloads.value = currentDownloads
+    publish(downloadData.id, downloadData)
 
     // Create state machine if not exists
     if (!stateMachines.containsKey(downloadData.id)) {
@@ -179,6 +220,7 @@ class DownloadController {
     val currentDownloads = _downloads.value.toMutableMap()
     currentDownloads.remove(downloadId)
     _downloads.value = currentDownloads
+    publish(downloadId, null)
 
     Timber.d("Removed download from controller: $downloadId")
   }
@@ -220,6 +262,7 @@ class DownloadController {
   fun initializeFromPersistedData(downloadDataList: List<DownloadData>) {
     val downloadsMap = downloadDataList.associateBy { it.id }
     _downloads.value = downloadsMap
+    downloadFlows.forEach { (downloadId, flow) -> flow.value = downloadsMap[downloadId] }
 
     // Create state machines based on persisted status
     downloadDataList.forEach { data ->
@@ -1,12 +1,19 @@
 package cloud.app.vvf.services.downloader.stateMachine
 
 import android.content.Context
+import android.content.SharedPreferences
+import android.net.ConnectivityManager
+import android.net.Network
+import android.net.NetworkCapabilities
 import android.os.Environment
+import androidx.work.Constraints
 import androidx.work.ExistingWorkPolicy
+import androidx.work.NetworkType
 import androidx.work.OneTimeWorkRequestBuilder
 import androidx.work.WorkInfo
 import androidx.work.WorkManager
 import androidx.work.workDataOf
+import cloud.app.vvf.R
 import cloud.app.vvf.common.models.AVPMediaItem
 import cloud.app.vvf.datastore.app.AppDataStore
 import cloud.app.vvf.services.downloader.DownloadData
@@ -15,6 +22,11 @@ import cloud.app.vvf.services.downloader.DownloadType
 import cloud.app.vvf.services.downloader.HlsDownloader
 import cloud.app.vvf.services.downloader.HttpDownloader
 import cloud.app.vvf.services.downloader.TorrentDownloader
+import cloud.app.vvf.services.downloader.helper.BandwidthGovernor
+import cloud.app.vvf.services.downloader.helper.HlsResumeJournal
+import cloud.app.vvf.services.downloader.helper.HttpValidators
+import cloud.app.vvf.services.downloader.helper.RangeResumeJournal
+import cloud.app.vvf.services.downloader.helper.StorageBudget
 import cloud.app.vvf.utils.KUniFile
 import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.CoroutineScope
@@ -28,6 +40,8 @@ import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.stateIn
 import timber.log.Timber
 import java.io.File
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -35,7 +49,11 @@ import javax.inject.Singleton
 class DownloadManager @Inject constructor(
     @ApplicationContext private val context: Context,
     private val workManager: WorkManager,
-    private val appDataStore: MutableStateFlow<AppDataStore>
+    private val appDataStore: MutableStateFlow<AppDataStore>,
+    private val sharedPreferences: SharedPreferences,
+    private val progressBus: DownloadProgressBus,
+    private val storageBudget: StorageBudget,
+    private val governor: BandwidthGovernor
 ) {
 
   // Central controller for download state management
@@ -55,15 +73,36 @@ class DownloadManager @Inject constructor(
       initialValue = emptySet()
     )
 
+  // Downloads waiting for a slot, next to start first
+  private val _queue = MutableStateFlow<List<String>>(emptyList())
+  val queue: StateFlow<List<String>> = _queue
+
+  // Downloads handed to WorkManager, with the id of their work request
+  private val dispatched = ConcurrentHashMap<String, UUID>()
+
+  // Where queued downloads continue from once they get a slot
+  private val resumeOffsets = ConcurrentHashMap<String, Long>()
+
+  private val maxActiveKey = context.getString(R.string.pref_max_active_downloads)
+  private val preferenceListener = SharedPreferences.OnSharedPreferenceChangeListener { _, key ->
+    if (key == maxActiveKey) promoteQueued()
+  }
+
   init {
     // Clean up old work first
     cleanupOldWork()
     // Load existing downloads and initialize controller
     loadDownloadsFromDataStore()
-    // Monitor work manager for download progress updates
+    restoreQueue()
+    // Monitor work manager for download lifecycle and workers for progress
     observeWorkManagerUpdates()
+    observeProgress()
     // Setup automatic cleanup of orphaned workers
     setupAutoCleanup()
+    // Start queued downloads when a slot or the network frees up
+    sharedPreferences.registerOnSharedPreferenceChangeListener(preferenceListener)
+    watchNetwork()
+    promoteQueued()
   }
 
   /**
@@ -84,15 +123,156 @@ class DownloadManager @Inject constructor(
   }
 
   /**
-   * Start downloading media content with automatic type detection
+   * Rebuilds the queue from the persisted order. Downloads cut off by the previous process
+   * go first and continue where they were.
+   */
+  private fun restoreQueue() {
+    val waiting = downloads.value.values.filter {
+      it.status == DownloadStatus.PENDING || it.status == DownloadStatus.DOWNLOADING
+    }
+    val persisted = appDataStore.value.getDownloadQueue()
+    val (interrupted, pending) = waiting
+      .sortedWith(compareBy<DownloadData> { it.id !in persisted }
+        .thenBy { persisted.indexOf(it.id) }
+        .thenBy { it.createdAt })
+      .partition { it.status == DownloadStatus.DOWNLOADING }
+    interrupted.forEach { resumeOffsets[it.id] = it.downloadedBytes }
+    updateQueue((interrupted + pending).map { it.id })
+    Timber.d("Restored download queue: ${_queue.value}")
+  }
+
+  /**
+   * Appends [downloadId] to the queue and starts it right away when a slot is free.
+   */
+  @Synchronized
+  private fun enqueue(downloadId: String) {
+    if (downloadId !in _queue.value) updateQueue(_queue.value + downloadId)
+    promoteQueued()
+  }
+
+  /**
+   * Takes [downloadId] out of the queue and its slot, if it had either.
+   */
+  @Synchronized
+  private fun release(downloadId: String) {
+    resumeOffsets.remove(downloadId)
+    dispatched.remove(downloadId)
+    if (downloadId in _queue.value) updateQueue(_queue.value - downloadId)
+    promoteQueued()
+  }
+
+  /**
+   * Starts queued downloads in queue order while fewer than the configured maximum are active.
+   * Nothing starts while offline; a download that would not fit in free storage waits and the
+   * ones behind it may go first.
+   */
+  @Synchronized
+  private fun promoteQueued() {
+    dispatched.keys.retainAll {
+      val status = downloads.value[it]?.status
+      status == DownloadStatus.PENDING || status == DownloadStatus.DOWNLOADING
+    }
+    val maxActive = sharedPreferences.getInt(maxActiveKey, DEFAULT_MAX_ACTIVE_DOWNLOADS)
+      .coerceAtLeast(1)
+    var slots = maxActive - dispatched.size
+    if (slots <= 0 || _queue.value.isEmpty()) return
+    if (!isNetworkAvailable()) {
+      Timber.d("Offline, ${_queue.value.size} downloads stay queued")
+      return
+    }
+
+    var freeSpace = availableStorage()
+    val taken = mutableSetOf<String>()
+    for (downloadId in _queue.value) {
+      if (slots == 0) break
+      val data = downloads.value[downloadId]
+      if (data == null ||
+        (data.status != DownloadStatus.PENDING && data.status != DownloadStatus.DOWNLOADING)
+      ) {
+        taken += downloadId
+        continue
+      }
+      val remaining = (data.totalBytes - data.downloadedBytes).coerceAtLeast(0L)
+      if (remaining > freeSpace) {
+        Timber.d("Not enough free space to start $downloadId, $remaining bytes left to download")
+        continue
+      }
+      freeSpace -= remaining
+      dispatch(data)
+      taken += downloadId
+      slots--
+    }
+    if (taken.isNotEmpty()) updateQueue(_queue.value - taken)
+  }
+
+  private fun dispatch(data: DownloadData) {
+    val resumeBytes = resumeOffsets.remove(data.id)
+    dispatched[data.id] = enqueueWorkRequest(
+      downloadId = data.id,
+      downloadType = data.type,
+      downloadUrl = data.url,
+      quality = data.quality,
+      resumeBytes = resumeBytes ?: 0L,
+      resumeProgress = if (resumeBytes != null) data.progress else 0,
+      isResuming = resumeBytes != null,
+      validators = data.validators.takeIf { resumeBytes != null },
+      mirrors = data.mirrors
+    )
+    Timber.d("Dispatched ${data.type.name} download ${data.id}, ${dispatched.size} active")
+  }
+
+  private fun updateQueue(downloadIds: List<String>) {
+    _queue.value = downloadIds
+    appDataStore.value.saveDownloadQueue(downloadIds)
+  }
+
+  /**
+   * Reorders the queue to follow [downloadIds]. Queued downloads missing from it keep their
+   * relative order behind the listed ones.
+   */
+  @Synchronized
+  fun reorderQueue(downloadIds: List<String>) {
+    val current = _queue.value
+    val ordered = downloadIds.distinct().filter { it in current }
+    updateQueue(ordered + current.filter { it !in ordered })
+  }
+
+  private fun isNetworkAvailable(): Boolean {
+    val connectivityManager = context.getSystemService(ConnectivityManager::class.java) ?: return true
+    val capabilities = connectivityManager.getNetworkCapabilities(connectivityManager.activeNetwork)
+      ?: return false
+    return capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+  }
+
+  private fun watchNetwork() {
+    val connectivityManager = context.getSystemService(ConnectivityManager::class.java) ?: return
+    connectivityManager.registerDefaultNetworkCallback(object : ConnectivityManager.NetworkCallback() {
+      override fun onAvailable(network: Network) {
+        promoteQueued()
+      }
+    })
+  }
+
+  /**
+   * Space left for new downloads on the download volume, net of what running downloads still
+   * have to write and of the reserve kept for the system.
+   */
+  fun availableStorage(): Long = storageBudget.available()
+
+  /**
+   * Start downloading media content with automatic type detection. HTTP downloads also fetch
+   * from those of [mirrors] that turn out to serve the same file. [expectedBytes], the size the
+   * source advertises, lets the queue hold the download back while it would not fit.
    */
   fun startDownload(
       mediaItem: AVPMediaItem,
       downloadUrl: String,
-      quality: String = "default"
+      quality: String = "default",
+      mirrors: List<String> = emptyList(),
+      expectedBytes: Long = 0L
   ): String {
     val downloadType = detectDownloadType(downloadUrl)
-    return startDownloadWithType(mediaItem, downloadUrl, downloadType, quality)
+    return startDownloadWithType(mediaItem, downloadUrl, downloadType, quality, mirrors, expectedBytes)
   }
 
   /**
@@ -114,7 +294,9 @@ class DownloadManager @Inject constructor(
     mediaItem: AVPMediaItem,
     downloadUrl: String,
     downloadType: DownloadType,
-    quality: String = "default"
+    quality: String = "default",
+    mirrors: List<String> = emptyList(),
+    expectedBytes: Long = 0L
   ): String {
     val downloadId = generateDownloadId(mediaItem, downloadUrl)
     val fileName = generateFileName(mediaItem, quality)
@@ -122,6 +304,8 @@ class DownloadManager @Inject constructor(
     // Check if download already exists
     val existingDownload = downloads.value[downloadId]
     if (existingDownload != null) {
+      // Asked for explicitly, it no longer waits behind the user's other downloads
+      governor.clearPriority(downloadId)
       when (existingDownload.status) {
         DownloadStatus.DOWNLOADING, DownloadStatus.PENDING -> {
           Timber.Forest.d("Download already in progress: $downloadId")
@@ -154,6 +338,8 @@ class DownloadManager @Inject constructor(
         .url(downloadUrl)
         .displayName(fileName)
         .type(DownloadType.HTTP)
+        .mirrors(mirrors.filter { it != downloadUrl }.distinct().take(MAX_MIRRORS))
+        .totalBytes(expectedBytes.coerceAtLeast(0L))
         .status(DownloadStatus.PENDING)
         .build()
 
@@ -164,6 +350,7 @@ class DownloadManager @Inject constructor(
         .displayName(fileName)
         .type(DownloadType.HLS)
         .quality(quality)
+        .totalBytes(expectedBytes.coerceAtLeast(0L))
         .status(DownloadStatus.PENDING)
         .build()
 
@@ -189,9 +376,9 @@ class DownloadManager @Inject constructor(
     // Execute start command
     val command = DownloadCommand.Start(downloadId, downloadUrl)
     if (downloadController.executeCommand(command)) {
-      // Create and enqueue WorkManager request
-      enqueueWorkRequest(downloadId, downloadType, downloadUrl, quality)
-      Timber.Forest.d("Started ${downloadType.name} download: $downloadId")
+      resumeOffsets.remove(downloadId)
+      enqueue(downloadId)
+      Timber.Forest.d("Queued ${downloadType.name} download: $downloadId")
     } else {
       Timber.Forest.e("Failed to start download: $downloadId")
     }
@@ -215,6 +402,7 @@ class DownloadManager @Inject constructor(
       // Cancel WorkManager task
       workManager.cancelUniqueWork("download_$downloadId")
       Timber.Forest.d("DownloadManager: Cancelled WorkManager task for: $downloadId")
+      release(downloadId)
     } else {
       Timber.Forest.e("DownloadManager: Failed to execute Pause command for: $downloadId")
     }
@@ -252,20 +440,13 @@ class DownloadManager @Inject constructor(
     val command = DownloadCommand.Resume(downloadId)
 
     if (downloadController.executeCommand(command)) {
-      // Re-enqueue work request with resume parameters
-      val downloadType = detectDownloadType(downloadData.url)
+      governor.clearPriority(downloadId)
+      // Queue again, continuing from what is already on disk
       val finalDownloadedBytes =
         if (actualDownloadedBytes > 0) actualDownloadedBytes else downloadData.downloadedBytes
 
-      enqueueWorkRequest(
-        downloadId = downloadId,
-        downloadType = downloadType,
-        downloadUrl = downloadData.url,
-        quality = downloadData.quality,
-        resumeBytes = finalDownloadedBytes,
-        resumeProgress = downloadData.progress,
-        isResuming = true
-      )
+      resumeOffsets[downloadId] = finalDownloadedBytes
+      enqueue(downloadId)
       Timber.Forest.d("Resumed download: $downloadId from ${finalDownloadedBytes} bytes (${downloadData.progress}%)")
     }
   }
@@ -317,6 +498,10 @@ class DownloadManager @Inject constructor(
     // Execute cancel command through controller
     val command = DownloadCommand.Cancel(downloadId)
     downloadController.executeCommand(command)
+    HlsResumeJournal(context, downloadId).delete()
+    RangeResumeJournal(context, downloadId).delete()
+    release(downloadId)
+    governor.clearPriority(downloadId)
 
     // Remove from datastore
     appDataStore.value.removeDownload(downloadId)
@@ -334,6 +519,10 @@ class DownloadManager @Inject constructor(
 
     // Remove from controller
     downloadController.removeDownload(downloadId)
+    HlsResumeJournal(context, downloadId).delete()
+    RangeResumeJournal(context, downloadId).delete()
+    release(downloadId)
+    governor.clearPriority(downloadId)
 
     // Remove from datastore
     appDataStore.value.removeDownload(downloadId)
@@ -415,8 +604,15 @@ class DownloadManager @Inject constructor(
     quality: String,
     resumeBytes: Long = 0L,
     resumeProgress: Int = 0,
-    isResuming: Boolean = false
-  ) {
+    isResuming: Boolean = false,
+    validators: HttpValidators? = null,
+    mirrors: List<String> = emptyList()
+  ): UUID {
+    val constraints = Constraints.Builder()
+      .setRequiredNetworkType(NetworkType.CONNECTED)
+      .setRequiresStorageNotLow(true)
+      .build()
+
     val workRequest = when (downloadType) {
       DownloadType.HTTP -> {
         OneTimeWorkRequestBuilder<HttpDownloader>()
@@ -427,9 +623,14 @@ class DownloadManager @Inject constructor(
                   HttpDownloader.Companion.KEY_DOWNLOAD_TYPE to "HTTP",
                   HttpDownloader.Companion.KEY_RESUME_PROGRESS to resumeProgress,
                   HttpDownloader.Companion.KEY_RESUME_BYTES to resumeBytes,
-                  HttpDownloader.Companion.KEY_RESUME_FROM_PAUSE to isResuming
+                  HttpDownloader.Companion.KEY_RESUME_FROM_PAUSE to isResuming,
+                  HttpDownloader.Companion.KEY_ETAG to validators?.etag,
+                  HttpDownloader.Companion.KEY_LAST_MODIFIED to validators?.lastModified,
+                  HttpDownloader.Companion.KEY_CONTENT_LENGTH to (validators?.contentLength ?: -1L),
+                  HttpDownloader.Companion.KEY_MIRRORS to mirrors.toTypedArray()
               )
           )
+          .setConstraints(constraints)
           .addTag(DOWNLOAD_WORK_TAG)
           .addTag(downloadId)
           .addTag("HTTP")
@@ -445,6 +646,7 @@ class DownloadManager @Inject constructor(
                   HlsDownloader.Companion.KEY_QUALITY to quality
               )
           )
+          .setConstraints(constraints)
           .addTag(DOWNLOAD_WORK_TAG)
           .addTag(downloadId)
           .addTag("HLS")
@@ -459,6 +661,7 @@ class DownloadManager @Inject constructor(
                   TorrentDownloader.Companion.KEY_TORRENT_URL to downloadUrl,
               )
           )
+          .setConstraints(constraints)
           .addTag(DOWNLOAD_WORK_TAG)
           .addTag(downloadId)
           .addTag("TORRENT")
@@ -471,6 +674,7 @@ class DownloadManager @Inject constructor(
       ExistingWorkPolicy.REPLACE,
       workRequest
     )
+    return workRequest.id
   }
 
   /**
@@ -482,7 +686,8 @@ class DownloadManager @Inject constructor(
       Timber.Forest.d("WorkManager update received: ${workInfos.size} items")
       workInfos?.forEach { workInfo ->
         val downloadId = extractDownloadId(workInfo)
-        if (downloadId != null) {
+        // Only the current request of a dispatched download speaks for it
+        if (downloadId != null && dispatched[downloadId] == workInfo.id) {
           Timber.Forest.d("WorkManager update for download: $downloadId")
           Timber.Forest.d("WorkManager update for workInfo: ${workInfo.id}")
           val event = workInfo.toDownloadEvent(downloadId)
@@ -494,10 +699,22 @@ class DownloadManager @Inject constructor(
     }
   }
 
+  /**
+   * Apply worker progress in batches, on the main thread like WorkManager events
+   */
+  private fun observeProgress() {
+    CoroutineScope(Dispatchers.Main).launch {
+      progressBus.collectBatches(PROGRESS_BATCH_INTERVAL_MS) { updates ->
+        downloadController.applyProgress(updates).forEach { appDataStore.value.saveDownload(it) }
+      }
+    }
+  }
+
   /**
    * Handle WorkManager events through controller
    */
   private fun handleWorkEvent(event: DownloadEvent) {
+    if (event is DownloadEvent.WorkFailed && event.insufficientStorage && requeue(event)) return
     if (downloadController.handleWorkEvent(event)) {
       // Sync to persistent storage if needed
       val downloadId = when (event) {
@@ -512,7 +729,37 @@ class DownloadManager @Inject constructor(
       downloads.value[downloadId]?.let { downloadItem ->
         appDataStore.value.saveDownload(downloadItem)
       }
+
+      // A finished download frees its slot for the next one, and drops its priority
+      if (event is DownloadEvent.WorkCompleted || event is DownloadEvent.WorkFailed ||
+        event is DownloadEvent.WorkCancelled
+      ) {
+        if (downloads.value[downloadId]?.status != DownloadStatus.PAUSED) governor.clearPriority(downloadId)
+        promoteQueued()
+      }
+    }
+  }
+
+  /**
+   * Puts a download whose worker found no room for its file back in the queue, now with its
+   * size known, so it starts once enough space is free instead of failing.
+   */
+  private fun requeue(event: DownloadEvent.WorkFailed): Boolean {
+    val data = downloads.value[event.downloadId] ?: return false
+    if (data.status != DownloadStatus.PENDING && data.status != DownloadStatus.DOWNLOADING) return false
+    val length = event.downloadData?.totalBytes ?: 0L
+    if (length > 0) {
+      downloadController.applyProgress(mapOf(data.id to data.copy(totalBytes = length)))
+        .forEach { appDataStore.value.saveDownload(it) }
     }
+    synchronized(this) {
+      dispatched.remove(data.id)
+      resumeOffsets[data.id] = data.downloadedBytes
+      storageBudget.release(data.id)
+    }
+    Timber.d("No room for ${data.id}, queued again until $length bytes fit")
+    enqueue(data.id)
+    return true
   }
 
   /**
@@ -616,13 +863,15 @@ class DownloadManager @Inject constructor(
     // Cancel any existing work first
     workManager.cancelUniqueWork("download_$downloadId")
 
+    dispatched.remove(downloadId)
+
     // Execute start command to retry
     val command = DownloadCommand.Start(downloadId, downloadData.url)
     if (downloadController.executeCommand(command)) {
-      // Create and enqueue WorkManager request
-      val downloadType = detectDownloadType(downloadData.url)
-      enqueueWorkRequest(downloadId, downloadType, downloadData.url, downloadData.quality)
-      Timber.d("Retried ${downloadType.name} download: $downloadId")
+      governor.clearPriority(downloadId)
+      resumeOffsets.remove(downloadId)
+      enqueue(downloadId)
+      Timber.d("Queued retry of ${downloadData.type.name} download: $downloadId")
     } else {
       Timber.e("Failed to retry download: $downloadId")
     }
@@ -632,9 +881,7 @@ class DownloadManager @Inject constructor(
    * Get download progress for a specific download
    */
   fun getDownloadProgress(downloadId: String): StateFlow<Int> {
-    return downloads.map { downloadsMap ->
-      downloadsMap[downloadId]?.progress ?: 0
-    }.stateIn(
+    return downloadController.download(downloadId).map { it?.progress ?: 0 }.stateIn(
       scope = CoroutineScope(Dispatchers.Default),
       started = SharingStarted.Eagerly,
       initialValue = 0
@@ -644,17 +891,13 @@ class DownloadManager @Inject constructor(
   /**
    * Get download data for a specific download
    */
-  fun getDownloadData(downloadId: String): StateFlow<DownloadData?> {
-    return downloads.map { downloadsMap ->
-      downloadsMap[downloadId]
-    }.stateIn(
-      scope = CoroutineScope(Dispatchers.Default),
-      started = SharingStarted.Eagerly,
-      initialValue = null
-    )
-  }
+  fun getDownloadData(downloadId: String): StateFlow<DownloadData?> =
+    downloadController.download(downloadId)
 
   companion object {
     private const val DOWNLOAD_WORK_TAG = "media_download"
+    const val DEFAULT_MAX_ACTIVE_DOWNLOADS = 2
+    private const val PROGRESS_BATCH_INTERVAL_MS = 500L
+    private const val MAX_MIRRORS = 4
   }
 }
@@ -0,0 +1,43 @@
+package cloud.app.vvf.services.downloader.stateMachine
+
+import androidx.work.Data
+import cloud.app.vvf.services.downloader.DownloadData
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import java.util.concurrent.ConcurrentHashMap
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Carries download progress from workers to [DownloadManager] inside the process, instead of
+ * through the WorkManager database. Only the latest update of each download is kept, so a
+ * consumer that falls behind skips straight to the current state.
+ */
+@Singleton
+class DownloadProgressBus @Inject constructor() {
+
+  private val pending = ConcurrentHashMap<String, DownloadData>()
+  private val signal = Channel<Unit>(Channel.CONFLATED)
+
+  /**
+   * Reports the progress of [downloadId], keyed like its WorkManager data.
+   */
+  fun publish(downloadId: String, progress: Data) {
+    pending[downloadId] = progress.toDownloadData()
+    signal.trySend(Unit)
+  }
+
+  /**
+   * Hands the downloads updated since the previous batch to [block], at most once per
+   * [intervalMs]. Never returns.
+   */
+  suspend fun collectBatches(intervalMs: Long, block: (Map<String, DownloadData>) -> Unit) {
+    for (ignored in signal) {
+      val batch = pending.keys.toList()
+        .mapNotNull { id -> pending.remove(id)?.let { id to it } }
+        .toMap()
+      if (batch.isNotEmpty()) block(batch)
+      delay(intervalMs)
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package cloud.app.vvf.services.downloader.stateMachine
 
+import androidx.work.Data
 import androidx.work.WorkInfo
 import cloud.app.vvf.services.downloader.DownloadData
 import cloud.app.vvf.services.downloader.DownloadStatus
@@ -117,7 +118,8 @@ sealed class DownloadEvent {
   data class WorkFailed(
     val downloadId: String,
     val error: String,
-    val downloadData: DownloadData? = null
+    val downloadData: DownloadData? = null,
+    val insufficientStorage: Boolean = false
   ) : DownloadEvent()
 
   data class WorkCancelled(val downloadId: String) : DownloadEvent()
@@ -130,24 +132,19 @@ fun WorkInfo.toDownloadEvent(downloadId: String): DownloadEvent? {
   return when (this.state) {
     WorkInfo.State.ENQUEUED -> DownloadEvent.WorkEnqueued(downloadId)
 
-    WorkInfo.State.RUNNING -> {
-      val downloadData = extractDownloadDataFromWorkInfo(this)
-      if (downloadData.progress > 0 || downloadData.downloadedBytes > 0) {
-        DownloadEvent.ProgressUpdated(downloadId, downloadData)
-      } else {
-        DownloadEvent.WorkStarted(downloadId)
-      }
-    }
+    // Progress comes through DownloadProgressBus, WorkManager only reports the lifecycle
+    WorkInfo.State.RUNNING -> DownloadEvent.WorkStarted(downloadId)
 
     WorkInfo.State.SUCCEEDED -> {
-      val downloadData = extractDownloadDataFromWorkInfo(this, isOutput = true)
+      val downloadData = outputData.toDownloadData()
       DownloadEvent.WorkCompleted(downloadId,  downloadData)
     }
 
     WorkInfo.State.FAILED -> {
       val error = this.outputData.getString("error") ?: "Unknown error"
-      val downloadData = extractDownloadDataFromWorkInfo(this, isOutput = true)
-      DownloadEvent.WorkFailed(downloadId, error, downloadData)
+      val downloadData = outputData.toDownloadData()
+      val insufficientStorage = outputData.getBoolean(DownloadData.Companion.Keys.INSUFFICIENT_STORAGE, false)
+      DownloadEvent.WorkFailed(downloadId, error, downloadData, insufficientStorage)
     }
 
     WorkInfo.State.CANCELLED -> DownloadEvent.WorkCancelled(downloadId)
@@ -156,10 +153,10 @@ fun WorkInfo.toDownloadEvent(downloadId: String): DownloadEvent? {
 }
 
 /**
- * Extract DownloadData from WorkInfo progress or output data
+ * Extract DownloadData from worker progress or output data
  */
-private fun extractDownloadDataFromWorkInfo(workInfo: WorkInfo, isOutput: Boolean = false): DownloadData {
-  val data = if (isOutput) workInfo.outputData else workInfo.progress
+fun Data.toDownloadData(): DownloadData {
+  val data = this
 
   val k = DownloadData.Companion.Keys
 
@@ -224,6 +221,12 @@ private fun extractDownloadDataFromWorkInfo(workInfo: WorkInfo, isOutput: Boolea
   val contentType = data.getString(k.CONTENT_TYPE)
   if (contentType != null) builder.contentType(contentType)
 
+  builder.etag(data.getString(k.ETAG))
+  builder.lastModified(data.getString(k.LAST_MODIFIED))
+  val contentLength = data.getLong(k.CONTENT_LENGTH, -1L)
+  if (contentLength >= 0) builder.contentLength(contentLength)
+  builder.sha256(data.getString(k.SHA256))
+
   // Common data
   val streamUrl = data.getString(k.STREAM_URL)
   if (streamUrl != null) builder.streamUrl(streamUrl)
@@ -10,10 +10,12 @@ import cloud.app.vvf.common.models.AVPMediaItem
 import cloud.app.vvf.common.models.AVPMediaItem.Companion.toMediaItem
 import cloud.app.vvf.common.models.AVPMediaItem.PlaybackProgress
 import cloud.app.vvf.datastore.app.AppDataStore
+import cloud.app.vvf.datastore.app.PlaybackProgressFolder
 import cloud.app.vvf.extension.runClient
 import cloud.app.vvf.ui.paging.toFlow
 import dagger.hilt.android.lifecycle.HiltViewModel
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.async
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.MutableStateFlow
@@ -65,6 +67,7 @@ class ShowViewModel @Inject constructor(
         lastWatchedEpisode.value = lastWatchedDeferred.await()
 
         loading.emit(false)
+        observeProgress(showDetail)
 
         updateUIFlow.collectLatest { item ->
           when (item) {
@@ -73,17 +76,8 @@ class ShowViewModel @Inject constructor(
             }
 
             is AVPMediaItem.ActorItem -> TODO()
-            is AVPMediaItem.EpisodeItem -> {
-              if (item.seasonItem.showItem.id == fullMediaItem.value?.id) {
-                watchedSeasons.value =
-                  item.seasonItem.showItem.show.seasons?.map { it.toMediaItem(item.seasonItem.showItem) }
-                    ?.map {
-                      it.watchedEpisodeNumber = dataFlow.value.getWatchedEpisodeCount(it)
-                      it
-                    }
-                lastWatchedEpisode.value = dataFlow.value.getLatestPlaybackProgress(item.seasonItem.showItem)
-              }
-            }
+            // Watched counts and last episode follow the store, see observeProgress
+            is AVPMediaItem.EpisodeItem -> {}
             else -> {}
           }
         }
@@ -91,6 +85,32 @@ class ShowViewModel @Inject constructor(
     }
   }
 
+  private var progressJob: Job? = null
+
+  /**
+   * Keeps [lastWatchedEpisode] and the watched count of the seasons touched by each progress
+   * change current, without re-reading the other seasons.
+   */
+  private fun observeProgress(show: AVPMediaItem.ShowItem) {
+    progressJob?.cancel()
+    progressJob = viewModelScope.launch(Dispatchers.IO) {
+      var progress = emptyMap<String, PlaybackProgress>()
+      dataFlow.value.observeProgress(show.id.toString()).collect { changes ->
+        progress = changes.applyTo(progress)
+        lastWatchedEpisode.value = progress.values.maxByOrNull { it.lastUpdated }
+
+        val changedSeasons = (changes.upserted.keys + changes.removed).map {
+          it.removePrefix("$PlaybackProgressFolder/").substringBeforeLast('/')
+        }.toSet()
+        watchedSeasons.value = watchedSeasons.value?.map {
+          if (changes.reset || it.id.toString() in changedSeasons)
+            it.copy(watchedEpisodeNumber = dataFlow.value.getWatchedEpisodeCount(it))
+          else it
+        }
+      }
+    }
+  }
+
   fun loadRecommended(extensionId: String) {
     viewModelScope.launch(Dispatchers.IO) {
       extensionFlow.value?.runClient<DatabaseClient, PagedData<AVPMediaItem>?>(extensionId, throwableFlow) {
@@ -57,6 +57,15 @@ class DownloadsAdapter(
     }
   }
 
+  /**
+   * Moves an item while it is dragged to a new place in the queue.
+   */
+  fun moveItem(from: Int, to: Int) {
+    val items = currentList.toMutableList()
+    items.add(to, items.removeAt(from))
+    submitList(items)
+  }
+
   override fun onBindViewHolder(holder: BaseDownloadViewHolder, position: Int) {
     holder.bind(getItem(position))
   }
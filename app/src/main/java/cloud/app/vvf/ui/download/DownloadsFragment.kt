@@ -7,7 +7,9 @@ import android.view.ViewGroup
 import androidx.fragment.app.Fragment
 import androidx.fragment.app.viewModels
 import androidx.lifecycle.lifecycleScope
+import androidx.recyclerview.widget.ItemTouchHelper
 import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.RecyclerView
 import cloud.app.vvf.MainActivityViewModel.Companion.applyInsets
 import cloud.app.vvf.R
 import cloud.app.vvf.ads.AdManager
@@ -19,6 +21,7 @@ import cloud.app.vvf.ui.widget.dialog.actionOption.IconTextItem
 import cloud.app.vvf.utils.autoCleared
 import cloud.app.vvf.utils.setupTransition
 import dagger.hilt.android.AndroidEntryPoint
+import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.launch
 import timber.log.Timber
 import com.google.android.material.dialog.MaterialAlertDialogBuilder
@@ -29,6 +32,10 @@ class DownloadsFragment : Fragment() {
   private var binding by autoCleared<FragmentDownloadsBinding>()
   private val viewModel: DownloadsViewModel by viewModels()
   private lateinit var downloadsAdapter: DownloadsAdapter
+  private lateinit var queueTouchHelper: ItemTouchHelper
+
+  // Updates wait while a queued download is dragged so they don't undo the move
+  private var draggingQueue = false
 
   @Inject
   lateinit var adManager: AdManager
@@ -81,7 +88,7 @@ class DownloadsFragment : Fragment() {
         DownloadAction.RETRY -> viewModel.retryDownload(downloadItem.id)
         DownloadAction.REMOVE -> viewModel.removeDownload(downloadItem.id)
         DownloadAction.PLAY -> viewModel.play(this, downloadItem)
-        else -> showOptionDialog(downloadItem)
+        else -> if (!startQueueDrag(downloadItem)) showOptionDialog(downloadItem)
       }
     }
 
@@ -89,6 +96,66 @@ class DownloadsFragment : Fragment() {
       layoutManager = LinearLayoutManager(requireContext())
       adapter = downloadsAdapter
     }
+    setupQueueReordering()
+  }
+
+  /**
+   * Queued downloads are reordered by long-pressing and dragging them; released without moving
+   * they show their options like any other download.
+   */
+  private fun setupQueueReordering() {
+    queueTouchHelper = ItemTouchHelper(object : ItemTouchHelper.SimpleCallback(
+      ItemTouchHelper.UP or ItemTouchHelper.DOWN, 0
+    ) {
+      private var moved = false
+
+      private fun queuedItem(holder: RecyclerView.ViewHolder): DownloadData? {
+        val position = holder.bindingAdapterPosition
+        if (position == RecyclerView.NO_POSITION) return null
+        return downloadsAdapter.currentList.getOrNull(position)
+          ?.takeIf { it.id in viewModel.queue.value }
+      }
+
+      override fun isLongPressDragEnabled() = false
+
+      override fun getDragDirs(recyclerView: RecyclerView, viewHolder: RecyclerView.ViewHolder) =
+        if (queuedItem(viewHolder) != null) super.getDragDirs(recyclerView, viewHolder) else 0
+
+      override fun onMove(
+        recyclerView: RecyclerView,
+        viewHolder: RecyclerView.ViewHolder,
+        target: RecyclerView.ViewHolder
+      ): Boolean {
+        if (queuedItem(target) == null) return false
+        downloadsAdapter.moveItem(viewHolder.bindingAdapterPosition, target.bindingAdapterPosition)
+        moved = true
+        return true
+      }
+
+      override fun onSwiped(viewHolder: RecyclerView.ViewHolder, direction: Int) = Unit
+
+      override fun clearView(recyclerView: RecyclerView, viewHolder: RecyclerView.ViewHolder) {
+        super.clearView(recyclerView, viewHolder)
+        if (moved) {
+          val queued = viewModel.queue.value
+          viewModel.reorderQueue(downloadsAdapter.currentList.map { it.id }.filter { it in queued })
+        } else {
+          queuedItem(viewHolder)?.let { showOptionDialog(it) }
+        }
+        moved = false
+        draggingQueue = false
+      }
+    })
+    queueTouchHelper.attachToRecyclerView(binding.rvDownloads)
+  }
+
+  private fun startQueueDrag(downloadItem: DownloadData): Boolean {
+    if (downloadItem.id !in viewModel.queue.value) return false
+    val position = downloadsAdapter.currentList.indexOfFirst { it.id == downloadItem.id }
+    val holder = binding.rvDownloads.findViewHolderForAdapterPosition(position) ?: return false
+    draggingQueue = true
+    queueTouchHelper.startDrag(holder)
+    return true
   }
 
   private fun showOptionDialog(downloadItem: DownloadData) {
@@ -101,6 +168,9 @@ class DownloadsFragment : Fragment() {
     if (downloadItem.status == DownloadStatus.DOWNLOADING)
       items.add(IconTextItem(R.drawable.pause_24dp, R.string.action_pause))
 
+    if (viewModel.canPlayWhileDownloading(downloadItem))
+      items.add(IconTextItem(R.drawable.rounded_play_arrow_24, R.string.action_play))
+
     if (downloadItem.status == DownloadStatus.COMPLETED) {
       items.add(IconTextItem(R.drawable.rounded_play_arrow_24, R.string.action_play))
       items.add(IconTextItem(R.drawable.open_in_new_24dp, R.string.open_with))
@@ -157,24 +227,28 @@ class DownloadsFragment : Fragment() {
 
   private fun observeDownloads() {
     viewLifecycleOwner.lifecycleScope.launch {
-      viewModel.downloads.collect { downloads ->
-        if (downloads.isEmpty()) {
-          showEmptyState()
-        } else {
-          showDownloadsList()
-          // Force new list creation to ensure DiffUtil detects changes
-          val sortedList = downloads.sortedByDescending { it.createdAt }.toList()
-          downloadsAdapter.submitList(sortedList)
-
-          // Log for debugging
-          sortedList.forEach { download ->
-            Timber.d("DownloadsFragment: Submitting download ${download.id} with status ${download.status}")
+      viewModel.downloads.combine(viewModel.queue) { downloads, queue -> downloads to queue }
+        .collect { (downloads, queue) ->
+          if (downloads.isEmpty()) {
+            showEmptyState()
+          } else {
+            showDownloadsList()
+            // Queued downloads first in the order they will start, then newest first
+            val sortedList = downloads.sortedWith(
+              compareBy<DownloadData> { queue.indexOf(it.id).takeIf { index -> index >= 0 } ?: Int.MAX_VALUE }
+                .thenByDescending { it.createdAt }
+            )
+            if (!draggingQueue) downloadsAdapter.submitList(sortedList)
+
+            // Log for debugging
+            sortedList.forEach { download ->
+              Timber.d("DownloadsFragment: Submitting download ${download.id} with status ${download.status}")
+            }
           }
-        }
 
-        // Refresh storage info when downloads change
-        viewModel.refreshStorageInfo()
-      }
+          // Refresh storage info when downloads change
+          viewModel.refreshStorageInfo()
+        }
     }
   }
 
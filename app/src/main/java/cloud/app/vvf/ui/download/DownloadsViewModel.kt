@@ -28,13 +28,15 @@ import cloud.app.vvf.services.downloader.stateMachine.DownloadManager
 import cloud.app.vvf.services.downloader.DownloadData
 import cloud.app.vvf.services.downloader.DownloadStatus
 import cloud.app.vvf.services.downloader.DownloadType
+import cloud.app.vvf.services.downloader.helper.ProgressiveDownloads
 import cloud.app.vvf.utils.navigate
 
 @HiltViewModel
 class DownloadsViewModel @Inject constructor(
   private val downloadManager: DownloadManager,
   private val dataFlow: MutableStateFlow<AppDataStore>,
-  private val application: Application
+  private val application: Application,
+  private val progressiveDownloads: ProgressiveDownloads
 ) : ViewModel() {
 
   val downloads: StateFlow<List<DownloadData>> = downloadManager.downloads
@@ -52,6 +54,9 @@ class DownloadsViewModel @Inject constructor(
       initialValue = emptyList()
     )
 
+  // Ids of the downloads waiting for a slot, next to start first
+  val queue: StateFlow<List<String>> = downloadManager.queue
+
   // Storage information state
   private val _storageInfo = MutableStateFlow<StorageInfo?>(null)
   val storageInfo: StateFlow<StorageInfo?> = _storageInfo
@@ -138,6 +143,11 @@ class DownloadsViewModel @Inject constructor(
     }
   }
 
+  fun reorderQueue(downloadIds: List<String>) {
+    downloadManager.reorderQueue(downloadIds)
+    Timber.d("Reordered download queue: $downloadIds")
+  }
+
   fun retryDownload(downloadId: String) {
     viewModelScope.launch {
       try {
@@ -244,9 +254,20 @@ class DownloadsViewModel @Inject constructor(
       Timber.e(e, "Error playing downloaded file: ${downloadData.title}")
     }
   }
+  /**
+   * Whether [downloadData] is running and can be played from what it stored so far.
+   */
+  fun canPlayWhileDownloading(downloadData: DownloadData): Boolean =
+    downloadData.status == DownloadStatus.DOWNLOADING && progressiveDownloads.get(downloadData.id) != null
+
   fun play(fragment: DownloadsFragment, downloadData: DownloadData) {
     if (downloadData.status != DownloadStatus.COMPLETED) {
-      Timber.w("Cannot play file: download not completed. Current status: ${downloadData.status}")
+      val running = progressiveDownloads.get(downloadData.id)
+      if (running != null) {
+        playStream(fragment, running.file.uri.toString(), downloadData)
+      } else {
+        Timber.w("Cannot play file: download not completed. Current status: ${downloadData.status}")
+      }
       return
     }
 
@@ -397,20 +418,23 @@ class DownloadsViewModel @Inject constructor(
     }
   }
 
-  @OptIn(UnstableApi::class)
   private fun playWithInternalPlayer(fragment: DownloadsFragment, file: File, downloadData: DownloadData) {
     val streamUrl = downloadData.filePath ?: file.absolutePath
-    if (streamUrl.isNotBlank()) {
-      // Navigate to PlayerFragment to play the stream
-      val video = Video.RemoteVideo(uri = streamUrl, title = streamUrl)
-      val mediaItem = AVPMediaItem.VideoItem(video)
-      fragment.navigate(
-        PlayerFragment.newInstance(
-          mediaItems = listOf(mediaItem),
-          selectedMediaIdx = 0,
-        )
+    if (streamUrl.isNotBlank()) playStream(fragment, streamUrl, downloadData)
+  }
+
+  @OptIn(UnstableApi::class)
+  private fun playStream(fragment: DownloadsFragment, streamUrl: String, downloadData: DownloadData) {
+    // Navigate to PlayerFragment to play the stream
+    val video = Video.RemoteVideo(uri = streamUrl, title = streamUrl)
+    val mediaItem = AVPMediaItem.VideoItem(video)
+    fragment.navigate(
+      PlayerFragment.newInstance(
+        mediaItems = listOf(mediaItem),
+        selectedMediaIdx = 0,
+        episode = downloadData.mediaItem as? AVPMediaItem.EpisodeItem
       )
-    }
+    )
   }
   /**
    * Update download item with correct file path
@@ -73,6 +73,17 @@ abstract class FeedViewModel(
     }
   }
 
+  /**
+   * Reloads the current tab without clearing it first, so the adapter only rebinds changed rows.
+   */
+  fun reloadFeed() {
+    val dbExtension = selectedExtension.value ?: return
+    job?.cancel()
+    job = viewModelScope.launch(Dispatchers.IO) {
+      loadFeed(dbExtension)
+    }
+  }
+
   private suspend inline fun useLoading(block: () -> Unit) {
     loading.emit(true)
     block()
@@ -12,7 +12,9 @@ import cloud.app.vvf.services.downloader.DownloadStatus
 import cloud.app.vvf.common.models.MediaItemsContainer
 import cloud.app.vvf.common.models.MediaItemsContainer.Companion.toPaged
 import cloud.app.vvf.common.models.extension.Tab
+import cloud.app.vvf.datastore.ChangeSet
 import cloud.app.vvf.datastore.app.AppDataStore
+import cloud.app.vvf.datastore.app.helper.BookmarkItem
 import cloud.app.vvf.ui.main.FeedViewModel
 import cloud.app.vvf.ui.paging.toFlow
 import dagger.hilt.android.lifecycle.HiltViewModel
@@ -32,6 +34,10 @@ class LibraryViewModel @Inject constructor(
   selectedExtension: MutableStateFlow<Extension<DatabaseClient>?>
 ) : FeedViewModel(throwableFlow, dataFlow, selectedExtension) {
 
+  // Bookmark groups as the feed shows them, null until the first change set arrived. Only the
+  // collector below writes them, the feed reads the latest snapshot
+  private val bookmarkGroups = MutableStateFlow<List<Pair<String, List<BookmarkItem>>>?>(null)
+
   override fun onInitialize() {
     super.onInitialize()
     viewModelScope.launch() {
@@ -39,6 +45,17 @@ class LibraryViewModel @Inject constructor(
         refresh(selectedExtension.value, true)
       }
     }
+    viewModelScope.launch(Dispatchers.Default) {
+      dataFlow.collectLatest { store ->
+        bookmarkGroups.value = null
+        val groups = BookmarkGroups()
+        store.observeBookmarks().collect { changes ->
+          val loaded = bookmarkGroups.value != null
+          bookmarkGroups.value = groups.apply(changes)
+          if (loaded) withContext(Dispatchers.Main) { if (tab?.id == "Bookmarks") reloadFeed() }
+        }
+      }
+    }
   }
   override suspend fun getTabs(client: BaseClient): List<Tab> {
     return withContext(Dispatchers.IO) {
@@ -65,10 +82,12 @@ class LibraryViewModel @Inject constructor(
       "Bookmarks" ->
         PagedData.Continuous<MediaItemsContainer> { it ->
           val items = mutableListOf<MediaItemsContainer.Category>();
-          dataFlow.value.getAllBookmarks()?.groupBy { it::class.java }?.map {
+          val groups = bookmarkGroups.value
+            ?: dataFlow.value.getAllBookmarks()?.groupBy { groupOf(it) }?.toList()
+          groups?.map {
             val category = MediaItemsContainer.Category(
-              title = it.key.simpleName ?: "Unknown",
-              more = it.value.map { it.item }.toPaged()
+              title = it.first,
+              more = it.second.map { it.item }.toPaged()
             )
             items.add(category)
           }
@@ -98,5 +117,51 @@ class LibraryViewModel @Inject constructor(
     }
   }
 
+  /**
+   * Bookmarks grouped by type, newest first within a group and groups by their newest bookmark.
+   * A change set only re-sorts the groups it touches.
+   */
+  private class BookmarkGroups {
+    private val groupOfPath = HashMap<String, String>()
+    private val entries = HashMap<String, HashMap<String, BookmarkItem>>()
+    private val sorted = HashMap<String, List<BookmarkItem>>()
 
+    fun apply(changes: ChangeSet<BookmarkItem>): List<Pair<String, List<BookmarkItem>>> {
+      if (changes.reset) {
+        groupOfPath.clear()
+        entries.clear()
+        sorted.clear()
+      }
+      val touched = HashSet<String>()
+      changes.removed.forEach { path ->
+        groupOfPath.remove(path)?.let { group ->
+          entries[group]?.remove(path)
+          touched += group
+        }
+      }
+      changes.upserted.forEach { (path, bookmark) ->
+        val group = groupOf(bookmark)
+        groupOfPath.put(path, group)?.takeIf { it != group }?.let { previous ->
+          entries[previous]?.remove(path)
+          touched += previous
+        }
+        entries.getOrPut(group) { HashMap() }[path] = bookmark
+        touched += group
+      }
+      touched.forEach { group ->
+        val bookmarks = entries[group]
+        if (bookmarks.isNullOrEmpty()) {
+          entries.remove(group)
+          sorted.remove(group)
+        } else {
+          sorted[group] = bookmarks.values.sortedByDescending { it.lastUpdated }
+        }
+      }
+      return sorted.toList().sortedByDescending { (_, bookmarks) -> bookmarks.first().lastUpdated }
+    }
+  }
+
+  companion object {
+    private fun groupOf(bookmark: BookmarkItem) = bookmark::class.java.simpleName ?: "Unknown"
+  }
 }
@@ -69,7 +69,9 @@ class BackupUpdateFragment : BaseSettingsFragment() {
     private val restorePicker = getChooseFileLauncher { uri ->
       uri?.let {
         lifecycleScope.launch(Dispatchers.IO) {
-          val result = fileHelper.restoreSharedPreferencesFromJson(it)
+          // Incremental backups are restored along with the earlier ones in the backup folder
+          val backupDir = preferenceManager.sharedPreferences?.let { prefs -> fileHelper.getBackupDir(prefs) }
+          val result = fileHelper.restoreSharedPreferencesFromJson(it, backupDir)
           withContext(Dispatchers.Main) {
             if (result) {
               context?.showToast(R.string.restore_success)
@@ -107,7 +109,7 @@ class BackupUpdateFragment : BaseSettingsFragment() {
             // Define backup file using KUniFile
             val defaultDir = fileHelper.getDefaultBackupDir()
             val date = SimpleDateFormat("yyyy_MM_dd_HH_mm").format(Date(System.currentTimeMillis()))
-            val displayName = "vvf_backup${date}.json"
+            val displayName = "vvf_backup${date}.json.gz"
             val backupDirPath = preferences.getString(
               getString(R.string.pref_backup_path),
               defaultDir?.uri?.toString()
@@ -115,7 +117,7 @@ class BackupUpdateFragment : BaseSettingsFragment() {
             val backupDir =
               backupDirPath?.let { KUniFile.fromUri(context, Uri.parse(it)) } ?: defaultDir
             if (backupDir?.isDirectory == true) {
-              val backupFile = backupDir.createFile(displayName, "application/json")
+              val backupFile = backupDir.createFile(displayName, "application/gzip")
 
               if (backupFile != null) {
                 // Backup all SharedPreferences
@@ -155,6 +157,8 @@ class BackupUpdateFragment : BaseSettingsFragment() {
               "text/str",
               "text/x-unknown",
               "application/json",
+              "application/gzip",
+              "application/x-gzip",
               "unknown/unknown",
               "content/unknown",
               "application/octet-stream"
@@ -7,8 +7,11 @@ import androidx.appcompat.content.res.AppCompatResources
 import androidx.preference.Preference
 import androidx.preference.PreferenceCategory
 import androidx.preference.PreferenceFragmentCompat
+import androidx.preference.SwitchPreferenceCompat
 import cloud.app.vvf.R
+import cloud.app.vvf.features.player.NextEpisodePrefetcher
 import cloud.app.vvf.services.downloader.helper.DownloadFileManager
+import cloud.app.vvf.services.downloader.stateMachine.DownloadManager
 import cloud.app.vvf.utils.FileFolderPicker.getChooseFolderLauncher
 import cloud.app.vvf.utils.FileHelper
 import cloud.app.vvf.utils.MaterialListPreference
@@ -88,6 +91,56 @@ class DownloadSettingFragment : BaseSettingsFragment() {
         screen.addPreference(this)
       }
 
+      MaterialSliderPreference(context, 1, 5, 1, allowOverride = false).apply {
+        key = getString(R.string.pref_max_active_downloads)
+        title = getString(R.string.max_active_downloads)
+        summary = getString(R.string.max_active_downloads_summary)
+        suffixSummary = ""
+        isIconSpaceReserved = false
+        setDefaultValue(DownloadManager.DEFAULT_MAX_ACTIVE_DOWNLOADS)
+        screen.addPreference(this)
+      }
+
+      MaterialSliderPreference(context, 0, 100, 1, allowOverride = true).apply {
+        key = getString(R.string.pref_download_speed_limit)
+        title = getString(R.string.download_speed_limit)
+        summary = getString(R.string.download_speed_limit_summary)
+        suffixSummary = " Mbit/s"
+        isIconSpaceReserved = false
+        setDefaultValue(0)
+        screen.addPreference(this)
+      }
+
+      SwitchPreferenceCompat(context).apply {
+        layoutResource = R.layout.preference_switch
+        key = getString(R.string.pref_download_yield_to_playback)
+        title = getString(R.string.download_yield_to_playback)
+        summary = getString(R.string.download_yield_to_playback_summary)
+        isIconSpaceReserved = false
+        setDefaultValue(true)
+        screen.addPreference(this)
+      }
+
+      SwitchPreferenceCompat(context).apply {
+        layoutResource = R.layout.preference_switch
+        key = getString(R.string.pref_prefetch_next_episode)
+        title = getString(R.string.prefetch_next_episode)
+        summary = getString(R.string.prefetch_next_episode_summary)
+        isIconSpaceReserved = false
+        setDefaultValue(false)
+        screen.addPreference(this)
+      }
+
+      MaterialSliderPreference(context, 50, 95, 5, allowOverride = false).apply {
+        key = getString(R.string.pref_prefetch_threshold)
+        title = getString(R.string.prefetch_threshold)
+        summary = getString(R.string.prefetch_threshold_summary)
+        suffixSummary = "%"
+        isIconSpaceReserved = false
+        setDefaultValue(NextEpisodePrefetcher.DEFAULT_THRESHOLD_PERCENT)
+        screen.addPreference(this)
+      }
+
 //      PreferenceCategory(context).apply {
 //        title = getString(R.string.hls_options)
 //        key = "hls_option"
@@ -27,6 +27,7 @@ import cloud.app.vvf.utils.getSerialized
 import cloud.app.vvf.utils.observe
 import cloud.app.vvf.utils.putSerialized
 import cloud.app.vvf.utils.setTextWithVisibility
+import cloud.app.vvf.utils.showToast
 import dagger.hilt.android.AndroidEntryPoint
 import kotlin.math.max
 
@@ -115,8 +116,10 @@ class StreamFragment : DockingDialog(), StreamAdapter.ItemClickListener {
         val playData = PlayData(
           listOf(streamData),
           selectedId = 0,
+          avpMediaItem = viewModel.streamedItem,
           title = streamData.title
         )
+        viewModel.onPlay(streamData)
         PlayerManager.getInstance().play(playData, parentFragmentManager)
       }
 
@@ -130,8 +133,10 @@ class StreamFragment : DockingDialog(), StreamAdapter.ItemClickListener {
             val playData = PlayData(
               listOf(streamData),
               selectedId = 0,
+              avpMediaItem = viewModel.streamedItem,
               title = streamData.fileName
             )
+            viewModel.onPlay(streamData)
             PlayerManager.getInstance().play(playData, parentFragmentManager)
           }
         }
@@ -140,7 +145,10 @@ class StreamFragment : DockingDialog(), StreamAdapter.ItemClickListener {
   }
 
   override fun onStreamItemLongClick(streamData: Video) {
-    TODO("Not yet implemented")
+    if (streamData !is Video.RemoteVideo) return
+    if (streamData.premiumType == PremiumType.JustWatch.ordinal) return
+    viewModel.download(streamData)
+    requireContext().showToast(R.string.added_to_downloads)
   }
 
   override fun onDoubleDpadUpClicked() {
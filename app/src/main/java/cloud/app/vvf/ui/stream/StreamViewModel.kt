@@ -17,6 +17,9 @@ import cloud.app.vvf.common.models.video.Video
 import cloud.app.vvf.datastore.app.AppDataStore
 import cloud.app.vvf.extension.run
 import cloud.app.vvf.extension.tmdb.services.tmdb.popularCountriesIsoToEnglishName
+import cloud.app.vvf.features.player.NextEpisodePrefetcher
+import cloud.app.vvf.services.downloader.helper.mirrorsAmong
+import cloud.app.vvf.services.downloader.stateMachine.DownloadManager
 import dagger.hilt.android.lifecycle.HiltViewModel
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
@@ -35,6 +38,8 @@ class StreamViewModel @Inject constructor(
   val extensionFlow: MutableStateFlow<List<Extension<*>>?>,
   val settingsPreference: SharedPreferences,
   val dataFlow: MutableStateFlow<AppDataStore>,
+  private val downloadManager: DownloadManager,
+  private val prefetcher: NextEpisodePrefetcher,
 ) : CatchingViewModel(throwableFlow) {
   private val _streams = MutableStateFlow<List<Video>?>(null)
   val streams: StateFlow<List<Video>?> = _streams.asStateFlow()
@@ -47,6 +52,10 @@ class StreamViewModel @Inject constructor(
 
   var mediaItem: AVPMediaItem? = null
 
+  // What the links are for, the episode to continue with when a show was opened
+  var streamedItem: AVPMediaItem? = null
+    private set
+
   var extension: MutableStateFlow<StreamClient?> = MutableStateFlow(null)
 
   var region: MutableStateFlow<String?> = MutableStateFlow(null)
@@ -104,6 +113,7 @@ class StreamViewModel @Inject constructor(
         }
 
         if (item == null) return@launch
+        streamedItem = item
 
         val extensions = extensionFlow.first() ?: emptyList()
         val subtitleExtensions = extensions.filter {
@@ -143,6 +153,24 @@ class StreamViewModel @Inject constructor(
     _streams.value = (_streams.value ?: emptyList()) + streamData
   }
 
+  /**
+   * Starts downloading [video], also from the other links found for the same file.
+   */
+  fun download(video: Video.RemoteVideo): String {
+    val item = mediaItem ?: AVPMediaItem.VideoItem(video)
+    val mirrors = video.mirrorsAmong(_streams.value ?: emptyList())
+    return downloadManager.startDownload(item, video.uri, mirrors = mirrors, expectedBytes = video.fileSize)
+  }
+
+  /**
+   * Called as [video] is handed to the player; queues the next episode for prefetching.
+   */
+  fun onPlay(video: Video) {
+    val episode = streamedItem as? EpisodeItem ?: return
+    val runtimeMs = episode.episode.generalInfo.runtime?.let { it * 60_000L }
+    prefetcher.prefetchWhilePlaying(episode, video.duration ?: runtimeMs)
+  }
+
   fun getSupportRegion(): Map<String, String> {
     return popularCountriesIsoToEnglishName
   }
@@ -47,7 +47,7 @@ class AccountDialogViewModel @Inject constructor(
 
     val result = accountFlow.value.setActiveAccount(account)
     if(result)
-      dataFlow.value = AppDataStore(context, account)
+      dataFlow.value = AppDataStore.of(context, account)
     callback(result)
   }
 }
@@ -2,9 +2,14 @@ package cloud.app.vvf.utils
 
 import android.annotation.SuppressLint
 import android.content.Context
+import android.content.SharedPreferences
 import android.net.Uri
 import androidx.preference.PreferenceManager
 import cloud.app.vvf.R
+import cloud.app.vvf.datastore.DataStorage
+import cloud.app.vvf.datastore.SqliteStorage
+import cloud.app.vvf.datastore.app.APP_DATA_STORE_PREFIX
+import cloud.app.vvf.datastore.app.AppDataStore
 import cloud.app.vvf.utils.KUniFile.Companion.DocumentKUniFile
 import cloud.app.vvf.utils.KUniFile.Companion.FileKUniFile
 import cloud.app.vvf.utils.KUniFile.Companion.MediaCollection
@@ -12,7 +17,16 @@ import cloud.app.vvf.utils.KUniFile.Companion.MediaKUniFile
 import kotlinx.serialization.Serializable
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
+import timber.log.Timber
+import java.io.BufferedInputStream
+import java.io.BufferedReader
+import java.io.DataInputStream
+import java.io.DataOutputStream
 import java.io.File
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
 import androidx.core.content.edit
 import androidx.core.net.toUri
 
@@ -23,57 +37,95 @@ data class PrefEntry(
   val type: String // To store type information
 )
 
-// Data class to hold all SharedPreferences data
+// Data class to hold all SharedPreferences data, the format of backups written before streaming
 @Serializable
 data class SharedPrefsBackup(
   val preferences: Map<String, Map<String, PrefEntry>>
 )
 
+// First line of a streamed backup, an incremental one names the backup it applies on top of
+@Serializable
+data class BackupHeader(
+  val version: Int,
+  val incremental: Boolean,
+  val createdAt: Long,
+  val previous: String? = null
+)
+
+// One line of a streamed backup, a null entry marks a key removed since the previous snapshot
+@Serializable
+data class BackupRecord(
+  val file: String,
+  val key: String,
+  val entry: PrefEntry? = null
+)
+
 class FileHelper(val context: Context) {
 
   private val json = Json { prettyPrint = true } // Configure JSON serialization
+  private val lineJson = Json { ignoreUnknownKeys = true }
+
+  private val manifestFile get() = File(context.filesDir, BACKUP_MANIFEST)
 
   /**
-   * Backs up multiple SharedPreferences to a JSON file using KUniFile.
+   * Backs up multiple SharedPreferences and the data stores to a gzip-compressed stream of JSON
+   * lines, one entry at a time.
    * @param prefNames List of SharedPreferences names to back up.
    * @param backupFile KUniFile representing the destination file.
+   * @param incremental Only write entries changed or removed since the previous backup; must go
+   * to a new file, restoring it applies on top of the earlier ones. Without a previous backup to
+   * diff against a full one is written.
    * @return True if backup succeeds, false otherwise.
    */
-  fun backupSharedPreferencesToJson(prefNames: List<String>, backupFile: KUniFile): Boolean {
+  fun backupSharedPreferencesToJson(
+    prefNames: List<String>,
+    backupFile: KUniFile,
+    incremental: Boolean = false
+  ): Boolean {
     return try {
-      val backupData = mutableMapOf<String, Map<String, PrefEntry>>()
-
-      prefNames.forEach { prefName ->
-        val prefs = context.getSharedPreferences(prefName, Context.MODE_PRIVATE)
-        val allEntries = prefs.all
-        val prefMap = mutableMapOf<String, PrefEntry>()
-
-        allEntries.forEach { (key, value) ->
-          when (value) {
-            is Boolean -> prefMap[key] = PrefEntry(value.toString(), "Boolean")
-            is Float -> prefMap[key] = PrefEntry(value.toString(), "Float")
-            is Int -> prefMap[key] = PrefEntry(value.toString(), "Int")
-            is Long -> prefMap[key] = PrefEntry(value.toString(), "Long")
-            is String -> prefMap[key] = PrefEntry(value, "String")
-            is Set<*> -> prefMap[key] = PrefEntry(
-              json.encodeToString(value as Set<String>),
-              "StringSet"
-            )
-          }
-        }
-        backupData[prefName] = prefMap
-      }
-
-      val backup = SharedPrefsBackup(backupData)
-      val jsonString = json.encodeToString(backup)
+      val chain = if (incremental) readManifest() else null
+      val previous = chain?.hashes ?: emptyMap()
+      val manifest = HashMap<String, Long>(previous.size)
 
       // Ensure parent directory exists based on KUniFile type
       ensureParentDirectory(backupFile)
 
-      // Write JSON to the file
-      backupFile.openOutputStream().use { outputStream ->
-        outputStream.write(jsonString.toByteArray())
+      GZIPOutputStream(backupFile.openOutputStream().buffered()).bufferedWriter().use { writer ->
+        fun writeRecord(record: BackupRecord) {
+          writer.write(lineJson.encodeToString(record))
+          writer.newLine()
+        }
+
+        fun writeEntry(file: String, key: String, entry: PrefEntry) {
+          val id = manifestKey(file, key)
+          val hash = hashOf(entry)
+          manifest[id] = hash
+          if (previous[id] != hash) writeRecord(BackupRecord(file, key, entry))
+        }
+
+        val header = BackupHeader(BACKUP_VERSION, chain != null, System.currentTimeMillis(), chain?.last)
+        writer.write(lineJson.encodeToString(header))
+        writer.newLine()
+
+        prefNames.forEach { prefName ->
+          val prefs = context.getSharedPreferences(prefName, Context.MODE_PRIVATE)
+          prefs.all.forEach { (key, value) ->
+            toPrefEntry(value)?.let { writeEntry(prefName, key, it) }
+          }
+        }
+
+        // Data stores moved out of SharedPreferences are exported under their old file name
+        SqliteStorage.storageNames(context).forEach { name ->
+          openStorage(name).forEachEntry { key, value -> writeEntry(name, key, PrefEntry(value, "String")) }
+        }
+
+        (previous.keys - manifest.keys).forEach { id ->
+          val (file, key) = id.split(MANIFEST_SEPARATOR, limit = 2)
+          writeRecord(BackupRecord(file, key))
+        }
       }
+      val name = backupFile.name ?: ""
+      writeManifest(BackupManifest(name, chain?.length?.plus(1) ?: 0, manifest))
       true
     } catch (e: Exception) {
       e.printStackTrace()
@@ -81,6 +133,17 @@ class FileHelper(val context: Context) {
     }
   }
 
+  @Suppress("UNCHECKED_CAST")
+  private fun toPrefEntry(value: Any?): PrefEntry? = when (value) {
+    is Boolean -> PrefEntry(value.toString(), "Boolean")
+    is Float -> PrefEntry(value.toString(), "Float")
+    is Int -> PrefEntry(value.toString(), "Int")
+    is Long -> PrefEntry(value.toString(), "Long")
+    is String -> PrefEntry(value, "String")
+    is Set<*> -> PrefEntry(json.encodeToString(value as Set<String>), "StringSet")
+    else -> null
+  }
+
   /**
    * Ensures the parent directory exists for the given KUniFile.
    * @param file The KUniFile to check and prepare the parent directory for.
@@ -116,50 +179,203 @@ class FileHelper(val context: Context) {
   }
 
   /**
-   * Restores SharedPreferences from a JSON file using KUniFile.
+   * Writes the next periodic backup to [backupDir]: the changes since the last backup while that
+   * one is still in [backupDir] and fewer than [MAX_CHAIN_LENGTH] incremental backups follow the
+   * last full one, a full backup otherwise.
+   * @return The backup written, null if it failed.
+   */
+  fun backupChained(prefNames: List<String>, backupDir: KUniFile): KUniFile? {
+    val chain = readManifest()
+    val incremental = chain != null && chain.length < MAX_CHAIN_LENGTH &&
+      backupDir.findFile(chain.last)?.exists() == true
+    val date = SimpleDateFormat("yyyy_MM_dd_HH_mm").format(Date(System.currentTimeMillis()))
+    val displayName = if (incremental) "vvf_backup${date}_incremental.json.gz" else "vvf_backup${date}.json.gz"
+    val backupFile = backupDir.createFile(displayName, "application/gzip") ?: return null
+    if (!backupSharedPreferencesToJson(prefNames, backupFile, incremental)) {
+      backupFile.delete()
+      return null
+    }
+    return backupFile
+  }
+
+  /**
+   * Restores SharedPreferences and data stores from a backup file using KUniFile. Streamed
+   * backups are applied in batches as they are read; older single-JSON backups are still read.
+   * An incremental backup first restores the backups it builds on, when they are in [backupDir].
    * @param backupFileUri Uri of the backup file to restore from.
+   * @param backupDir Folder holding the earlier backups of the chain.
    * @return True if restore succeeds, false otherwise.
    */
-  fun restoreSharedPreferencesFromJson(backupFileUri: Uri): Boolean {
+  fun restoreSharedPreferencesFromJson(backupFileUri: Uri, backupDir: KUniFile? = null): Boolean {
     return try {
       val backupFile = KUniFile.fromUri(context, backupFileUri) ?: return false
+      restoreBackup(backupFile, backupDir, MAX_CHAIN_LENGTH)
+      // The next incremental backup can not be diffed against what was there before
+      manifestFile.delete()
+      true
+    } catch (e: Exception) {
+      e.printStackTrace()
+      false
+    }
+  }
+
+  /**
+   * The folder backups are written to, the one picked in settings or else the default.
+   */
+  fun getBackupDir(preferences: SharedPreferences): KUniFile? {
+    val defaultDir = getDefaultBackupDir()
+    val backupDirPath = preferences.getString(
+      context.getString(R.string.pref_backup_path),
+      defaultDir?.uri?.toString()
+    )
+    return backupDirPath?.let { KUniFile.fromUri(context, Uri.parse(it)) } ?: defaultDir
+  }
+
+  private fun restoreBackup(backupFile: KUniFile, backupDir: KUniFile?, depth: Int) {
+    backupFile.openInputStream().buffered().use { input ->
+      if (!isGzip(input)) {
+        restoreLegacy(input.readBytes().toString(Charsets.UTF_8))
+        return
+      }
+      val reader = GZIPInputStream(input).bufferedReader()
+      val header = reader.readLine()?.let { lineJson.decodeFromString<BackupHeader>(it) } ?: return
+      val previous = header.previous
+      if (header.incremental && previous != null) {
+        val earlier = backupDir?.findFile(previous)
+        if (earlier != null && depth > 0) restoreBackup(earlier, backupDir, depth - 1)
+        else Timber.w("Backup $previous is missing, applying ${backupFile.name} on top of the current data")
+      }
+      restoreStream(reader, header)
+    }
+  }
+
+  private fun isGzip(input: BufferedInputStream): Boolean {
+    input.mark(2)
+    val magic = input.read() or (input.read() shl 8)
+    input.reset()
+    return magic == GZIPInputStream.GZIP_MAGIC
+  }
+
+  private fun restoreStream(reader: BufferedReader, header: BackupHeader) {
+    val restored = HashSet<String>()
+    val batch = ArrayList<BackupRecord>(RESTORE_BATCH_SIZE)
 
-      // Read and decode JSON from the file
-      val jsonString = backupFile.openInputStream().use { inputStream ->
-        inputStream.readBytes().toString(Charsets.UTF_8)
+    fun applyBatch() {
+      batch.groupBy { it.file }.forEach { (file, records) ->
+        // A full backup replaces each file, the first time it is seen
+        restoreFile(file, records, clear = !header.incremental && restored.add(file))
       }
+      batch.clear()
+    }
 
-      val backup = json.decodeFromString<SharedPrefsBackup>(jsonString)
-
-      backup.preferences.forEach { (prefName, prefData) ->
-        val prefs = context.getSharedPreferences(prefName, Context.MODE_PRIVATE)
-        val editor = prefs.edit()
-
-        // Clear existing data
-        editor.clear()
-
-        // Restore each key-value pair
-        prefData.forEach { (key, entry) ->
-          when (entry.type) {
-            "Boolean" -> editor.putBoolean(key, entry.value.toBoolean())
-            "Float" -> editor.putFloat(key, entry.value.toFloat())
-            "Int" -> editor.putInt(key, entry.value.toInt())
-            "Long" -> editor.putLong(key, entry.value.toLong())
-            "String" -> editor.putString(key, entry.value)
-            "StringSet" -> editor.putStringSet(
-              key,
-              json.decodeFromString<Set<String>>(entry.value)
-            )
-          }
-        }
+    reader.lineSequence().forEach { line ->
+      if (line.isBlank()) return@forEach
+      batch += lineJson.decodeFromString<BackupRecord>(line)
+      if (batch.size >= RESTORE_BATCH_SIZE) applyBatch()
+    }
+    applyBatch()
+  }
 
-        editor.apply()
+  private fun restoreLegacy(jsonString: String) {
+    val backup = json.decodeFromString<SharedPrefsBackup>(jsonString)
+    backup.preferences.forEach { (prefName, prefData) ->
+      restoreFile(prefName, prefData.map { (key, entry) -> BackupRecord(prefName, key, entry) }, clear = true)
+    }
+  }
+
+  private fun restoreFile(name: String, records: List<BackupRecord>, clear: Boolean) {
+    if (isDataStore(name)) {
+      restoreDataStore(name, records, clear)
+      return
+    }
+    val prefs = context.getSharedPreferences(name, Context.MODE_PRIVATE)
+    val editor = prefs.edit()
+
+    // Clear existing data
+    if (clear) editor.clear()
+
+    // Restore each key-value pair
+    records.forEach { record ->
+      val entry = record.entry
+      val key = record.key
+      when (entry?.type) {
+        null -> editor.remove(key)
+        "Boolean" -> editor.putBoolean(key, entry.value.toBoolean())
+        "Float" -> editor.putFloat(key, entry.value.toFloat())
+        "Int" -> editor.putInt(key, entry.value.toInt())
+        "Long" -> editor.putLong(key, entry.value.toLong())
+        "String" -> editor.putString(key, entry.value)
+        "StringSet" -> editor.putStringSet(
+          key,
+          json.decodeFromString<Set<String>>(entry.value)
+        )
+      }
+    }
+
+    editor.apply()
+  }
+
+  private fun isDataStore(prefName: String) =
+    prefName.startsWith(APP_DATA_STORE_PREFIX) || SqliteStorage.exists(context, prefName)
+
+  private fun openStorage(name: String): DataStorage = AppDataStore.openStorage(context, name)
+
+  private fun restoreDataStore(name: String, records: List<BackupRecord>, clear: Boolean) {
+    openStorage(name).transaction {
+      if (clear) clear()
+      records.forEach { record ->
+        val entry = record.entry
+        if (entry == null) remove(record.key)
+        else if (entry.type == "String") putString(record.key, entry.value)
+      }
+    }
+    if (clear) context.getSharedPreferences(name, Context.MODE_PRIVATE).edit { clear() }
+  }
+
+  private fun manifestKey(file: String, key: String) = "$file$MANIFEST_SEPARATOR$key"
+
+  // 64-bit FNV-1a, only used to tell whether an entry changed between two backups
+  private fun hashOf(entry: PrefEntry): Long {
+    var hash = -0x340d631b7bdddcdbL
+    "${entry.type}:${entry.value}".forEach {
+      hash = (hash xor it.code.toLong()) * 0x100000001b3L
+    }
+    return hash
+  }
+
+  // The last backup written, how many incremental ones lead to it, and the hashes of its entries
+  private class BackupManifest(val last: String, val length: Int, val hashes: Map<String, Long>)
+
+  private fun readManifest(): BackupManifest? {
+    if (!manifestFile.exists()) return null
+    return try {
+      DataInputStream(manifestFile.inputStream().buffered()).use { input ->
+        val last = input.readUTF()
+        val length = input.readInt()
+        val size = input.readInt()
+        val hashes = HashMap<String, Long>(size).apply {
+          repeat(size) { put(input.readUTF(), input.readLong()) }
+        }
+        BackupManifest(last, length, hashes)
       }
-      true
     } catch (e: Exception) {
-      e.printStackTrace()
-      false
+      Timber.e(e)
+      null
+    }
+  }
+
+  private fun writeManifest(manifest: BackupManifest) {
+    val temp = File(manifestFile.path + ".tmp")
+    DataOutputStream(temp.outputStream().buffered()).use { output ->
+      output.writeUTF(manifest.last)
+      output.writeInt(manifest.length)
+      output.writeInt(manifest.hashes.size)
+      manifest.hashes.forEach { (id, hash) ->
+        output.writeUTF(id)
+        output.writeLong(hash)
+      }
     }
+    temp.renameTo(manifestFile)
   }
 
   /**
@@ -243,4 +459,13 @@ class FileHelper(val context: Context) {
     }
   }
 
+  companion object {
+    private const val BACKUP_VERSION = 2
+    private const val RESTORE_BATCH_SIZE = 500
+    private const val BACKUP_MANIFEST = "backup_manifest.bin"
+
+    // Incremental backups written before the next full one
+    private const val MAX_CHAIN_LENGTH = 6
+    private const val MANIFEST_SEPARATOR = "\u0000"
+  }
 }
@@ -7,14 +7,18 @@ import android.content.res.AssetManager
 import android.net.Uri
 import android.os.Build
 import android.os.Environment
+import android.os.ParcelFileDescriptor
 import android.provider.DocumentsContract
 import android.provider.MediaStore
 import androidx.documentfile.provider.DocumentFile
 import java.io.File
 import java.io.FileInputStream
 import java.io.FileOutputStream
+import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
+import java.io.RandomAccessFile
+import java.nio.channels.FileChannel
 
 /**
  * A unified file abstraction for Android, forked from https://github.com/seven332/UniFile/tree/master
@@ -41,6 +45,19 @@ abstract class KUniFile(val context: Context) {
   abstract fun openInputStream(): InputStream
   abstract fun openOutputStream(append: Boolean = false): OutputStream
 
+  /**
+   * A channel for positional reads and writes anywhere in the file, without truncating it.
+   * Concurrent `write(buffer, position)` calls are safe.
+   */
+  open fun openChannel(): FileChannel =
+    throw UnsupportedOperationException("Random access is not supported by ${this::class.simpleName}")
+
+  /**
+   * A `rw` descriptor of the file, for what a channel can't do, like allocating space.
+   */
+  open fun openFileDescriptor(): ParcelFileDescriptor =
+    throw UnsupportedOperationException("Descriptors are not supported by ${this::class.simpleName}")
+
   companion object {
     fun fromUri(context: Context, uri: Uri): KUniFile? {
       return when (uri.scheme) {
@@ -162,6 +179,9 @@ abstract class KUniFile(val context: Context) {
       override fun renameTo(displayName: String): Boolean = file.renameTo(File(file.parent, displayName))
       override fun openInputStream(): InputStream = FileInputStream(file)
       override fun openOutputStream(append: Boolean): OutputStream = FileOutputStream(file, append)
+      override fun openChannel(): FileChannel = RandomAccessFile(file, "rw").channel
+      override fun openFileDescriptor(): ParcelFileDescriptor =
+        ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_WRITE)
     }
     class DocumentKUniFile(context: Context, private val docFile: DocumentFile, private val originalUri: Uri? = null) : KUniFile(context) {
       override fun createFile(displayName: String, mimeType: String): KUniFile? {
@@ -220,6 +240,8 @@ abstract class KUniFile(val context: Context) {
       override fun openInputStream(): InputStream = context.contentResolver.openInputStream(uri)!!
       override fun openOutputStream(append: Boolean): OutputStream =
         context.contentResolver.openOutputStream(uri, if (append) "wa" else "w")!!
+      override fun openChannel(): FileChannel = openDescriptorChannel(context.contentResolver, uri)
+      override fun openFileDescriptor(): ParcelFileDescriptor = openDescriptor(context.contentResolver, uri)
     }
     class MediaKUniFile(
       context: Context,
@@ -424,6 +446,18 @@ abstract class KUniFile(val context: Context) {
         if (!exists()) throw IllegalStateException("File does not exist yet. Call createFile() first: $relativePath")
         return resolver.openOutputStream(uri, if (append) "wa" else "w")!!
       }
+
+      override fun openChannel(): FileChannel {
+        if (isDirectory) throw IllegalStateException("Cannot open channel for a directory: $relativePath")
+        if (!exists()) throw IllegalStateException("File does not exist yet. Call createFile() first: $relativePath")
+        return openDescriptorChannel(resolver, uri)
+      }
+
+      override fun openFileDescriptor(): ParcelFileDescriptor {
+        if (isDirectory) throw IllegalStateException("Cannot open descriptor for a directory: $relativePath")
+        if (!exists()) throw IllegalStateException("File does not exist yet. Call createFile() first: $relativePath")
+        return openDescriptor(resolver, uri)
+      }
     }
 
     class AssetKUniFile(context: Context, private val assets: AssetManager, private val filename: String) : KUniFile(context) {
@@ -472,6 +506,15 @@ abstract class KUniFile(val context: Context) {
         throw UnsupportedOperationException("Resources are read-only")
     }
 
+    /**
+     * Channel over a `rw` descriptor of [uri]; closing the channel closes the descriptor.
+     */
+    private fun openDescriptorChannel(resolver: ContentResolver, uri: Uri): FileChannel =
+      ParcelFileDescriptor.AutoCloseOutputStream(openDescriptor(resolver, uri)).channel
+
+    private fun openDescriptor(resolver: ContentResolver, uri: Uri): ParcelFileDescriptor =
+      resolver.openFileDescriptor(uri, "rw") ?: throw IOException("Cannot open file descriptor for $uri")
+
     enum class MediaCollection {
       DOWNLOADS,
       PICTURES,
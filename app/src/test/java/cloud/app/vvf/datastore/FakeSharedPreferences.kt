@@ -0,0 +1,68 @@
+package cloud.app.vvf.datastore
+
+import android.content.SharedPreferences
+
+/**
+ * In-memory [SharedPreferences] for JVM tests. Like the platform one, [getAll] hands out a copy
+ * of every entry and listeners hear about each key an editor changed.
+ */
+class FakeSharedPreferences : SharedPreferences {
+  private val values = HashMap<String, Any?>()
+  private val listeners = LinkedHashSet<SharedPreferences.OnSharedPreferenceChangeListener>()
+
+  override fun getAll(): MutableMap<String, *> = HashMap(values)
+
+  override fun getString(key: String, defValue: String?): String? = values[key] as? String ?: defValue
+
+  @Suppress("UNCHECKED_CAST")
+  override fun getStringSet(key: String, defValues: MutableSet<String>?): MutableSet<String>? =
+    values[key] as? MutableSet<String> ?: defValues
+
+  override fun getInt(key: String, defValue: Int): Int = values[key] as? Int ?: defValue
+
+  override fun getLong(key: String, defValue: Long): Long = values[key] as? Long ?: defValue
+
+  override fun getFloat(key: String, defValue: Float): Float = values[key] as? Float ?: defValue
+
+  override fun getBoolean(key: String, defValue: Boolean): Boolean = values[key] as? Boolean ?: defValue
+
+  override fun contains(key: String): Boolean = values.containsKey(key)
+
+  override fun edit(): SharedPreferences.Editor = Editor()
+
+  override fun registerOnSharedPreferenceChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener) {
+    listeners.add(listener)
+  }
+
+  override fun unregisterOnSharedPreferenceChangeListener(listener: SharedPreferences.OnSharedPreferenceChangeListener) {
+    listeners.remove(listener)
+  }
+
+  private inner class Editor : SharedPreferences.Editor {
+    private val changes = LinkedHashMap<String, Any?>()
+    private var clear = false
+
+    override fun putString(key: String, value: String?) = apply { changes[key] = value }
+    override fun putStringSet(key: String, values: MutableSet<String>?) = apply { changes[key] = values }
+    override fun putInt(key: String, value: Int) = apply { changes[key] = value }
+    override fun putLong(key: String, value: Long) = apply { changes[key] = value }
+    override fun putFloat(key: String, value: Float) = apply { changes[key] = value }
+    override fun putBoolean(key: String, value: Boolean) = apply { changes[key] = value }
+    override fun remove(key: String) = apply { changes[key] = null }
+    override fun clear() = apply { clear = true }
+
+    override fun commit(): Boolean {
+      if (clear) values.clear()
+      changes.forEach { (key, value) -> if (value == null) values.remove(key) else values[key] = value }
+      if (clear) listeners.toList().forEach { it.onSharedPreferenceChanged(this@FakeSharedPreferences, null) }
+      changes.keys.forEach { key ->
+        listeners.toList().forEach { it.onSharedPreferenceChanged(this@FakeSharedPreferences, key) }
+      }
+      return true
+    }
+
+    override fun apply() {
+      commit()
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package cloud.app.vvf.datastore
+
+import androidx.core.content.edit
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+/**
+ * Folder listing and counting over 10k mixed keys, from the [KeyIndex] of
+ * [SharedPreferencesStorage] against the `getAll()` scan it replaced. Each round also writes and
+ * removes a key, so keeping the index current is part of what is measured.
+ */
+class KeyIndexBenchmark {
+
+  // What keys() and count() did before the index: copy the file, filter every key
+  private class ScanningLookup(private val sharedPreferences: FakeSharedPreferences) {
+    fun keys(prefix: String): List<String> = sharedPreferences.all.keys.filter { it.startsWith(prefix) }
+    fun count(prefix: String): Int = keys(prefix).size
+  }
+
+  private fun mixedKeys(): List<String> {
+    val random = Random(SEED)
+    val keys = ArrayList<String>(KEY_COUNT)
+    var i = 0
+    while (keys.size < KEY_COUNT) {
+      val roll = random.nextInt(100)
+      keys += when {
+        roll < 60 -> "history_progress/show-${i % 300}/${i % 12}/$i"
+        roll < 75 -> "bookmarks/item-$i"
+        roll < 85 -> "downloads/download-$i"
+        roll < 95 -> "search_history/query-$i"
+        else -> "extensionDir/extension-${i % 40}/setting-$i"
+      }
+      i++
+    }
+    keys.shuffle(random)
+    return keys
+  }
+
+  private fun filledPreferences() = FakeSharedPreferences().apply {
+    edit { mixedKeys().forEach { putString(it, "{\"id\":\"$it\"}") } }
+  }
+
+  @Test
+  fun indexListsTheSameKeysAsTheScan() {
+    val preferences = filledPreferences()
+    val storage = SharedPreferencesStorage(preferences)
+    val scan = ScanningLookup(preferences)
+    storage.putString("bookmarks/added", "{}")
+    storage.remove(mixedKeys().first { it.startsWith("bookmarks/") })
+
+    FOLDERS.forEach { folder ->
+      assertEquals(scan.keys(folder).sorted(), storage.keys(folder))
+      assertEquals(scan.count(folder), storage.count(folder))
+    }
+  }
+
+  @Test
+  fun indexBeatsTheScanOverTenThousandKeys() {
+    val indexed = SharedPreferencesStorage(filledPreferences())
+    val scanPreferences = filledPreferences()
+    val scan = ScanningLookup(scanPreferences)
+
+    val indexNs = measure { round ->
+      indexed.putString("search_history/new-$round", "{}")
+      indexed.remove("search_history/new-${round - 1}")
+      FOLDERS.sumOf { indexed.keys(it).size + indexed.count(it) }
+    }
+    val scanNs = measure { round ->
+      scanPreferences.edit { putString("search_history/new-$round", "{}") }
+      scanPreferences.edit { remove("search_history/new-${round - 1}") }
+      FOLDERS.sumOf { scan.keys(it).size + scan.count(it) }
+    }
+
+    println(
+      "KeyIndex over $KEY_COUNT keys: %.1f µs/round, getAll() scan: %.1f µs/round (%.1fx)"
+        .format(indexNs / 1_000.0, scanNs / 1_000.0, scanNs.toDouble() / indexNs)
+    )
+    assertTrue("index $indexNs ns/round is not faster than the scan $scanNs ns/round", indexNs < scanNs)
+  }
+
+  /**
+   * Average nanoseconds per round of [round], after [WARMUP_ROUNDS] rounds left out.
+   */
+  private inline fun measure(round: (Int) -> Int): Long {
+    var sink = 0
+    repeat(WARMUP_ROUNDS) { sink += round(it) }
+    val start = System.nanoTime()
+    repeat(ROUNDS) { sink += round(WARMUP_ROUNDS + it) }
+    val elapsed = System.nanoTime() - start
+    assertTrue(sink > 0)
+    return elapsed / ROUNDS
+  }
+
+  companion object {
+    private const val KEY_COUNT = 10_000
+    private const val SEED = 42L
+    private const val WARMUP_ROUNDS = 200
+    private const val ROUNDS = 500
+
+    private val FOLDERS = listOf(
+      "bookmarks/", "downloads/", "history_progress/", "search_history/", "extensionDir/"
+    )
+  }
+}
@@ -0,0 +1,191 @@
+package cloud.app.vvf.datastore
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.TreeMap
+
+class WriteBehindStorageTest {
+
+  /**
+   * In-memory delegate recording the paths written by each batch. A transaction either writes
+   * everything or, when told to fail, nothing.
+   */
+  private class MemoryStorage : ObservableDataStorage() {
+    val values = TreeMap<String, String>()
+    val batches = mutableListOf<List<Pair<String, String>>>()
+    var failNextTransaction = false
+    var beforeTransaction: (() -> Unit)? = null
+    private var batch: MutableList<Pair<String, String>>? = null
+
+    override fun getString(path: String): String? = values[path]
+
+    override fun putString(path: String, value: String, columns: IndexColumns?) {
+      val batch = batch
+      if (batch != null) batch += path to value else values[path] = value
+    }
+
+    override fun remove(path: String) {
+      values.remove(path)
+    }
+
+    override fun contains(path: String): Boolean = values.containsKey(path)
+
+    override fun keys(prefix: String): List<String> = values.keys.filter { it.startsWith(prefix) }
+
+    override fun entries(): Map<String, String> = values.toMap()
+
+    override fun clear() {
+      values.clear()
+    }
+
+    override fun transaction(block: DataStorage.() -> Unit) {
+      beforeTransaction?.invoke()
+      val writes = mutableListOf<Pair<String, String>>()
+      batch = writes
+      try {
+        block()
+      } finally {
+        batch = null
+      }
+      if (failNextTransaction) {
+        failNextTransaction = false
+        throw IllegalStateException("Batch rejected")
+      }
+      writes.forEach { (path, value) -> values[path] = value }
+      batches += writes
+    }
+  }
+
+  private val delegate = MemoryStorage()
+
+  // Never flushes on its own while a test runs; each test flushes explicitly
+  private val storage = WriteBehindStorage(delegate, debounceMs = IDLE_MS, maxDelayMs = IDLE_MS)
+
+  @Test
+  fun coalescesWritesPerKeyIntoOneBatch() {
+    storage.enqueue("progress/a", "1", null)
+    storage.enqueue("progress/b", "1", null)
+    storage.enqueue("progress/a", "2", null)
+    assertEquals(2, storage.pendingCount)
+
+    storage.flush()
+
+    assertEquals(listOf(listOf("progress/a" to "2", "progress/b" to "1")), delegate.batches)
+    assertEquals(0, storage.pendingCount)
+  }
+
+  @Test
+  fun pendingWritesAreReadBeforeTheyAreFlushed() {
+    storage.enqueue("progress/a", "1", null)
+
+    assertEquals("1", storage.getString("progress/a"))
+    assertTrue(storage.contains("progress/a"))
+    assertNull(delegate.getString("progress/a"))
+  }
+
+  @Test
+  fun enumeratingReadsFlushFirst() {
+    storage.enqueue("progress/a", "1", null)
+    storage.enqueue("bookmarks/b", "1", null)
+
+    assertEquals(listOf("progress/a"), storage.keys("progress/"))
+    assertEquals("1", delegate.getString("bookmarks/b"))
+  }
+
+  @Test
+  fun directWritesSupersedePendingOnes() {
+    storage.enqueue("progress/a", "old", null)
+    storage.enqueue("progress/b", "old", null)
+    storage.putString("progress/a", "new")
+    storage.remove("progress/b")
+
+    storage.flush()
+
+    assertEquals("new", delegate.getString("progress/a"))
+    assertFalse(delegate.contains("progress/b"))
+    assertTrue(delegate.batches.isEmpty())
+  }
+
+  @Test
+  fun laterBatchesOverwriteEarlierOnes() {
+    storage.enqueue("progress/a", "1", null)
+    storage.flush()
+    storage.enqueue("progress/a", "2", null)
+    storage.flush()
+
+    assertEquals(listOf(listOf("progress/a" to "1"), listOf("progress/a" to "2")), delegate.batches)
+    assertEquals("2", delegate.getString("progress/a"))
+  }
+
+  @Test
+  fun writesArrivingDuringAFlushGoToTheNextBatch() {
+    storage.enqueue("progress/a", "1", null)
+    delegate.beforeTransaction = {
+      delegate.beforeTransaction = null
+      storage.enqueue("progress/a", "2", null)
+    }
+
+    storage.flush()
+    assertEquals("1", delegate.getString("progress/a"))
+    assertEquals("2", storage.getString("progress/a"))
+
+    storage.flush()
+    assertEquals("2", delegate.getString("progress/a"))
+  }
+
+  @Test
+  fun failedBatchIsQueuedAgain() {
+    storage.enqueue("progress/a", "1", null)
+    storage.enqueue("progress/b", "1", null)
+    delegate.failNextTransaction = true
+
+    storage.flush()
+    assertTrue(delegate.values.isEmpty())
+    assertEquals(2, storage.pendingCount)
+    assertEquals("1", storage.getString("progress/a"))
+
+    storage.flush()
+    assertEquals(mapOf("progress/a" to "1", "progress/b" to "1"), delegate.values)
+    assertEquals(0, storage.pendingCount)
+  }
+
+  @Test
+  fun failedBatchDoesNotOverwriteNewerWrites() {
+    storage.enqueue("progress/a", "1", null)
+    storage.enqueue("progress/b", "1", null)
+    delegate.failNextTransaction = true
+    delegate.beforeTransaction = {
+      delegate.beforeTransaction = null
+      storage.enqueue("progress/a", "2", null)
+    }
+
+    storage.flush()
+    assertEquals("2", storage.getString("progress/a"))
+
+    storage.flush()
+    assertEquals(mapOf("progress/a" to "2", "progress/b" to "1"), delegate.values)
+  }
+
+  @Test
+  fun listenersAreNotifiedOutsideTheStorageLock() {
+    var otherThreadDone = false
+    storage.addChangeListener {
+      // Another thread touching the storage must not wait for this listener to return
+      val reader = Thread { storage.pendingCount }.apply { start() }
+      reader.join(LOCK_TIMEOUT_MS)
+      otherThreadDone = !reader.isAlive
+    }
+
+    storage.enqueue("progress/a", "1", null)
+
+    assertTrue(otherThreadDone)
+  }
+
+  companion object {
+    private const val IDLE_MS = 60_000L
+    private const val LOCK_TIMEOUT_MS = 1_000L
+  }
+}